@@ -0,0 +1,185 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of an operation that touches many resources at once, like
+ * {@link ResourceFactory#find(java.util.Collection)}. Results are kept in the
+ * same order as the identifiers that were passed in, and each position holds
+ * either a resource or the exception that prevented us from getting it. One
+ * failure never aborts the rest of the batch.
+ * 
+ * <code>
+ * <pre>
+ * BatchResult&lt;Person&gt; people = rf.find(ids);
+ * for (int i = 0; i &lt; people.size(); i++) {
+ *   if (people.isSuccess(i))
+ *     System.out.println(people.get(i).getName());
+ *   else
+ *     System.out.println(people.getId(i) + " failed: " + people.getError(i));
+ * }
+ * </pre>
+ * </code>
+ * 
+ * Each position is written by exactly one thread, so filling in a batch from
+ * several threads at once is safe as long as they use different positions.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class BatchResult<T> {
+
+	private final List<String> ids;
+	private final Object[] resources;
+	private final Exception[] errors;
+
+	/**
+	 * create an empty result with one position for each id
+	 * 
+	 * @param ids
+	 *            the identifiers, in the order results should be reported
+	 */
+	public BatchResult(List<String> ids) {
+		this.ids = new ArrayList<String>(ids);
+		this.resources = new Object[ids.size()];
+		this.errors = new Exception[ids.size()];
+	}
+
+	/**
+	 * @return the number of positions in this batch
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * @param index
+	 * @return the identifier at a given position
+	 */
+	public String getId(int index) {
+		return ids.get(index);
+	}
+
+	/**
+	 * @param index
+	 * @return the resource at a given position, or null if there isn't one
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int index) {
+		return (T) resources[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the exception recorded at a given position, or null if there
+	 *         wasn't one
+	 */
+	public Exception getError(int index) {
+		return errors[index];
+	}
+
+	/**
+	 * @param index
+	 * @return true if the position at index completed without an exception
+	 */
+	public boolean isSuccess(int index) {
+		return errors[index] == null;
+	}
+
+	/**
+	 * @return true if any position in this batch recorded an exception
+	 */
+	public boolean hasErrors() {
+		for (Exception e : errors) {
+			if (e != null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * record the resource for a position
+	 * 
+	 * @param index
+	 * @param resource
+	 */
+	public void set(int index, T resource) {
+		resources[index] = resource;
+	}
+
+	/**
+	 * record the exception for a position
+	 * 
+	 * @param index
+	 * @param error
+	 */
+	public void setError(int index, Exception error) {
+		errors[index] = error;
+	}
+
+	/**
+	 * @return the resources that were retrieved successfully, in order
+	 */
+	public ArrayList<T> getResources() {
+		ArrayList<T> list = new ArrayList<T>();
+		for (int i = 0; i < size(); i++) {
+			if (isSuccess(i) && get(i) != null)
+				list.add(get(i));
+		}
+		return list;
+	}
+
+	/**
+	 * @return a map of identifier to exception for every position that
+	 *         failed, in order
+	 */
+	public Map<String, Exception> getErrors() {
+		Map<String, Exception> map = new LinkedHashMap<String, Exception>();
+		for (int i = 0; i < size(); i++) {
+			if (!isSuccess(i))
+				map.put(getId(i), getError(i));
+		}
+		return map;
+	}
+
+	public String toString() {
+		return "BatchResult size=" + size() + " errors=" + getErrors().size();
+	}
+}
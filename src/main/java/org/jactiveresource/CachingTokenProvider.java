@@ -0,0 +1,248 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link TokenProvider} for tokens which expire, like OAuth access tokens.
+ * You say how to get a token, and this class hands out the same one until it
+ * is nearly used up, then gets a new one on a background thread, so no
+ * request has to wait while a token is fetched, except the very first.
+ * 
+ * <code>
+ * <pre>
+ * c.setTokenProvider(new CachingTokenProvider() {
+ *     protected Token fetchToken() throws IOException {
+ *         String t = ... ask the authorization server ...
+ *         return new Token(t, 3600, TimeUnit.SECONDS);
+ *     }
+ * });
+ * </pre>
+ * </code>
+ * 
+ * A token is refreshed {@link #getRefreshAhead()} milliseconds before it
+ * expires. If the refresh fails it is tried again every second or so until
+ * it works or the token runs out, after which the next request fetches a
+ * token itself. Tokens which would be due for a refresh less than a second
+ * after they were fetched, including those which come back already expired,
+ * are not refreshed in the background; the request which finds them expired
+ * fetches the next one. Call {@link #shutdown()} to stop the background
+ * thread when you are done with the provider.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public abstract class CachingTokenProvider implements TokenProvider {
+
+	private static final long RETRY_DELAY = 1000;
+	private static final long MIN_REFRESH_DELAY = 1000;
+
+	private volatile Token current;
+	private volatile long refreshAhead = 60000;
+	private final ReentrantLock lock = new ReentrantLock();
+	private ScheduledExecutorService scheduler;
+	private boolean shutdown;
+
+	private Log log = LogFactory.getLog(CachingTokenProvider.class);
+
+	/**
+	 * a token and when it expires
+	 */
+	public static class Token {
+		private final String value;
+		private final long expires;
+
+		/**
+		 * @param value
+		 *            the token
+		 * @param lifetime
+		 *            how long from now the token is good for
+		 * @param unit
+		 */
+		public Token(String value, long lifetime, TimeUnit unit) {
+			this.value = value;
+			this.expires = System.nanoTime() + unit.toNanos(lifetime);
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * @return how long until the token expires, in milliseconds
+		 */
+		public long remaining() {
+			return TimeUnit.NANOSECONDS.toMillis(expires - System.nanoTime());
+		}
+	}
+
+	/**
+	 * get a brand new token from wherever tokens come from
+	 * 
+	 * @return a new token
+	 * @throws IOException
+	 */
+	protected abstract Token fetchToken() throws IOException;
+
+	public String getToken() throws IOException {
+		Token t = current;
+		if (t != null && t.remaining() > 0)
+			return t.value;
+
+		lock.lock();
+		try {
+			t = current;
+			if (t == null || t.remaining() <= 0)
+				t = refresh();
+			return t.value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void invalidate(String token) {
+		lock.lock();
+		try {
+			Token t = current;
+			if (t != null && t.value.equals(token))
+				current = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * fetch a token and schedule the next refresh. Hold the lock.
+	 */
+	private Token refresh() throws IOException {
+		Token t = fetchToken();
+		current = t;
+		log.trace("token fetched, expires in " + t.remaining() + "ms");
+		long remaining = t.remaining();
+		long delay = Math.max(remaining - refreshAhead, remaining / 2);
+		if (delay >= MIN_REFRESH_DELAY)
+			schedule(t, delay);
+		else
+			log.debug("token expires in " + remaining
+					+ "ms, too soon to refresh it in the background");
+		return t;
+	}
+
+	private void schedule(final Token t, long delay) {
+		if (shutdown)
+			return;
+		if (scheduler == null) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"jactiveresource-token");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				refreshInBackground(t);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void refreshInBackground(Token old) {
+		lock.lock();
+		try {
+			// it was replaced or invalidated since this refresh was scheduled
+			if (current != old)
+				return;
+			try {
+				refresh();
+			} catch (IOException e) {
+				retry(old, e);
+			} catch (RuntimeException e) {
+				retry(old, e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void retry(Token old, Exception e) {
+		log.warn("token refresh failed", e);
+		long remaining = old.remaining();
+		if (remaining > 0)
+			schedule(old, Math.min(RETRY_DELAY, remaining));
+	}
+
+	/**
+	 * stop refreshing tokens in the background
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			shutdown = true;
+			if (scheduler != null)
+				scheduler.shutdownNow();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return how long before a token expires it is refreshed, in milliseconds
+	 */
+	public long getRefreshAhead() {
+		return refreshAhead;
+	}
+
+	/**
+	 * @param refreshAhead
+	 *            how long before a token expires it is refreshed, in
+	 *            milliseconds, default 60 seconds. Tokens which don't last
+	 *            twice that long are refreshed half way through their life.
+	 */
+	public void setRefreshAhead(long refreshAhead) {
+		this.refreshAhead = refreshAhead;
+	}
+}
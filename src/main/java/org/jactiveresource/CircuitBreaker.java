@@ -0,0 +1,170 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+/**
+ * Stops a {@link ResourceConnection} from sending requests to a service which
+ * keeps failing, giving it room to recover. Attach one with
+ * {@link ResourceConnection#setCircuitBreaker(CircuitBreaker)}.
+ * 
+ * <code>
+ * <pre>
+ * c.setCircuitBreaker(new CircuitBreaker(5, 10000));
+ * </pre>
+ * </code>
+ * 
+ * The breaker starts out closed, and requests flow. After
+ * <code>failureThreshold</code> failures in a row, either I/O errors or 5xx
+ * responses, it opens, and requests fail straight away with
+ * {@link CircuitOpen} without being sent. After <code>openMillis</code> it
+ * goes half open and lets {@link #getMaxProbes()} requests through. If one of
+ * them succeeds the breaker closes again; if one fails it opens for another
+ * <code>openMillis</code>.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class CircuitBreaker {
+
+	/**
+	 * the states a breaker can be in
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openMillis;
+	private volatile int maxProbes = 1;
+
+	// guarded by this
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private int probes;
+
+	/**
+	 * @param failureThreshold
+	 *            how many failures in a row open the breaker
+	 * @param openMillis
+	 *            how long the breaker stays open before probing
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return the state of the breaker
+	 */
+	public synchronized State getState() {
+		if (state == State.OPEN
+				&& System.currentTimeMillis() - openedAt >= openMillis)
+			return State.HALF_OPEN;
+		return state;
+	}
+
+	/**
+	 * ask whether a request may be sent. Every request which is allowed must
+	 * be followed by a call to {@link #onSuccess()}, {@link #onFailure()} or
+	 * {@link #onIgnored()}.
+	 * 
+	 * @return true if the request may be sent
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() - openedAt < openMillis)
+				return false;
+			state = State.HALF_OPEN;
+			probes = 0;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probes >= maxProbes)
+				return false;
+			probes++;
+		}
+		return true;
+	}
+
+	/**
+	 * report that a request succeeded
+	 */
+	public synchronized void onSuccess() {
+		if (state == State.HALF_OPEN)
+			state = State.CLOSED;
+		if (state == State.CLOSED)
+			failures = 0;
+	}
+
+	/**
+	 * report that a request failed
+	 */
+	public synchronized void onFailure() {
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED && ++failures >= failureThreshold)) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * report that a request finished without saying anything about the health
+	 * of the service, say because it was never sent
+	 */
+	public synchronized void onIgnored() {
+		if (state == State.HALF_OPEN && probes > 0)
+			probes--;
+	}
+
+	/**
+	 * @return how many requests are let through at once when half open
+	 */
+	public int getMaxProbes() {
+		return maxProbes;
+	}
+
+	/**
+	 * @param maxProbes
+	 *            how many requests are let through at once when half open,
+	 *            default 1
+	 */
+	public void setMaxProbes(int maxProbes) {
+		this.maxProbes = maxProbes;
+	}
+
+	public String toString() {
+		return getState().toString();
+	}
+}
@@ -0,0 +1,327 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests a {@link ResourceConnection} has in flight, and
+ * adjusts the limit to what the service can take. Attach one with
+ * {@link ResourceConnection#setConcurrencyLimiter(ConcurrencyLimiter)}.
+ * 
+ * <code>
+ * <pre>
+ * ResourceConnection c = new ResourceConnection("http://localhost:3000");
+ * ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 40);
+ * limiter.setSlowThreshold(500);
+ * c.setConcurrencyLimiter(limiter);
+ * </pre>
+ * </code>
+ * 
+ * The limit follows the same additive increase, multiplicative decrease rule
+ * as TCP. While the service keeps up and the limit is being used, each
+ * successful request raises the limit by <code>1/limit</code>, which works out
+ * to one more request per round trip. When a request fails to get a
+ * response, gets a 429 or 503, or takes longer than the slow threshold, the
+ * limit is multiplied by the backoff ratio. Like TCP, it only backs off once
+ * per overload: requests which were already in flight when the limit was last
+ * lowered don't lower it again, so a burst of timeouts from one bad moment
+ * costs one step, not one step each.
+ * <p>
+ * If the connection spreads requests over several sites with a
+ * {@link LoadBalancer}, each site gets a limiter of its own with the same
+ * settings, see {@link ResourceConnection#setConcurrencyLimiter(ConcurrencyLimiter)}.
+ * <p>
+ * A request that arrives when the limit is reached waits for one in flight to
+ * finish, for up to {@link #getMaxWait()} milliseconds. If
+ * {@link #getMaxQueue()} requests are already waiting, or the wait runs out,
+ * it fails straight away with {@link LimitExceeded} and is never sent.
+ * <p>
+ * The time measured is until the response headers arrive, and the request
+ * stops counting against the limit at that point, whether or not its body has
+ * been read.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ConcurrencyLimiter {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	// guarded by lock
+	private double limit;
+	private int inFlight;
+	private int queued;
+	private boolean decreased;
+	private long lastDecrease;
+
+	private volatile int minLimit = 1;
+	private final int initialLimit;
+	private final int maxLimit;
+	private volatile double backoffRatio = 0.9;
+	private volatile long slowThreshold;
+	private volatile int maxQueue = 100;
+	private volatile long maxWait = 1000;
+
+	/**
+	 * @param initialLimit
+	 *            the number of requests allowed in flight to start with
+	 * @param maxLimit
+	 *            the limit never grows beyond this
+	 */
+	public ConcurrencyLimiter(int initialLimit, int maxLimit) {
+		if (initialLimit < 1 || maxLimit < initialLimit)
+			throw new IllegalArgumentException(
+					"need 0 < initialLimit <= maxLimit");
+		this.limit = initialLimit;
+		this.initialLimit = initialLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * @return a new limiter with the same settings as this one, starting
+	 *         from the initial limit
+	 */
+	ConcurrencyLimiter copy() {
+		ConcurrencyLimiter c = new ConcurrencyLimiter(initialLimit, maxLimit);
+		c.minLimit = minLimit;
+		c.backoffRatio = backoffRatio;
+		c.slowThreshold = slowThreshold;
+		c.maxQueue = maxQueue;
+		c.maxWait = maxWait;
+		return c;
+	}
+
+	/**
+	 * wait for room to send a request
+	 * 
+	 * @return true if the request may be sent, false if it should be rejected
+	 * @throws InterruptedException
+	 */
+	public boolean acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (inFlight < (int) limit) {
+				inFlight++;
+				return true;
+			}
+			if (queued >= maxQueue)
+				return false;
+			queued++;
+			try {
+				long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+				while (inFlight >= (int) limit) {
+					if (nanos <= 0)
+						return false;
+					nanos = available.awaitNanos(nanos);
+				}
+				inFlight++;
+				return true;
+			} finally {
+				queued--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * report that a request allowed by {@link #acquire()} has finished, and
+	 * adjust the limit
+	 * 
+	 * @param nanos
+	 *            how long the request took
+	 * @param dropped
+	 *            true if the request failed in a way that suggests the
+	 *            service is overloaded
+	 */
+	public void release(long nanos, boolean dropped) {
+		long slow = slowThreshold;
+		if (slow > 0 && nanos > TimeUnit.MILLISECONDS.toNanos(slow))
+			dropped = true;
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			if (dropped) {
+				// a request sent before the last decrease is part of the
+				// overload we already backed off from
+				if (!decreased || now - nanos - lastDecrease >= 0) {
+					limit = Math.max(minLimit, limit * backoffRatio);
+					decreased = true;
+					lastDecrease = now;
+				}
+			} else if (inFlight * 2 >= limit) {
+				// only grow if the limit was actually being used
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			inFlight--;
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests currently allowed in flight
+	 */
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting for room
+	 */
+	public int getQueued() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the limit never shrinks below this
+	 */
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	/**
+	 * @param minLimit
+	 *            the limit never shrinks below this, default 1
+	 */
+	public void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	/**
+	 * @return the limit never grows beyond this
+	 */
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	/**
+	 * @return what the limit is multiplied by when the service is struggling
+	 */
+	public double getBackoffRatio() {
+		return backoffRatio;
+	}
+
+	/**
+	 * @param backoffRatio
+	 *            what the limit is multiplied by when the service is
+	 *            struggling, between 0 and 1, default 0.9
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		if (backoffRatio <= 0 || backoffRatio >= 1)
+			throw new IllegalArgumentException("backoffRatio must be in (0,1)");
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * @return milliseconds after which a request counts as a sign of overload,
+	 *         or 0 if time isn't considered
+	 */
+	public long getSlowThreshold() {
+		return slowThreshold;
+	}
+
+	/**
+	 * @param slowThreshold
+	 *            milliseconds after which a request counts as a sign of
+	 *            overload, or 0, the default, to only back off on errors
+	 */
+	public void setSlowThreshold(long slowThreshold) {
+		this.slowThreshold = slowThreshold;
+	}
+
+	/**
+	 * @return the most requests that may wait for room
+	 */
+	public int getMaxQueue() {
+		return maxQueue;
+	}
+
+	/**
+	 * @param maxQueue
+	 *            the most requests that may wait for room, default 100. Set it
+	 *            to 0 to reject requests as soon as the limit is reached.
+	 */
+	public void setMaxQueue(int maxQueue) {
+		this.maxQueue = maxQueue;
+	}
+
+	/**
+	 * @return the most milliseconds a request waits for room
+	 */
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * @param maxWait
+	 *            the most milliseconds a request waits for room, default 1000
+	 */
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public String toString() {
+		return "limit=" + getLimit() + " inFlight=" + getInFlight()
+				+ " queued=" + getQueued();
+	}
+}
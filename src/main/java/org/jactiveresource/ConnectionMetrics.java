@@ -0,0 +1,238 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the traffic that has gone through a
+ * {@link ResourceConnection}. The counters only ever go up, so a monitoring
+ * system can poll them and compute rates. There are also gauges for the
+ * current state of the connection, which go up and down.
+ * 
+ * <code>
+ * <pre>
+ * ResourceConnection c = new ResourceConnection("http://localhost:3000");
+ * ...
+ * ConnectionMetrics m = c.getMetrics();
+ * System.out.println(m.getRequests() + " requests sent");
+ * </pre>
+ * </code>
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ConnectionMetrics {
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong coalescedRequests = new AtomicLong();
+	private final AtomicLong rejectedRequests = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong shortCircuitedRequests = new AtomicLong();
+	private final AtomicLong hedgedRequests = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong primaryReads = new AtomicLong();
+
+	private volatile ConcurrencyLimiter limiter;
+	// false when a load balancer sends everything through the copies
+	private volatile boolean limiterUsed;
+	private volatile Collection<ConcurrencyLimiter> endpointLimiters = Collections
+			.emptyList();
+	private volatile CircuitBreaker circuitBreaker;
+
+	/**
+	 * @return the number of HTTP requests sent
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of GET requests which were not sent because an
+	 *         identical request was already in flight
+	 */
+	public long getCoalescedRequests() {
+		return coalescedRequests.get();
+	}
+
+	/**
+	 * @return the number of requests which were not sent because the
+	 *         concurrency limit was reached
+	 */
+	public long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	/**
+	 * @return the number of times a failed request was sent again
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return the number of requests which were not sent because the circuit
+	 *         breaker was open
+	 */
+	public long getShortCircuitedRequests() {
+		return shortCircuitedRequests.get();
+	}
+
+	/**
+	 * @return the number of GETs which were slow enough to be sent twice
+	 */
+	public long getHedgedRequests() {
+		return hedgedRequests.get();
+	}
+
+	/**
+	 * @return the number of hedged GETs where the second request answered
+	 *         first
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * @return the number of reads sent to the primary instead of a replica
+	 *         because the resource was written to just before
+	 */
+	public long getPrimaryReads() {
+		return primaryReads.get();
+	}
+
+	/**
+	 * @return the state of the circuit breaker, or null if there isn't one
+	 */
+	public CircuitBreaker.State getCircuitState() {
+		CircuitBreaker b = circuitBreaker;
+		return b == null ? null : b.getState();
+	}
+
+	/**
+	 * @return the number of requests currently allowed in flight, or -1 if
+	 *         there is no concurrency limiter. With a load balancer or read
+	 *         replicas, this is the sum of the limits of every site requests
+	 *         have gone to.
+	 */
+	public int getConcurrencyLimit() {
+		ConcurrencyLimiter l = limiter;
+		if (l == null)
+			return -1;
+		int limit = limiterUsed ? l.getLimit() : 0;
+		for (ConcurrencyLimiter e : endpointLimiters)
+			limit += e.getLimit();
+		return limit;
+	}
+
+	/**
+	 * @return the number of requests waiting for the concurrency limiter, or
+	 *         limiters
+	 */
+	public int getQueuedRequests() {
+		ConcurrencyLimiter l = limiter;
+		if (l == null)
+			return 0;
+		int queued = limiterUsed ? l.getQueued() : 0;
+		for (ConcurrencyLimiter e : endpointLimiters)
+			queued += e.getQueued();
+		return queued;
+	}
+
+	/**
+	 * @param limiter
+	 *            the limiter set on the connection
+	 * @param limiterUsed
+	 *            whether requests go through that limiter itself, or only
+	 *            through the copies made for each endpoint
+	 * @param endpointLimiters
+	 */
+	void setLimiter(ConcurrencyLimiter limiter, boolean limiterUsed,
+			Collection<ConcurrencyLimiter> endpointLimiters) {
+		this.limiter = limiter;
+		this.limiterUsed = limiterUsed;
+		this.endpointLimiters = endpointLimiters;
+	}
+
+	void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	void incrementRetries() {
+		retries.incrementAndGet();
+	}
+
+	void incrementShortCircuitedRequests() {
+		shortCircuitedRequests.incrementAndGet();
+	}
+
+	void incrementHedgedRequests() {
+		hedgedRequests.incrementAndGet();
+	}
+
+	void incrementHedgeWins() {
+		hedgeWins.incrementAndGet();
+	}
+
+	void incrementPrimaryReads() {
+		primaryReads.incrementAndGet();
+	}
+
+	void incrementRejectedRequests() {
+		rejectedRequests.incrementAndGet();
+	}
+
+	void incrementRequests() {
+		requests.incrementAndGet();
+	}
+
+	void incrementCoalescedRequests() {
+		coalescedRequests.incrementAndGet();
+	}
+
+	public String toString() {
+		return "requests=" + getRequests() + " coalescedRequests="
+				+ getCoalescedRequests() + " rejectedRequests="
+				+ getRejectedRequests() + " concurrencyLimit="
+				+ getConcurrencyLimit() + " queuedRequests="
+				+ getQueuedRequests() + " retries=" + getRetries()
+				+ " shortCircuitedRequests=" + getShortCircuitedRequests()
+				+ " hedgedRequests=" + getHedgedRequests() + " hedgeWins="
+				+ getHedgeWins() + " primaryReads=" + getPrimaryReads()
+				+ " circuitState=" + getCircuitState();
+	}
+}
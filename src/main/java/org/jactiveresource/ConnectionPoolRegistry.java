@@ -0,0 +1,332 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Keeps one connection pool for a whole process, so that every
+ * {@link ResourceConnection} talking to the same site reuses the same sockets
+ * instead of opening its own. Fifty connections to
+ * <code>http://localhost:3000</code> made with
+ * {@link ResourceConnection#ResourceConnection(String)} share one pool and at
+ * most {@link #getMaxPerHost()} sockets, not fifty pools of their own.
+ * <p>
+ * The pool files connections by scheme, host and port, and never has more
+ * than {@link #getMaxTotal()} open at once, to all sites together. When every
+ * connection is busy, a request waits for one to come back, up to the
+ * connect timeout of its factory.
+ * <p>
+ * {@link DefaultHttpClientFactory#DefaultHttpClientFactory(ConnectionPoolRegistry, URL...)}
+ * takes a reference to the pool for each of its sites, and
+ * {@link DefaultHttpClientFactory#shutter()}, which
+ * {@link ResourceConnection#close()} calls, gives them back. The pool is
+ * opened with the first reference and closed with the last, so closing one
+ * connection never pulls the sockets out from under another. Credentials are
+ * not part of the pool; each factory sends its own.
+ * 
+ * <code>
+ * <pre>
+ * ConnectionPoolRegistry.getDefault().setMaxTotal(400);
+ * ConnectionPoolRegistry.getDefault().setMaxPerHost(
+ *         new URL("http://localhost:3000"), 100);
+ * ResourceConnection c = new ResourceConnection("http://localhost:3000");
+ * </pre>
+ * </code>
+ * 
+ * If you want a pool to yourself, give the connection a factory of its own,
+ * like one from {@link DefaultHttpClientFactory.Builder}.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ConnectionPoolRegistry {
+
+	private static final ConnectionPoolRegistry DEFAULT = new ConnectionPoolRegistry();
+
+	private final Map<String, Integer> references = new TreeMap<String, Integer>();
+	private final Map<HttpRoute, Integer> routes = new HashMap<HttpRoute, Integer>();
+	private int holders;
+	private InstrumentedConnManager ccm;
+	private Evictor evictor;
+	private int maxTotal = 200;
+	private int maxPerHost = 40;
+	private long connectionTTL = -1;
+	private volatile long idleTimeout = 30000;
+	private volatile long evictionInterval = 5000;
+	private Log log = LogFactory.getLog(ConnectionPoolRegistry.class);
+
+	/**
+	 * @return the registry {@link ResourceConnection} uses when it isn't
+	 *         given a factory
+	 */
+	public static ConnectionPoolRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * take a reference to the pool for each of these sites, opening the pool
+	 * if this is the first
+	 * 
+	 * @return the pool
+	 */
+	synchronized InstrumentedConnManager retain(URL... sites) {
+		if (ccm == null) {
+			ccm = new InstrumentedConnManager(
+					DefaultHttpClientFactory.schemeRegistry(), connectionTTL,
+					TimeUnit.MILLISECONDS);
+			ccm.setMaxTotal(maxTotal);
+			ccm.setDefaultMaxPerRoute(maxPerHost);
+			for (Map.Entry<HttpRoute, Integer> e : routes.entrySet())
+				ccm.setMaxForRoute(e.getKey(), e.getValue());
+			evictor = new Evictor(ccm);
+			evictor.start();
+			log.trace("shared connection pool opened");
+		}
+		holders++;
+		for (URL site : sites) {
+			String key = key(site);
+			Integer n = references.get(key);
+			references.put(key, n == null ? 1 : n + 1);
+		}
+		return ccm;
+	}
+
+	/**
+	 * give back the references taken by {@link #retain(URL...)}, closing the
+	 * pool if they were the last
+	 */
+	synchronized void release(URL... sites) {
+		for (URL site : sites) {
+			String key = key(site);
+			Integer n = references.get(key);
+			if (n == null)
+				continue;
+			if (n > 1)
+				references.put(key, n - 1);
+			else
+				references.remove(key);
+		}
+		if (--holders > 0)
+			return;
+		holders = 0;
+		if (ccm != null) {
+			evictor.shutdown();
+			ccm.shutdown();
+			evictor = null;
+			ccm = null;
+			log.trace("shared connection pool closed");
+		}
+	}
+
+	/**
+	 * @return scheme://host:port, the way the pool tells sites apart
+	 */
+	static String key(URL site) {
+		int port = site.getPort() == -1 ? site.getDefaultPort() : site
+				.getPort();
+		return site.getProtocol() + "://" + site.getHost().toLowerCase()
+				+ ":" + port;
+	}
+
+	/**
+	 * @param site
+	 * @return how many factories are using the pool for this site
+	 */
+	public synchronized int getReferences(URL site) {
+		Integer n = references.get(key(site));
+		return n == null ? 0 : n;
+	}
+
+	/**
+	 * @return how many factories are using the pool for each site, keyed by
+	 *         scheme://host:port
+	 */
+	public synchronized Map<String, Integer> getReferences() {
+		return Collections.unmodifiableMap(new TreeMap<String, Integer>(
+				references));
+	}
+
+	/**
+	 * @return how busy the shared pool is right now
+	 */
+	public synchronized PoolStats getPoolStats() {
+		if (ccm == null)
+			return new PoolStats(0, 0, 0, maxTotal, 0, 0);
+		return ccm.getStats();
+	}
+
+	/**
+	 * @return the most connections open at once, to all sites together
+	 */
+	public synchronized int getMaxTotal() {
+		return maxTotal;
+	}
+
+	/**
+	 * @param maxTotal
+	 *            the most connections open at once, to all sites together,
+	 *            default 200
+	 */
+	public synchronized void setMaxTotal(int maxTotal) {
+		this.maxTotal = maxTotal;
+		if (ccm != null)
+			ccm.setMaxTotal(maxTotal);
+	}
+
+	/**
+	 * @return the most connections open at once to any one site
+	 */
+	public synchronized int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	/**
+	 * @param maxPerHost
+	 *            the most connections open at once to any one site, default
+	 *            40
+	 */
+	public synchronized void setMaxPerHost(int maxPerHost) {
+		this.maxPerHost = maxPerHost;
+		if (ccm != null)
+			ccm.setDefaultMaxPerRoute(maxPerHost);
+	}
+
+	/**
+	 * @param site
+	 * @param max
+	 *            the most connections open at once to this site
+	 */
+	public synchronized void setMaxPerHost(URL site, int max) {
+		HttpRoute route = DefaultHttpClientFactory.route(site);
+		routes.put(route, max);
+		if (ccm != null)
+			ccm.setMaxForRoute(route, max);
+	}
+
+	/**
+	 * @param connectionTTL
+	 *            how long a connection may live, or -1, the default, for no
+	 *            limit. This takes effect the next time the pool is opened.
+	 * @param unit
+	 */
+	public synchronized void setConnectionTTL(long connectionTTL,
+			TimeUnit unit) {
+		this.connectionTTL = connectionTTL < 0 ? -1 : unit
+				.toMillis(connectionTTL);
+	}
+
+	/**
+	 * @return how long a connection may sit unused in the pool before it is
+	 *         closed, in milliseconds
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            how long a connection may sit unused in the pool before it
+	 *            is closed, in milliseconds, default 30 seconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return how often idle and expired connections are looked for, in
+	 *         milliseconds
+	 */
+	public long getEvictionInterval() {
+		return evictionInterval;
+	}
+
+	/**
+	 * @param evictionInterval
+	 *            how often idle and expired connections are looked for, in
+	 *            milliseconds, default 5 seconds
+	 */
+	public void setEvictionInterval(long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+	}
+
+	/**
+	 * closes expired and idle connections in the shared pool in the
+	 * background
+	 */
+	private class Evictor extends Thread {
+		private final InstrumentedConnManager pool;
+		private volatile boolean shutdown;
+
+		Evictor(InstrumentedConnManager pool) {
+			super("jactiveresource-evictor");
+			setDaemon(true);
+			this.pool = pool;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!shutdown) {
+					synchronized (this) {
+						wait(evictionInterval);
+					}
+					if (shutdown)
+						break;
+					pool.evict(idleTimeout, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				// time to go
+			}
+			log.trace("idle connection evictor stopped");
+		}
+
+		void shutdown() {
+			shutdown = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+}
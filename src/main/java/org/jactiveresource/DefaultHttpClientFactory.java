@@ -33,22 +33,41 @@ POSSIBILITY OF SUCH DAMAGE.
 
 package org.jactiveresource;
 
+import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 
 /**
  * An implementation of {@link AbstractHttpClientFactory} which
@@ -61,8 +80,66 @@ import org.apache.http.params.HttpParams;
  * a URL; TCP connections time out after 10 seconds, TCP read operations
  * time out after 30 seconds.
  * 
+ * To change those, or to tune the sockets, use a {@link Builder}.
+ * <code>
+ * <pre>
+ * DefaultHttpClientFactory f = new DefaultHttpClientFactory.Builder()
+ *         .maxTotal(100).maxPerRoute(20)
+ *         .maxPerRoute(new URL("http://localhost:3000"), 60)
+ *         .socketTimeout(5000).tcpNoDelay(true).build();
+ * ResourceConnection c = new ResourceConnection("http://localhost:3000", f);
+ * </pre>
+ * </code>
+ * {@link #getPoolStats()} tells you how busy the pool is.
+ * 
  * If a username and password are given, they will be made available for
- * HTTPBasic authentication.
+ * HTTPBasic authentication. They are sent with every request to the site the
+ * client was made for, so there is no round trip to be told that they are
+ * needed, but never to another host, say one a redirect points at. To use
+ * them with more sites, add those with {@link #addCredentialSite(URL)}.
+ * 
+ * <h3>Idle connections</h3>
+ * 
+ * Pooled connections are kept open for as long as the server says it will
+ * keep them, from the timeout in its <code>Keep-Alive</code> header, but never
+ * longer than {@link #getMaxKeepAlive()}. If the server doesn't say, they are
+ * kept for {@link #getDefaultKeepAlive()}. You can also give every connection
+ * a hard time to live with {@link #DefaultHttpClientFactory(long, TimeUnit)}.
+ * <p>
+ * A background thread wakes up every {@link #getEvictionInterval()}
+ * milliseconds and closes connections which have expired, or which have sat
+ * unused for longer than {@link #getIdleTimeout()}. Those are the ones most
+ * likely to have been dropped by the server or a firewall in between. A
+ * server can still close a connection sooner than that, so a connection which
+ * has sat in the pool for longer than {@link #getStaleCheckThreshold()} is
+ * tested before it is handed out, and replaced if the server has closed it.
+ * A connection which was in use a moment ago is handed out straight away,
+ * without that blocking read. To test every connection on every lease, as
+ * HttpClient does by default, use {@link #setStaleCheckingEnabled(boolean)}.
+ * 
+ * <h3>Leaks</h3>
+ * 
+ * A response which is never read to the end or closed keeps its connection
+ * out of the pool for good, and once enough of them pile up every request
+ * waits for a connection that never comes. While you are hunting for one,
+ * {@link #setLeakDetectionThreshold(long)} makes the factory remember where
+ * each connection was taken, and log a warning with that stack trace for any
+ * connection that is held longer than the threshold. Recording the stack
+ * costs something on every request, so leave it off in production.
+ * 
+ * <h3>Sharing a pool</h3>
+ * 
+ * A factory made with
+ * {@link #DefaultHttpClientFactory(ConnectionPoolRegistry, URL...)} doesn't
+ * have a pool of its own, it borrows the one kept by a
+ * {@link ConnectionPoolRegistry}, so every connection to the same site reuses
+ * the same sockets. This is what {@link ResourceConnection} does unless you
+ * give it a factory. The credentials and the per request settings still
+ * belong to each factory; the limits, the idle timeout and the eviction
+ * interval are the registry's, and {@link #getPoolStats()},
+ * {@link #setLeakDetectionThreshold(long)} and
+ * {@link #setStaleCheckThreshold(long)} apply to the whole shared pool.
+ * {@link #shutter()} hands the pool back instead of closing it.
  *
  * @version $LastChangedRevision$ <br>
  *          $LastChangedDate$
@@ -70,26 +147,115 @@ import org.apache.http.params.HttpParams;
  */
 public class DefaultHttpClientFactory implements AbstractHttpClientFactory {
 
-	private ThreadSafeClientConnManager ccm;
+	private final InstrumentedConnManager ccm;
+	private final ConnectionPoolRegistry registry;
+	private final URL[] sites;
+	private boolean shuttered;
+	private final int connectTimeout;
+	private final int socketTimeout;
+	private final boolean tcpNoDelay;
+	private final int socketBufferSize;
+	private final int linger;
 	private String username;
+	private final Set<AuthScope> credentialScopes = new CopyOnWriteArraySet<AuthScope>();
 	private String password;
+	private volatile long idleTimeout = 30000;
+	private volatile long evictionInterval = 5000;
+	private volatile long defaultKeepAlive = 30000;
+	private volatile long maxKeepAlive = 120000;
+	private volatile boolean staleCheckingEnabled = false;
+	private volatile long staleCheckThreshold = 2000;
+	private volatile long leakDetectionThreshold = 0;
+	private final IdleConnectionEvictor evictor;
 	private Log log = LogFactory.getLog(DefaultHttpClientFactory.class);
 
+	/**
+	 * create a factory whose connections live as long as keep alive allows
+	 */
 	public DefaultHttpClientFactory() {
-		SchemeRegistry schemeRegistry = new SchemeRegistry();
-		schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory
-				.getSocketFactory()));
-		schemeRegistry.register(new Scheme("https", 443, SSLSocketFactory
-				.getSocketFactory()));
+		this(new Builder(), null, null);
+	}
+
+	/**
+	 * create a factory whose connections are closed after a fixed time, no
+	 * matter how busy they are. This is handy when the service sits behind a
+	 * load balancer, so new connections get spread over new servers.
+	 * 
+	 * @param connectionTTL
+	 *            how long a connection may live, or -1 for no limit
+	 * @param unit
+	 */
+	public DefaultHttpClientFactory(long connectionTTL, TimeUnit unit) {
+		this(new Builder().connectionTTL(connectionTTL, unit), null, null);
+	}
+
+	/**
+	 * create a factory which uses the connection pool kept by a registry,
+	 * instead of a pool of its own
+	 * 
+	 * @param registry
+	 * @param sites
+	 *            the sites the clients will connect to
+	 */
+	public DefaultHttpClientFactory(ConnectionPoolRegistry registry,
+			URL... sites) {
+		this(new Builder(), registry, sites);
+	}
+
+	private DefaultHttpClientFactory(Builder b,
+			ConnectionPoolRegistry registry, URL[] sites) {
+		this.connectTimeout = b.connectTimeout;
+		this.socketTimeout = b.socketTimeout;
+		this.tcpNoDelay = b.tcpNoDelay;
+		this.socketBufferSize = b.socketBufferSize;
+		this.linger = b.linger;
+		this.registry = registry;
+
+		if (registry != null) {
+			this.sites = sites.clone();
+			for (URL site : this.sites)
+				addCredentialSite(site);
+			this.ccm = registry.retain(this.sites);
+			this.evictor = null;
+			return;
+		}
+		this.sites = null;
 
 		// create a thread-safe pooled tcp connection manager
-		ccm = new ThreadSafeClientConnManager(schemeRegistry);
+		ccm = new InstrumentedConnManager(schemeRegistry(), b.connectionTTL,
+				TimeUnit.MILLISECONDS);
 
 		// bump up the maximum number of connections allowed
-		ccm.setMaxTotal(40);
-		ccm.setDefaultMaxPerRoute(40);
+		ccm.setMaxTotal(b.maxTotal);
+		ccm.setDefaultMaxPerRoute(b.maxPerRoute);
+		for (Map.Entry<HttpRoute, Integer> e : b.routes.entrySet())
+			ccm.setMaxForRoute(e.getKey(), e.getValue());
 
 		log.trace("ThreadSafeClientConnManager initialized");
+
+		evictor = new IdleConnectionEvictor(this);
+		evictor.start();
+	}
+
+	/**
+	 * @return the schemes our connection pools know how to connect with
+	 */
+	static SchemeRegistry schemeRegistry() {
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory
+				.getSocketFactory()));
+		schemeRegistry.register(new Scheme("https", 443, SSLSocketFactory
+				.getSocketFactory()));
+		return schemeRegistry;
+	}
+
+	/**
+	 * @return the route a connection pool files connections to site under
+	 */
+	static HttpRoute route(URL site) {
+		HttpHost host = new HttpHost(site.getHost(), site.getPort(), site
+				.getProtocol());
+		return new HttpRoute(host, null, "https".equals(site.getProtocol()));
 	}
 
 	@Override
@@ -102,25 +268,318 @@ public class DefaultHttpClientFactory implements AbstractHttpClientFactory {
 				HttpVersion.HTTP_1_1);
 		p.setParameter(CoreProtocolPNames.HTTP_CONTENT_CHARSET,
 				"UTF-8");
-		// connection timeout in 10 seconds, socket timeout in 30 seconds
-		p.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, new Integer(10000));
-		p.setParameter(CoreConnectionPNames.SO_TIMEOUT, new Integer(30000));
+		p.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
+				this.connectTimeout);
+		p.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, this.socketTimeout);
+		p.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY,
+				this.tcpNoDelay);
+		p.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE,
+				this.socketBufferSize);
+		p.setIntParameter(CoreConnectionPNames.SO_LINGER, this.linger);
+		p.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK,
+				this.staleCheckingEnabled);
+		c.setKeepAliveStrategy(keepAliveStrategy);
 		
-		// use the credentials if we have them
+		// use the credentials if we have them, and send them with the first
+		// request instead of waiting for a 401 challenge
 		if (this.username != null) {
-			c.getCredentialsProvider().setCredentials(
-					new AuthScope(site.getHost(), site.getPort()),
-					new UsernamePasswordCredentials(this.username,
-							this.password));
+			UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(
+					this.username, this.password);
+			List<AuthScope> scopes = new ArrayList<AuthScope>();
+			scopes.add(scope(site));
+			scopes.addAll(credentialScopes);
+			for (AuthScope scope : scopes)
+				c.getCredentialsProvider().setCredentials(scope, credentials);
+			c.addRequestInterceptor(new PreemptiveAuth(credentials, scopes), 0);
 		}
 
 		log.trace("HttpClient created.");
 		return c;
 	}
 
+	/**
+	 * close the pool, or if it is shared, let the registry know we are done
+	 * with it
+	 */
 	@Override
-	public void shutter() {
-		ccm.shutdown();
+	public synchronized void shutter() {
+		if (shuttered)
+			return;
+		shuttered = true;
+		if (registry != null) {
+			registry.release(sites);
+		} else {
+			evictor.shutdown();
+			ccm.shutdown();
+		}
+	}
+
+	/**
+	 * @return how long a connection may be held before it is reported as a
+	 *         leak, in milliseconds, or 0 if leaks aren't looked for
+	 */
+	public long getLeakDetectionThreshold() {
+		return leakDetectionThreshold;
+	}
+
+	/**
+	 * @param leakDetectionThreshold
+	 *            how long a connection may be held before it is reported as a
+	 *            leak, in milliseconds, or 0, the default, to not look for
+	 *            leaks. Leaks are looked for every
+	 *            {@link #getEvictionInterval()}.
+	 */
+	public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+		this.leakDetectionThreshold = leakDetectionThreshold;
+		ccm.setLeakThreshold(leakDetectionThreshold);
+	}
+
+	/**
+	 * @return how long a connection must sit in the pool before it is tested
+	 *         for staleness, in milliseconds, or -1 if it never is
+	 */
+	public long getStaleCheckThreshold() {
+		return staleCheckThreshold;
+	}
+
+	/**
+	 * @param staleCheckThreshold
+	 *            how long a connection must sit in the pool before it is
+	 *            tested for staleness when it is next handed out, in
+	 *            milliseconds, default 2 seconds, or -1 to never test
+	 */
+	public void setStaleCheckThreshold(long staleCheckThreshold) {
+		this.staleCheckThreshold = staleCheckThreshold;
+		ccm.setStaleCheckThreshold(staleCheckThreshold);
+	}
+
+	/**
+	 * @return how busy the connection pool is right now
+	 */
+	public PoolStats getPoolStats() {
+		return ccm.getStats();
+	}
+
+	/**
+	 * Send the username and password to this site too, as well as to the one
+	 * each client is made for. {@link ResourceConnection} does this for the
+	 * sites of its load balancers.
+	 * 
+	 * @param site
+	 */
+	public void addCredentialSite(URL site) {
+		credentialScopes.add(scope(site));
+	}
+
+	/**
+	 * @return the host and port of a site, which is what credentials are
+	 *         given for
+	 */
+	static AuthScope scope(URL site) {
+		int port = site.getPort() == -1 ? site.getDefaultPort() : site
+				.getPort();
+		return new AuthScope(site.getHost(), port);
+	}
+
+	/**
+	 * fills in basic authentication before the request goes out, the way
+	 * HttpClient would after a challenge, so the request is only sent once.
+	 * Only requests to the sites the credentials are meant for get them.
+	 */
+	private static class PreemptiveAuth implements HttpRequestInterceptor {
+		private final Credentials credentials;
+		private final List<AuthScope> scopes;
+
+		PreemptiveAuth(Credentials credentials, List<AuthScope> scopes) {
+			this.credentials = credentials;
+			this.scopes = scopes;
+		}
+
+		public void process(HttpRequest request, HttpContext context) {
+			HttpHost target = (HttpHost) context
+					.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+			if (target == null || !isFor(target))
+				return;
+			AuthState state = (AuthState) context
+					.getAttribute(ClientContext.TARGET_AUTH_STATE);
+			if (state != null && state.getAuthScheme() == null) {
+				state.setAuthScheme(new BasicScheme());
+				state.setCredentials(credentials);
+			}
+		}
+
+		boolean isFor(HttpHost target) {
+			int port = target.getPort();
+			if (port < 0)
+				port = "https".equalsIgnoreCase(target.getSchemeName()) ? 443
+						: 80;
+			return scopes.contains(new AuthScope(target.getHostName(), port));
+		}
+	}
+
+	/**
+	 * use the timeout from the Keep-Alive header, within our limits
+	 */
+	private final DefaultConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+			long duration = super.getKeepAliveDuration(response, context);
+			if (duration <= 0)
+				duration = defaultKeepAlive;
+			return Math.min(duration, maxKeepAlive);
+		}
+	};
+
+	/**
+	 * closes expired and idle connections in the background. It only holds
+	 * on to the factory weakly, so a factory which is dropped without being
+	 * shuttered doesn't keep the thread, and through it the pool, alive.
+	 */
+	private static class IdleConnectionEvictor extends Thread {
+		private final WeakReference<DefaultHttpClientFactory> factory;
+		private volatile boolean shutdown;
+
+		IdleConnectionEvictor(DefaultHttpClientFactory factory) {
+			super("jactiveresource-evictor");
+			setDaemon(true);
+			this.factory = new WeakReference<DefaultHttpClientFactory>(
+					factory);
+		}
+
+		@Override
+		public void run() {
+			try {
+				long interval;
+				while (!shutdown && (interval = interval()) > 0) {
+					synchronized (this) {
+						wait(interval);
+					}
+					if (shutdown || !evict())
+						break;
+				}
+			} catch (InterruptedException e) {
+				// time to go
+			}
+			LogFactory.getLog(DefaultHttpClientFactory.class).trace(
+					"idle connection evictor stopped");
+		}
+
+		/**
+		 * @return how long to wait before the next look, or 0 if the factory
+		 *         is gone
+		 */
+		private long interval() {
+			DefaultHttpClientFactory f = factory.get();
+			return f == null ? 0 : f.evictionInterval;
+		}
+
+		/**
+		 * @return false if the factory is gone
+		 */
+		private boolean evict() {
+			DefaultHttpClientFactory f = factory.get();
+			if (f == null)
+				return false;
+			f.ccm.evict(f.idleTimeout, TimeUnit.MILLISECONDS);
+			return true;
+		}
+
+		void shutdown() {
+			shutdown = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return how long a connection may sit unused in the pool before it is
+	 *         closed, in milliseconds
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            how long a connection may sit unused in the pool before it
+	 *            is closed, in milliseconds, default 30 seconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return how often idle and expired connections are looked for, in
+	 *         milliseconds
+	 */
+	public long getEvictionInterval() {
+		return evictionInterval;
+	}
+
+	/**
+	 * @param evictionInterval
+	 *            how often idle and expired connections are looked for, in
+	 *            milliseconds, default 5 seconds. Takes effect after the next
+	 *            look.
+	 */
+	public void setEvictionInterval(long evictionInterval) {
+		if (evictionInterval <= 0)
+			throw new IllegalArgumentException(
+					"eviction interval must be positive");
+		this.evictionInterval = evictionInterval;
+	}
+
+	/**
+	 * @return how long to keep a connection when the server doesn't say, in
+	 *         milliseconds
+	 */
+	public long getDefaultKeepAlive() {
+		return defaultKeepAlive;
+	}
+
+	/**
+	 * @param defaultKeepAlive
+	 *            how long to keep a connection when the server doesn't say,
+	 *            in milliseconds, default 30 seconds
+	 */
+	public void setDefaultKeepAlive(long defaultKeepAlive) {
+		this.defaultKeepAlive = defaultKeepAlive;
+	}
+
+	/**
+	 * @return the longest a connection is kept, whatever the server says, in
+	 *         milliseconds
+	 */
+	public long getMaxKeepAlive() {
+		return maxKeepAlive;
+	}
+
+	/**
+	 * @param maxKeepAlive
+	 *            the longest a connection is kept, whatever the server says,
+	 *            in milliseconds, default 2 minutes
+	 */
+	public void setMaxKeepAlive(long maxKeepAlive) {
+		this.maxKeepAlive = maxKeepAlive;
+	}
+
+	/**
+	 * @return true if every connection is tested before it is reused
+	 */
+	public boolean isStaleCheckingEnabled() {
+		return staleCheckingEnabled;
+	}
+
+	/**
+	 * @param staleCheckingEnabled
+	 *            test every connection before it is reused, however briefly
+	 *            it was idle, default false. Applies to clients created after
+	 *            this is set.
+	 */
+	public void setStaleCheckingEnabled(boolean staleCheckingEnabled) {
+		this.staleCheckingEnabled = staleCheckingEnabled;
 	}
 	
 	/**
@@ -157,4 +616,111 @@ public class DefaultHttpClientFactory implements AbstractHttpClientFactory {
 		this.password = password;
 	}
 
+	/**
+	 * Collects the settings for a {@link DefaultHttpClientFactory}. Anything
+	 * you don't set keeps the default described on that class.
+	 */
+	public static class Builder {
+		private int maxTotal = 40;
+		private int maxPerRoute = 40;
+		private final Map<HttpRoute, Integer> routes = new HashMap<HttpRoute, Integer>();
+		private int connectTimeout = 10000;
+		private int socketTimeout = 30000;
+		private boolean tcpNoDelay = true;
+		private int socketBufferSize = 8192;
+		private int linger = -1;
+		private long connectionTTL = -1;
+
+		/**
+		 * @param maxTotal
+		 *            the most connections open at once, to all sites
+		 */
+		public Builder maxTotal(int maxTotal) {
+			this.maxTotal = maxTotal;
+			return this;
+		}
+
+		/**
+		 * @param maxPerRoute
+		 *            the most connections open at once to any one site
+		 */
+		public Builder maxPerRoute(int maxPerRoute) {
+			this.maxPerRoute = maxPerRoute;
+			return this;
+		}
+
+		/**
+		 * @param site
+		 * @param max
+		 *            the most connections open at once to this site
+		 */
+		public Builder maxPerRoute(URL site, int max) {
+			routes.put(route(site), max);
+			return this;
+		}
+
+		/**
+		 * @param connectTimeout
+		 *            how long to wait for a TCP connection, in milliseconds
+		 */
+		public Builder connectTimeout(int connectTimeout) {
+			this.connectTimeout = connectTimeout;
+			return this;
+		}
+
+		/**
+		 * @param socketTimeout
+		 *            how long to wait for data on a connection, in
+		 *            milliseconds
+		 */
+		public Builder socketTimeout(int socketTimeout) {
+			this.socketTimeout = socketTimeout;
+			return this;
+		}
+
+		/**
+		 * @param tcpNoDelay
+		 *            send small packets right away instead of waiting to fill
+		 *            them, default true
+		 */
+		public Builder tcpNoDelay(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+			return this;
+		}
+
+		/**
+		 * @param socketBufferSize
+		 *            the size of the buffers used to read and write a
+		 *            connection, in bytes, default 8192
+		 */
+		public Builder socketBufferSize(int socketBufferSize) {
+			this.socketBufferSize = socketBufferSize;
+			return this;
+		}
+
+		/**
+		 * @param linger
+		 *            how long closing a connection waits for unsent data, in
+		 *            seconds, or -1, the default, to use the system's setting
+		 */
+		public Builder linger(int linger) {
+			this.linger = linger;
+			return this;
+		}
+
+		/**
+		 * @param connectionTTL
+		 *            how long a connection may live, or -1 for no limit
+		 * @param unit
+		 */
+		public Builder connectionTTL(long connectionTTL, TimeUnit unit) {
+			this.connectionTTL = connectionTTL < 0 ? -1 : unit
+					.toMillis(connectionTTL);
+			return this;
+		}
+
+		public DefaultHttpClientFactory build() {
+			return new DefaultHttpClientFactory(this, null, null);
+		}
+	}
 }
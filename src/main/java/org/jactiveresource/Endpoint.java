@@ -0,0 +1,199 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the sites a {@link LoadBalancer} spreads requests over, and what the
+ * balancer has learned about it from the requests it has sent there.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class Endpoint {
+
+	// weight of the newest sample in the moving average of latency
+	private static final double DECAY = 0.1;
+	// how quickly the latency of an endpoint nobody uses is forgotten
+	private static final double FORGET_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private final URL site;
+	private final String prefix;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	// guarded by this
+	private double latency;
+	private long samples;
+	private long lastSample;
+	private int consecutiveFailures;
+	private int ejections;
+	private long ejectedUntil;
+
+	Endpoint(URL site) {
+		this.site = site;
+		String s = site.toString();
+		this.prefix = s.endsWith("/") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	/**
+	 * @return the site requests are sent to
+	 */
+	public URL getSite() {
+		return site;
+	}
+
+	/**
+	 * @return the number of requests sent here which haven't been answered
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return the number of requests sent here
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of requests sent here which failed
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return a moving average of how long this site takes to answer, in
+	 *         milliseconds
+	 */
+	public synchronized double getLatency() {
+		return latency / 1000000.0;
+	}
+
+	/**
+	 * @return true if this site isn't getting requests because it has been
+	 *         failing or slow
+	 */
+	public synchronized boolean isEjected() {
+		return ejectedUntil != 0 && System.nanoTime() - ejectedUntil < 0;
+	}
+
+	/**
+	 * the url of a request sent to site, pointed at this endpoint instead
+	 */
+	String resolve(URL site, String uri) {
+		String s = site.toString();
+		if (s.endsWith("/"))
+			s = s.substring(0, s.length() - 1);
+		if (uri.startsWith(s))
+			return prefix + uri.substring(s.length());
+		return uri;
+	}
+
+	void start() {
+		outstanding.incrementAndGet();
+		requests.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of latencies sampled so far
+	 */
+	synchronized long succeeded(long nanos) {
+		outstanding.decrementAndGet();
+		consecutiveFailures = 0;
+		ejections = 0;
+		latency = samples == 0 ? nanos : latency + DECAY * (nanos - latency);
+		lastSample = System.nanoTime();
+		return ++samples;
+	}
+
+	/**
+	 * @return the number of failures in a row
+	 */
+	synchronized int failed() {
+		outstanding.decrementAndGet();
+		failures.incrementAndGet();
+		return ++consecutiveFailures;
+	}
+
+	void ignored() {
+		outstanding.decrementAndGet();
+	}
+
+	/**
+	 * take this endpoint out of rotation, for longer each time it happens
+	 * without a success in between
+	 */
+	synchronized void eject(long base, long max) {
+		long time = Math.min(max, base << Math.min(ejections, 20));
+		ejections++;
+		consecutiveFailures = 0;
+		// start afresh when it comes back
+		samples = 0;
+		ejectedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time);
+	}
+
+	/**
+	 * @return the cost the selectors compare, lower is better. The latency
+	 *         fades the longer it has been since the last sample, so an
+	 *         endpoint which lost out once gets tried again.
+	 */
+	synchronized double cost() {
+		double age = System.nanoTime() - lastSample;
+		double l = latency * Math.exp(-age / FORGET_NANOS);
+		return (outstanding.get() + 1) * Math.max(l, 1);
+	}
+
+	synchronized long samples() {
+		return samples;
+	}
+
+	synchronized double latencyNanos() {
+		return latency;
+	}
+
+	public String toString() {
+		return site + " outstanding=" + getOutstanding() + " requests="
+				+ getRequests() + " failures=" + getFailures() + " latency="
+				+ getLatency() + " ejected=" + isEjected();
+	}
+}
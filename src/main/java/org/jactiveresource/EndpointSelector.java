@@ -0,0 +1,116 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which {@link Endpoint} of a {@link LoadBalancer} gets the next
+ * request. Three are supplied:
+ * <ul>
+ * <li>{@link RoundRobin} - each in turn</li>
+ * <li>{@link LeastOutstanding} - the one with the fewest requests in flight</li>
+ * <li>{@link PowerOfTwoChoices} - the better of two picked at random, judged
+ * by requests in flight and recent latency</li>
+ * </ul>
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public interface EndpointSelector {
+
+	/**
+	 * @param endpoints
+	 *            the endpoints which are in rotation, never empty
+	 * @return one of them
+	 */
+	Endpoint select(List<Endpoint> endpoints);
+
+	/**
+	 * each endpoint in turn
+	 */
+	public static class RoundRobin implements EndpointSelector {
+		private final AtomicInteger next = new AtomicInteger();
+
+		public Endpoint select(List<Endpoint> endpoints) {
+			int i = next.getAndIncrement() & Integer.MAX_VALUE;
+			return endpoints.get(i % endpoints.size());
+		}
+	}
+
+	/**
+	 * the endpoint with the fewest requests in flight. Ties go to whichever
+	 * comes first counting from a random place, so that they are spread out.
+	 */
+	public static class LeastOutstanding implements EndpointSelector {
+		private final Random random = new Random();
+
+		public Endpoint select(List<Endpoint> endpoints) {
+			int n = endpoints.size();
+			int start = random.nextInt(n);
+			Endpoint best = null;
+			for (int i = 0; i < n; i++) {
+				Endpoint e = endpoints.get((start + i) % n);
+				if (best == null || e.getOutstanding() < best.getOutstanding())
+					best = e;
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * the better of two endpoints picked at random, where better means fewer
+	 * requests in flight times a lower recent latency. This keeps load off
+	 * slow endpoints without every client piling onto the same fast one.
+	 */
+	public static class PowerOfTwoChoices implements EndpointSelector {
+		private final Random random = new Random();
+
+		public Endpoint select(List<Endpoint> endpoints) {
+			int n = endpoints.size();
+			if (n == 1)
+				return endpoints.get(0);
+			int a = random.nextInt(n);
+			int b = random.nextInt(n - 1);
+			if (b >= a)
+				b++;
+			Endpoint x = endpoints.get(a);
+			Endpoint y = endpoints.get(b);
+			return x.cost() <= y.cost() ? x : y;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Maps keys onto a fixed set of nodes by consistent hashing, so that adding or
+ * removing a node only moves the keys which belong to it, about one in n of
+ * them, instead of reshuffling everything.
+ * 
+ * <code>
+ * <pre>
+ * Map&lt;String, String&gt; nodes = new LinkedHashMap&lt;String, String&gt;();
+ * nodes.put("east", "http://east:3000");
+ * nodes.put("west", "http://west:3000");
+ * HashRing&lt;String&gt; ring = new HashRing&lt;String&gt;(nodes);
+ * String site = ring.get("42");
+ * </pre>
+ * </code>
+ * 
+ * Each node is placed on the ring many times, at the MD5 hashes of its name
+ * and a counter, so the keys are spread evenly even with only a few nodes. A
+ * key belongs to the first node at or after its own hash. Since only the
+ * names are hashed, the same names always give the same mapping, whatever
+ * order they are given in and whichever JVM does the hashing.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class HashRing<N> {
+
+	private final SortedMap<Long, N> ring = new TreeMap<Long, N>();
+	private final Map<String, N> nodes;
+
+	/**
+	 * put each node on the ring 160 times
+	 * 
+	 * @param nodes
+	 *            the nodes, by name
+	 */
+	public HashRing(Map<String, ? extends N> nodes) {
+		this(nodes, 160);
+	}
+
+	/**
+	 * @param nodes
+	 *            the nodes, by name
+	 * @param virtualNodes
+	 *            how many times to put each node on the ring
+	 */
+	public HashRing(Map<String, ? extends N> nodes, int virtualNodes) {
+		if (nodes.isEmpty())
+			throw new IllegalArgumentException("a ring needs at least one node");
+		if (virtualNodes < 1)
+			throw new IllegalArgumentException(
+					"virtual nodes must be at least 1");
+		this.nodes = Collections.unmodifiableMap(new LinkedHashMap<String, N>(
+				nodes));
+		for (Map.Entry<String, ? extends N> e : nodes.entrySet())
+			for (int i = 0; i < virtualNodes; i++)
+				ring.put(hash(e.getKey() + "#" + i), e.getValue());
+	}
+
+	/**
+	 * @param key
+	 * @return the node key belongs to
+	 */
+	public N get(String key) {
+		SortedMap<Long, N> tail = ring.tailMap(hash(key));
+		return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail
+				.firstKey());
+	}
+
+	/**
+	 * @return the nodes, by name
+	 */
+	public Map<String, N> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * the first 8 bytes of the MD5 of s
+	 */
+	static long hash(String s) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(
+					s.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		long h = 0;
+		for (int i = 0; i < 8; i++)
+			h = (h << 8) | (digest[i] & 0xff);
+		return h;
+	}
+}
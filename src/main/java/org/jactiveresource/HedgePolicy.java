@@ -0,0 +1,269 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when a {@link ResourceConnection} sends a second copy of a slow GET.
+ * Attach one with {@link ResourceConnection#setHedgePolicy(HedgePolicy)}.
+ * 
+ * <code>
+ * <pre>
+ * HedgePolicy hedge = new HedgePolicy();
+ * hedge.setPercentile(0.9);
+ * c.setHedgePolicy(hedge);
+ * </pre>
+ * </code>
+ * 
+ * The policy keeps the latencies of the most recent GETs. Once it has seen
+ * {@link #getMinSamples()} of them, a GET which hasn't been answered within
+ * the given percentile of those latencies gets a twin. Whichever answers first
+ * is used, and the other is aborted so its connection is freed. The latency
+ * of a hedged GET is counted from when the first copy was sent, and a first
+ * copy which lost counts with the time it had taken when it was aborted, so
+ * hedging doesn't make the service look faster than it is.
+ * <p>
+ * Hedges are limited by a budget, so that a slow service doesn't get twice
+ * the load. Every GET adds {@link #getBudgetRatio()} of a token, up to
+ * {@link #getBudgetBurst()} tokens, and every hedge spends a whole one. With
+ * the defaults at most 5% of GETs are hedged once the first burst is spent.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class HedgePolicy {
+
+	// the budget is kept in thousandths of a token
+	private static final long TOKEN = 1000;
+	// how often the percentile is worked out again
+	private static final int RECOMPUTE_EVERY = 50;
+
+	private final AtomicLongArray samples;
+	private final AtomicInteger count = new AtomicInteger();
+	private volatile long delayNanos = -1;
+
+	private volatile double percentile = 0.95;
+	private volatile int minSamples = 20;
+	private volatile long minDelay = 1;
+	private volatile double budgetRatio = 0.05;
+	private volatile int budgetBurst = 10;
+	private final AtomicLong budget = new AtomicLong(budgetBurst * TOKEN);
+
+	/**
+	 * keep the latencies of the last 1000 GETs
+	 */
+	public HedgePolicy() {
+		this(1000);
+	}
+
+	/**
+	 * @param window
+	 *            how many recent latencies to keep
+	 */
+	public HedgePolicy(int window) {
+		this.samples = new AtomicLongArray(window);
+	}
+
+	/**
+	 * note how long a GET took, and add to the hedge budget
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		sample(nanos);
+
+		long add = (long) (budgetRatio * TOKEN);
+		long max = budgetBurst * TOKEN;
+		long current, next;
+		do {
+			current = budget.get();
+			next = Math.min(max, current + add);
+		} while (current != next && !budget.compareAndSet(current, next));
+	}
+
+	/**
+	 * note that a GET which lost a hedge had been going for this long when it
+	 * was aborted. Its real latency is longer, so this only counts if it is
+	 * already past the point where a GET would be hedged. It doesn't add to
+	 * the budget, the winner already did.
+	 * 
+	 * @param nanos
+	 */
+	public void recordCensored(long nanos) {
+		long delay = delayNanos;
+		if (delay < 0 || nanos < delay)
+			return;
+		sample(nanos);
+	}
+
+	private void sample(long nanos) {
+		int n = count.getAndIncrement();
+		samples.set((n & Integer.MAX_VALUE) % samples.length(), nanos);
+		if (n % RECOMPUTE_EVERY == 0 || n < minSamples)
+			recompute(n + 1);
+	}
+
+	private void recompute(int seen) {
+		if (seen < minSamples) {
+			delayNanos = -1;
+			return;
+		}
+		int n = Math.min(seen, samples.length());
+		long[] sorted = new long[n];
+		for (int i = 0; i < n; i++)
+			sorted[i] = samples.get(i);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * n) - 1;
+		delayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(minDelay),
+				sorted[Math.max(0, Math.min(index, n - 1))]);
+	}
+
+	/**
+	 * @return how many nanoseconds to wait before hedging, or -1 if there
+	 *         aren't enough samples yet
+	 */
+	public long getDelayNanos() {
+		return delayNanos;
+	}
+
+	/**
+	 * spend a token from the budget if there is one
+	 * 
+	 * @return true if a hedge may be sent
+	 */
+	public boolean tryHedge() {
+		long current;
+		do {
+			current = budget.get();
+			if (current < TOKEN)
+				return false;
+		} while (!budget.compareAndSet(current, current - TOKEN));
+		return true;
+	}
+
+	/**
+	 * @return the percentile of recent latencies after which a GET is hedged
+	 */
+	public double getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile of recent latencies after which a GET is
+	 *            hedged, between 0 and 1, default 0.95
+	 */
+	public void setPercentile(double percentile) {
+		if (percentile <= 0 || percentile > 1)
+			throw new IllegalArgumentException("percentile must be in (0,1]");
+		this.percentile = percentile;
+	}
+
+	/**
+	 * @return how many latencies must be seen before anything is hedged
+	 */
+	public int getMinSamples() {
+		return minSamples;
+	}
+
+	/**
+	 * @param minSamples
+	 *            how many latencies must be seen before anything is hedged,
+	 *            default 20
+	 */
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * @return the shortest wait before hedging, in milliseconds
+	 */
+	public long getMinDelay() {
+		return minDelay;
+	}
+
+	/**
+	 * @param minDelay
+	 *            the shortest wait before hedging, in milliseconds, default 1
+	 */
+	public void setMinDelay(long minDelay) {
+		this.minDelay = minDelay;
+	}
+
+	/**
+	 * @return the fraction of a hedge each GET adds to the budget
+	 */
+	public double getBudgetRatio() {
+		return budgetRatio;
+	}
+
+	/**
+	 * @param budgetRatio
+	 *            the fraction of a hedge each GET adds to the budget, default
+	 *            0.05
+	 */
+	public void setBudgetRatio(double budgetRatio) {
+		this.budgetRatio = budgetRatio;
+	}
+
+	/**
+	 * @return the most hedges the budget can save up
+	 */
+	public int getBudgetBurst() {
+		return budgetBurst;
+	}
+
+	/**
+	 * @param budgetBurst
+	 *            the most hedges the budget can save up, default 10. The
+	 *            budget grows or shrinks by the difference straight away, so
+	 *            a new policy starts out with the whole burst.
+	 */
+	public synchronized void setBudgetBurst(int budgetBurst) {
+		long delta = (budgetBurst - this.budgetBurst) * TOKEN;
+		long max = budgetBurst * TOKEN;
+		this.budgetBurst = budgetBurst;
+		long current, next;
+		do {
+			current = budget.get();
+			next = Math.max(0, Math.min(max, current + delta));
+		} while (!budget.compareAndSet(current, next));
+	}
+}
@@ -0,0 +1,260 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.params.ConnPerRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.BasicPoolEntry;
+import org.apache.http.impl.conn.tsccm.ConnPoolByRoute;
+import org.apache.http.impl.conn.tsccm.RouteSpecificPool;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+
+/**
+ * a ThreadSafeClientConnManager which keeps count of what it hands out, so
+ * {@link DefaultHttpClientFactory#getPoolStats()} has something to report.
+ * With leak detection on it also remembers who took each connection, so it
+ * can point at whoever hangs on to one too long.
+ * <p>
+ * It also tests connections for staleness, but only ones which have sat in
+ * the pool for longer than the stale check threshold, rather than every one
+ * on every lease. The pool already notes when each connection came back, so
+ * it passes that along to the thread which takes it out again.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+class InstrumentedConnManager extends ThreadSafeClientConnManager {
+
+	private final ConcurrentMap<ManagedClientConnection, Lease> leased = new ConcurrentHashMap<ManagedClientConnection, Lease>();
+	private volatile long leakThreshold;
+	private volatile long staleCheckThreshold = 2000;
+	private Log log = LogFactory.getLog(InstrumentedConnManager.class);
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong leases = new AtomicLong();
+	private final AtomicLong leaseWaitNanos = new AtomicLong();
+
+	InstrumentedConnManager(SchemeRegistry schemeRegistry, long connectionTTL,
+			TimeUnit unit) {
+		super(schemeRegistry, connectionTTL, unit);
+	}
+
+	@Override
+	protected ConnPoolByRoute createConnectionPool(long connTTL,
+			TimeUnit connTTLTimeUnit) {
+		return new IdlePool(connOperator, connPerRoute, 20, connTTL,
+				connTTLTimeUnit);
+	}
+
+	@Override
+	public ClientConnectionRequest requestConnection(HttpRoute route,
+			Object state) {
+		final ClientConnectionRequest request = super.requestConnection(
+				route, state);
+		return new ClientConnectionRequest() {
+			public ManagedClientConnection getConnection(long timeout,
+					TimeUnit unit) throws InterruptedException,
+					ConnectionPoolTimeoutException {
+				pending.incrementAndGet();
+				long start = System.nanoTime();
+				IdlePool idle = (IdlePool) pool;
+				idle.forget();
+				try {
+					ManagedClientConnection c = request.getConnection(
+							timeout, unit);
+					checkStale(c, idle.idleFor());
+					leased.put(c, new Lease(leakThreshold > 0));
+					leases.incrementAndGet();
+					return c;
+				} finally {
+					leaseWaitNanos.addAndGet(System.nanoTime() - start);
+					pending.decrementAndGet();
+				}
+			}
+
+			public void abortRequest() {
+				request.abortRequest();
+			}
+		};
+	}
+
+	@Override
+	public void releaseConnection(ManagedClientConnection conn,
+			long validDuration, TimeUnit timeUnit) {
+		try {
+			super.releaseConnection(conn, validDuration, timeUnit);
+		} finally {
+			leased.remove(conn);
+		}
+	}
+
+	/**
+	 * close a connection which has been idle longer than the stale check
+	 * threshold and has been closed at the other end, so the client opens a
+	 * fresh one instead
+	 */
+	private void checkStale(ManagedClientConnection c, long idle) {
+		long threshold = staleCheckThreshold;
+		if (idle < 0 || threshold < 0 || idle < threshold || !c.isOpen())
+			return;
+		if (c.isStale()) {
+			log.trace("closing stale connection to " + c.getRoute());
+			try {
+				c.close();
+			} catch (IOException e) {
+				log.trace("error closing stale connection", e);
+			}
+		}
+	}
+
+	/**
+	 * a pool which remembers, for the thread leasing, how long the connection
+	 * it was given had been sitting free
+	 */
+	private static class IdlePool extends ConnPoolByRoute {
+		private final ThreadLocal<Long> idle = new ThreadLocal<Long>();
+
+		IdlePool(ClientConnectionOperator operator, ConnPerRoute connPerRoute,
+				int maxTotalConnections, long connTTL, TimeUnit connTTLTimeUnit) {
+			super(operator, connPerRoute, maxTotalConnections, connTTL,
+					connTTLTimeUnit);
+		}
+
+		@Override
+		protected BasicPoolEntry getFreeEntry(RouteSpecificPool rospl,
+				Object state) {
+			BasicPoolEntry entry = super.getFreeEntry(rospl, state);
+			if (entry != null)
+				idle.set(System.currentTimeMillis() - entry.getUpdated());
+			return entry;
+		}
+
+		void forget() {
+			idle.remove();
+		}
+
+		/**
+		 * @return milliseconds the last connection this thread leased had
+		 *         been free, or -1 if it was a new one
+		 */
+		long idleFor() {
+			Long t = idle.get();
+			idle.remove();
+			return t == null ? -1 : t;
+		}
+	}
+
+	/**
+	 * where and when a connection was handed out
+	 */
+	private static class Lease {
+		final long start = System.nanoTime();
+		final Throwable site;
+		volatile boolean reported;
+
+		Lease(boolean recordSite) {
+			this.site = recordSite ? new Throwable("connection leased here")
+					: null;
+		}
+	}
+
+	/**
+	 * @param leakThreshold
+	 *            how long a connection may be held before it is reported as a
+	 *            leak, in milliseconds, or 0 to not look for leaks
+	 */
+	void setLeakThreshold(long leakThreshold) {
+		this.leakThreshold = leakThreshold;
+	}
+
+	/**
+	 * @param staleCheckThreshold
+	 *            how long a connection must have been idle before it is tested
+	 *            for staleness when leased, in milliseconds, or -1 to never
+	 *            test
+	 */
+	void setStaleCheckThreshold(long staleCheckThreshold) {
+		this.staleCheckThreshold = staleCheckThreshold;
+	}
+
+	/**
+	 * close connections which have expired or sat unused for longer than
+	 * idleTimeout, and report leaks if we are looking for them
+	 */
+	void evict(long idleTimeout, TimeUnit unit) {
+		closeExpiredConnections();
+		closeIdleConnections(idleTimeout, unit);
+		long threshold = leakThreshold;
+		if (threshold > 0)
+			reportLeaks(threshold, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * log a warning, once, for every connection which has been out of the
+	 * pool longer than threshold
+	 */
+	private void reportLeaks(long threshold, TimeUnit unit) {
+		long now = System.nanoTime();
+		long limit = unit.toNanos(threshold);
+		for (Lease l : leased.values()) {
+			if (l.site == null || l.reported || now - l.start < limit)
+				continue;
+			l.reported = true;
+			log.warn("connection not returned to the pool after "
+					+ TimeUnit.NANOSECONDS.toMillis(now - l.start)
+					+ "ms, was the response closed?", l.site);
+		}
+	}
+
+	PoolStats getStats() {
+		int l = leased.size();
+		return new PoolStats(l, Math.max(0, getConnectionsInPool() - l),
+				pending.get(), getMaxTotal(), leases.get(), leaseWaitNanos
+						.get());
+	}
+}
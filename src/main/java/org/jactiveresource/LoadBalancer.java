@@ -0,0 +1,297 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Spreads the requests of a {@link ResourceConnection} over several sites
+ * serving the same resources, like a handful of replicas of a Rails app,
+ * without a load balancer in between.
+ * 
+ * <code>
+ * <pre>
+ * LoadBalancer lb = new LoadBalancer("http://app1:3000", "http://app2:3000",
+ *         "http://app3:3000");
+ * lb.setSelector(new EndpointSelector.PowerOfTwoChoices());
+ * ResourceConnection c = new ResourceConnection(lb);
+ * </pre>
+ * </code>
+ * 
+ * Every attempt at a request picks an endpoint with the
+ * {@link EndpointSelector}, round robin unless you set another one, so a
+ * retry or a hedge usually goes to a different site than the first try. All
+ * the endpoints share the connection pool of the connection's
+ * HttpClientFactory, which keeps a separate route, and separate limits, for
+ * each of them.
+ * <p>
+ * The balancer watches how each endpoint does. One which fails
+ * {@link #getFailureThreshold()} requests in a row, by an I/O error or a 5xx
+ * status, is ejected: it gets no requests for {@link #getEjectionTime()}
+ * milliseconds, twice as long each time it is ejected again without a success
+ * in between, up to {@link #getMaxEjectionTime()}. One whose average latency
+ * grows to {@link #getSlowRatio()} times the median of the others is ejected
+ * the same way. No more than {@link #getMaxEjectedPercent()} of the endpoints
+ * are ejected at once, and if every endpoint somehow is, requests go to all of
+ * them anyway.
+ * <p>
+ * A {@link ConcurrencyLimiter} set on the connection is copied for each
+ * endpoint, so each site gets a limit of its own. A {@link CircuitBreaker} is
+ * not: it counts the failures of all the endpoints together, so it only
+ * opens when they are failing together.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class LoadBalancer {
+
+	// how many latencies an endpoint needs before it can be called slow
+	private static final int MIN_SAMPLES = 20;
+
+	private final List<Endpoint> endpoints;
+	private volatile EndpointSelector selector = new EndpointSelector.RoundRobin();
+	private volatile int failureThreshold = 5;
+	private volatile long ejectionTime = 10000;
+	private volatile long maxEjectionTime = 300000;
+	private volatile double slowRatio = 5;
+	private volatile int maxEjectedPercent = 50;
+
+	private Log log = LogFactory.getLog(LoadBalancer.class);
+
+	/**
+	 * @param sites
+	 *            the sites to send requests to
+	 */
+	public LoadBalancer(List<URL> sites) {
+		if (sites.isEmpty())
+			throw new IllegalArgumentException("no sites to balance over");
+		List<Endpoint> l = new ArrayList<Endpoint>(sites.size());
+		for (URL site : sites)
+			l.add(new Endpoint(site));
+		this.endpoints = Collections.unmodifiableList(l);
+	}
+
+	/**
+	 * @param sites
+	 *            the sites to send requests to
+	 * @throws MalformedURLException
+	 */
+	public LoadBalancer(String... sites) throws MalformedURLException {
+		this(toURLs(sites));
+	}
+
+	private static List<URL> toURLs(String[] sites)
+			throws MalformedURLException {
+		URL[] urls = new URL[sites.length];
+		for (int i = 0; i < sites.length; i++)
+			urls[i] = new URL(sites[i]);
+		return Arrays.asList(urls);
+	}
+
+	/**
+	 * @return all the endpoints, ejected or not
+	 */
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * pick the endpoint for the next attempt at a request
+	 */
+	Endpoint select() {
+		List<Endpoint> available = new ArrayList<Endpoint>(endpoints.size());
+		for (Endpoint e : endpoints)
+			if (!e.isEjected())
+				available.add(e);
+		Endpoint e = selector.select(available.isEmpty() ? endpoints
+				: available);
+		e.start();
+		return e;
+	}
+
+	void onSuccess(Endpoint e, long nanos) {
+		if (e.succeeded(nanos) < MIN_SAMPLES || endpoints.size() < 2)
+			return;
+		double median = medianLatency(e);
+		if (median > 0 && e.latencyNanos() > slowRatio * median)
+			eject(e, "slow");
+	}
+
+	void onFailure(Endpoint e) {
+		if (e.failed() >= failureThreshold)
+			eject(e, "failing");
+	}
+
+	void onIgnored(Endpoint e) {
+		e.ignored();
+	}
+
+	/**
+	 * the median latency of the other endpoints in rotation
+	 */
+	private double medianLatency(Endpoint except) {
+		List<Double> l = new ArrayList<Double>(endpoints.size());
+		for (Endpoint e : endpoints)
+			if (e != except && !e.isEjected() && e.samples() > 0)
+				l.add(e.latencyNanos());
+		if (l.isEmpty())
+			return 0;
+		Collections.sort(l);
+		return l.get(l.size() / 2);
+	}
+
+	private void eject(Endpoint e, String why) {
+		if (e.isEjected())
+			return;
+		int ejected = 0;
+		for (Endpoint x : endpoints)
+			if (x.isEjected())
+				ejected++;
+		if ((ejected + 1) * 100 > endpoints.size() * maxEjectedPercent)
+			return;
+		e.eject(ejectionTime, maxEjectionTime);
+		log.warn("ejected " + why + " endpoint " + e);
+	}
+
+	/**
+	 * @return what picks the endpoint for each request
+	 */
+	public EndpointSelector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @param selector
+	 *            what picks the endpoint for each request, default
+	 *            {@link EndpointSelector.RoundRobin}
+	 */
+	public void setSelector(EndpointSelector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * @return how many failures in a row get an endpoint ejected
+	 */
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            how many failures in a row get an endpoint ejected, default
+	 *            5
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * @return how long an endpoint is ejected the first time, in milliseconds
+	 */
+	public long getEjectionTime() {
+		return ejectionTime;
+	}
+
+	/**
+	 * @param ejectionTime
+	 *            how long an endpoint is ejected the first time, in
+	 *            milliseconds, default 10 seconds
+	 */
+	public void setEjectionTime(long ejectionTime) {
+		this.ejectionTime = ejectionTime;
+	}
+
+	/**
+	 * @return the longest an endpoint is ejected, in milliseconds
+	 */
+	public long getMaxEjectionTime() {
+		return maxEjectionTime;
+	}
+
+	/**
+	 * @param maxEjectionTime
+	 *            the longest an endpoint is ejected, in milliseconds, default
+	 *            5 minutes
+	 */
+	public void setMaxEjectionTime(long maxEjectionTime) {
+		this.maxEjectionTime = maxEjectionTime;
+	}
+
+	/**
+	 * @return how many times slower than the median an endpoint may get before
+	 *         it is ejected
+	 */
+	public double getSlowRatio() {
+		return slowRatio;
+	}
+
+	/**
+	 * @param slowRatio
+	 *            how many times slower than the median an endpoint may get
+	 *            before it is ejected, default 5
+	 */
+	public void setSlowRatio(double slowRatio) {
+		this.slowRatio = slowRatio;
+	}
+
+	/**
+	 * @return the largest share of endpoints which may be ejected at once, in
+	 *         percent
+	 */
+	public int getMaxEjectedPercent() {
+		return maxEjectedPercent;
+	}
+
+	/**
+	 * @param maxEjectedPercent
+	 *            the largest share of endpoints which may be ejected at once,
+	 *            in percent, default 50
+	 */
+	public void setMaxEjectedPercent(int maxEjectedPercent) {
+		this.maxEjectedPercent = maxEjectedPercent;
+	}
+
+	public String toString() {
+		return endpoints.toString();
+	}
+}
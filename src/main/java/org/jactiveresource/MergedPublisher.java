@@ -0,0 +1,291 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes everything several publishers publish, in whatever order it
+ * arrives, as one stream. {@link ShardedResourceFactory#publishAll()} uses
+ * it to read every shard at once.
+ * <p>
+ * Each source is asked for a few resources up front, and for one more every
+ * time one of its resources is handed to the subscriber, so a slow
+ * subscriber holds up all the sources rather than having resources pile up
+ * in memory. The stream completes when every source has, and fails, with the
+ * others cancelled, as soon as one of them does, or as soon as the
+ * subscriber's <code>onNext</code> throws. Sources which haven't been
+ * subscribed to by then never are.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class MergedPublisher<T> implements Publisher<T> {
+
+	private final List<? extends Publisher<? extends T>> sources;
+	private final int prefetch;
+
+	/**
+	 * ask each source for 32 resources ahead
+	 * 
+	 * @param sources
+	 */
+	public MergedPublisher(List<? extends Publisher<? extends T>> sources) {
+		this(sources, 32);
+	}
+
+	/**
+	 * @param sources
+	 * @param prefetch
+	 *            how many resources to ask each source for ahead of the
+	 *            subscriber
+	 */
+	public MergedPublisher(List<? extends Publisher<? extends T>> sources,
+			int prefetch) {
+		this.sources = sources;
+		this.prefetch = prefetch;
+	}
+
+	public void subscribe(Subscriber<? super T> subscriber) {
+		MergeSubscription m = new MergeSubscription(subscriber);
+		subscriber.onSubscribe(m);
+		for (Publisher<? extends T> p : sources) {
+			if (m.isStopped())
+				break;
+			p.subscribe(m.newSource());
+		}
+		// in case there were no sources
+		m.drain();
+	}
+
+	/**
+	 * a resource and the source it came from
+	 */
+	private class Item {
+		final Source source;
+		final T value;
+
+		Item(Source source, T value) {
+			this.source = source;
+			this.value = value;
+		}
+	}
+
+	private class MergeSubscription implements Subscription {
+
+		private final Subscriber<? super T> subscriber;
+		private final Queue<Item> queue = new ConcurrentLinkedQueue<Item>();
+		private final List<Source> subscribed = new ArrayList<Source>();
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private final AtomicInteger active = new AtomicInteger(sources.size());
+		private final AtomicBoolean failed = new AtomicBoolean();
+		private volatile Throwable error;
+		private volatile boolean cancelled;
+
+		// only touched by the drain
+		private boolean done;
+
+		MergeSubscription(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		Source newSource() {
+			Source s = new Source(this);
+			synchronized (subscribed) {
+				subscribed.add(s);
+			}
+			// we may have stopped after the others were cancelled
+			if (isStopped())
+				s.cancel();
+			return s;
+		}
+
+		/**
+		 * @return true once the subscriber has cancelled or the stream has
+		 *         failed, after which no source should be left running
+		 */
+		boolean isStopped() {
+			return cancelled || failed.get();
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException(
+						"must request a positive number, not " + n));
+				return;
+			}
+			long current, next;
+			do {
+				current = demand.get();
+				next = current + n;
+				if (next < 0)
+					next = Long.MAX_VALUE;
+			} while (!demand.compareAndSet(current, next));
+			drain();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			cancelSources();
+			queue.clear();
+		}
+
+		void fail(Throwable t) {
+			if (failed.compareAndSet(false, true)) {
+				error = t;
+				cancelSources();
+			}
+			drain();
+		}
+
+		void sourceDone() {
+			active.decrementAndGet();
+			drain();
+		}
+
+		private void cancelSources() {
+			List<Source> l;
+			synchronized (subscribed) {
+				l = new ArrayList<Source>(subscribed);
+			}
+			for (Source s : l)
+				s.cancel();
+		}
+
+		void drain() {
+			if (wip.getAndIncrement() != 0)
+				return;
+			int missed = 1;
+			do {
+				drainLoop();
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void drainLoop() {
+			while (!done) {
+				if (cancelled) {
+					done = true;
+					queue.clear();
+					return;
+				}
+				if (error != null) {
+					done = true;
+					queue.clear();
+					subscriber.onError(error);
+					return;
+				}
+				if (demand.get() == 0)
+					break;
+				Item item = queue.poll();
+				if (item == null)
+					break;
+				try {
+					subscriber.onNext(item.value);
+					if (demand.get() != Long.MAX_VALUE)
+						demand.decrementAndGet();
+					item.source.request(1);
+				} catch (Throwable t) {
+					done = true;
+					failed.set(true);
+					cancelSources();
+					queue.clear();
+					subscriber.onError(t);
+					return;
+				}
+			}
+			if (!done && active.get() == 0 && queue.isEmpty() && error == null
+					&& !cancelled) {
+				done = true;
+				subscriber.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * subscribes to one of the sources
+	 */
+	private class Source implements Subscriber<T> {
+
+		private final MergeSubscription parent;
+		private volatile Subscription subscription;
+		private volatile boolean cancelled;
+
+		Source(MergeSubscription parent) {
+			this.parent = parent;
+		}
+
+		public void onSubscribe(Subscription s) {
+			subscription = s;
+			if (cancelled || parent.isStopped())
+				s.cancel();
+			else
+				s.request(prefetch);
+		}
+
+		public void onNext(T value) {
+			parent.queue.add(new Item(this, value));
+			parent.drain();
+		}
+
+		public void onError(Throwable t) {
+			parent.fail(t);
+		}
+
+		public void onComplete() {
+			parent.sourceDone();
+		}
+
+		void request(long n) {
+			Subscription s = subscription;
+			if (s != null && !cancelled)
+				s.request(n);
+		}
+
+		void cancel() {
+			cancelled = true;
+			Subscription s = subscription;
+			if (s != null)
+				s.cancel();
+		}
+	}
+}
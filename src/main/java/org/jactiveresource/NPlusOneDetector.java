@@ -0,0 +1,186 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches the requests sent by a {@link ResourceConnection} for the tell-tale
+ * sign of an N+1 query: the same line of your code asking for the same kind
+ * of URL over and over, one parent at a time. For example, a loop that asks
+ * for <code>/posts/1/comments.xml</code>, <code>/posts/2/comments.xml</code>
+ * and so on, or <code>/comments.xml?post_id=1</code>,
+ * <code>/comments.xml?post_id=2</code>.
+ * 
+ * <code>
+ * <pre>
+ * c.setNPlusOneDetector(new NPlusOneDetector(10, 1000));
+ * </pre>
+ * </code>
+ * 
+ * URLs are grouped by their shape, with numeric path segments and query
+ * values blanked out, and by the first stack frame outside of the
+ * jactiveresource library itself, so code in other packages under
+ * <code>org.jactiveresource</code> still counts as a call site.
+ * When one group sees the threshold number of requests inside the window, a
+ * warning naming the call site is logged. Each group is only reported once.
+ * <p>
+ * Finding the call site means taking a stack trace on every request, so this
+ * is meant for development and testing rather than production.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class NPlusOneDetector {
+
+	// the library's own packages, whose frames are never a call site
+	private static final Set<String> LIBRARY = new HashSet<String>(Arrays
+			.asList("org.jactiveresource", "org.jactiveresource.annotation",
+					"org.jactiveresource.rails"));
+
+	private final int threshold;
+	private final long window;
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+	private Log log = LogFactory.getLog(NPlusOneDetector.class);
+
+	/**
+	 * @param threshold
+	 *            how many similar requests from one place count as N+1
+	 * @param window
+	 *            how many milliseconds those requests must fall within
+	 */
+	public NPlusOneDetector(int threshold, long window) {
+		this.threshold = threshold;
+		this.window = window;
+	}
+
+	/**
+	 * note that a request has been sent
+	 * 
+	 * @param uri
+	 *            the path and query of the request, without the scheme and
+	 *            host, ie <code>/posts/1/comments.xml</code>
+	 */
+	public void record(String uri) {
+		String site = callSite();
+		String key = shape(uri) + " from " + site;
+		Counter c = counters.get(key);
+		if (c == null) {
+			Counter fresh = new Counter();
+			c = counters.putIfAbsent(key, fresh);
+			if (c == null)
+				c = fresh;
+		}
+		if (c.hit(System.currentTimeMillis()))
+			log.warn("possible N+1 query: " + threshold
+					+ " requests like " + key + " within " + window + "ms");
+	}
+
+	/**
+	 * reduce a URL to its shape, ie <code>/posts/12/comments.xml?x=1</code>
+	 * becomes <code>/posts/:id/comments.xml?x=</code>
+	 */
+	static String shape(String uri) {
+		StringBuilder sb = new StringBuilder();
+		int q = uri.indexOf('?');
+		String path = q < 0 ? uri : uri.substring(0, q);
+		for (String segment : path.split("/", -1)) {
+			if (sb.length() > 0 || path.startsWith("/"))
+				sb.append('/');
+			int dot = segment.indexOf('.');
+			String stem = dot < 0 ? segment : segment.substring(0, dot);
+			if (stem.length() > 0 && stem.matches("\\d+"))
+				sb.append(":id").append(dot < 0 ? "" : segment.substring(dot));
+			else
+				sb.append(segment);
+		}
+		if (path.startsWith("/"))
+			sb.deleteCharAt(0);
+		if (q >= 0) {
+			sb.append('?');
+			boolean first = true;
+			for (String param : uri.substring(q + 1).split("&")) {
+				int eq = param.indexOf('=');
+				if (!first)
+					sb.append('&');
+				sb.append(eq < 0 ? param : param.substring(0, eq + 1));
+				first = false;
+			}
+		}
+		return sb.toString();
+	}
+
+	private String callSite() {
+		for (StackTraceElement e : new Throwable().getStackTrace()) {
+			String c = e.getClassName();
+			int dot = c.lastIndexOf('.');
+			String pkg = dot < 0 ? "" : c.substring(0, dot);
+			if (!LIBRARY.contains(pkg) && !c.startsWith("java.")
+					&& !c.startsWith("sun."))
+				return e.toString();
+		}
+		return "unknown";
+	}
+
+	private class Counter {
+		private long start;
+		private int count;
+		private boolean reported;
+
+		/**
+		 * @return true the first time the threshold is crossed
+		 */
+		synchronized boolean hit(long now) {
+			if (now - start > window) {
+				start = now;
+				count = 0;
+			}
+			count++;
+			if (count >= threshold && !reported) {
+				reported = true;
+				return true;
+			}
+			return false;
+		}
+	}
+}
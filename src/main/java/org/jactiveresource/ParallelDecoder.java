@@ -0,0 +1,231 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Deserializes a large XML collection on several threads. The thread reading
+ * the response only splits it into the XML for each resource, which is
+ * cheap. The expensive part, turning that XML into objects, happens on the
+ * executor of the connection.
+ * <p>
+ * Resources are handed to the executor in chunks of roughly
+ * <code>CHUNK_SIZE</code> characters, and at most two chunks per unit of
+ * parallelism are outstanding at once. When that many are waiting, the
+ * reading thread collects the oldest before carrying on, which keeps the
+ * resources in their original order and keeps memory use bounded no matter
+ * how big the response is.
+ * <p>
+ * A chunk which no thread of the executor has started by the time it is
+ * collected is decoded by the reading thread itself. So when the reading
+ * thread is one of the executor's own, and every other thread is busy doing
+ * the same, decoding slows down to one thread instead of waiting forever.
+ * 
+ * @see ResourceFactory#setParallelDecoding(boolean)
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+class ParallelDecoder<T extends Resource> {
+
+	/**
+	 * the number of characters of XML decoded by each task
+	 */
+	static final int CHUNK_SIZE = 32 * 1024;
+
+	// each chunk is a little collection of its own
+	private static final String OPEN = "<chunk>";
+	private static final String CLOSE = "</chunk>";
+
+	private final ResourceFactory<T> factory;
+	private final ExecutorService executor;
+	private final int maxInFlight;
+
+	private Log log = LogFactory.getLog(ParallelDecoder.class);
+
+	ParallelDecoder(ResourceFactory<T> factory) {
+		this.factory = factory;
+		this.executor = factory.getConnection().getExecutor();
+		this.maxInFlight = 2 * factory.getParallelism();
+	}
+
+	/**
+	 * read the whole collection and return its resources in order. The reader
+	 * is closed when this returns.
+	 */
+	ArrayList<T> decode(Reader reader) throws IOException {
+		ArrayList<T> list = new ArrayList<T>();
+		LinkedList<FutureTask<List<T>>> inFlight = new LinkedList<FutureTask<List<T>>>();
+		boolean ok = false;
+		try {
+			XmlPullParser parser = new MXParser();
+			parser.setInput(reader);
+
+			StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 1024);
+			chunk.append(OPEN);
+			int event;
+			while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+				// everything at depth 1 belongs to the root element
+				if (parser.getDepth() < 2)
+					continue;
+				copy(parser, event, chunk);
+				if (event == XmlPullParser.END_TAG && parser.getDepth() == 2
+						&& chunk.length() >= CHUNK_SIZE) {
+					submit(chunk.append(CLOSE).toString(), inFlight, list);
+					chunk.setLength(0);
+					chunk.append(OPEN);
+				}
+			}
+			if (chunk.length() > OPEN.length())
+				submit(chunk.append(CLOSE).toString(), inFlight, list);
+			while (!inFlight.isEmpty())
+				list.addAll(collect(inFlight.removeFirst()));
+			ok = true;
+		} catch (XmlPullParserException e) {
+			IOException ioe = new IOException(e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			if (!ok) {
+				for (FutureTask<List<T>> f : inFlight)
+					f.cancel(true);
+			}
+			reader.close();
+		}
+		log.trace("deserialized " + list.size() + " objects in parallel");
+		return list;
+	}
+
+	private void submit(final String chunk,
+			LinkedList<FutureTask<List<T>>> inFlight, ArrayList<T> list)
+			throws IOException {
+		if (inFlight.size() >= maxInFlight)
+			list.addAll(collect(inFlight.removeFirst()));
+		FutureTask<List<T>> task = new FutureTask<List<T>>(
+				new Callable<List<T>>() {
+					public List<T> call() throws Exception {
+						return factory.readMany(new StringReader(chunk));
+					}
+				});
+		inFlight.add(task);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// it gets decoded here when it is collected
+		}
+	}
+
+	private List<T> collect(FutureTask<List<T>> f) throws IOException {
+		// does nothing if a thread of the executor has already started it
+		f.run();
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * write the current event back out as XML
+	 */
+	private static void copy(XmlPullParser parser, int event, StringBuilder sb) {
+		switch (event) {
+		case XmlPullParser.START_TAG:
+			sb.append('<').append(parser.getName());
+			for (int i = 0; i < parser.getAttributeCount(); i++) {
+				sb.append(' ').append(parser.getAttributeName(i)).append("=\"");
+				escape(parser.getAttributeValue(i), sb);
+				sb.append('"');
+			}
+			sb.append('>');
+			break;
+		case XmlPullParser.END_TAG:
+			sb.append("</").append(parser.getName()).append('>');
+			break;
+		case XmlPullParser.TEXT:
+			escape(parser.getText(), sb);
+			break;
+		}
+	}
+
+	private static void escape(String s, StringBuilder sb) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A path with placeholders in it, like
+ * <code>posts/:post_id/comments</code>. The path is split up once, when it is
+ * compiled, so filling in the placeholders is just a matter of gluing strings
+ * together.
+ * 
+ * <code>
+ * <pre>
+ * PathTemplate t = PathTemplate.compile("posts/:post_id/comments");
+ * Map&lt;String, String&gt; values = new HashMap&lt;String, String&gt;();
+ * values.put("post_id", "1");
+ * assertEquals("posts/1/comments", t.expand(values));
+ * </pre>
+ * </code>
+ * 
+ * The values are URL encoded as they go in, so a value with a slash or a space
+ * in it stays one segment of the path. Add the result to a {@link URLBuilder}
+ * with {@link URLBuilder#addEncoded(Object)}.
+ * <p>
+ * Compiled templates are immutable and cached, so asking for the same path
+ * again returns the same template.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public final class PathTemplate {
+
+	private static final ConcurrentMap<String, PathTemplate> cache = new ConcurrentHashMap<String, PathTemplate>();
+
+	private final String template;
+	// each segment is either literal text or the name of a placeholder
+	private final String[] segments;
+	private final boolean[] placeholder;
+	private final List<String> names;
+
+	private PathTemplate(String template) {
+		this.template = template;
+		StringTokenizer st = new StringTokenizer(template, "/");
+		this.segments = new String[st.countTokens()];
+		this.placeholder = new boolean[segments.length];
+		List<String> n = new ArrayList<String>();
+		for (int i = 0; i < segments.length; i++) {
+			String s = st.nextToken();
+			if (s.startsWith(":") && s.length() > 1) {
+				segments[i] = s.substring(1);
+				placeholder[i] = true;
+				n.add(segments[i]);
+			} else {
+				segments[i] = s;
+			}
+		}
+		if (segments.length == 0 || placeholder[segments.length - 1])
+			throw new IllegalArgumentException(template
+					+ " must end with a collection name");
+		this.names = Collections.unmodifiableList(n);
+	}
+
+	/**
+	 * return the compiled form of a path
+	 * 
+	 * @param template
+	 *            a path like <code>posts/:post_id/comments</code>
+	 * @return the compiled template
+	 */
+	public static PathTemplate compile(String template) {
+		PathTemplate t = cache.get(template);
+		if (t == null) {
+			t = new PathTemplate(template);
+			PathTemplate existing = cache.putIfAbsent(template, t);
+			if (existing != null)
+				t = existing;
+		}
+		return t;
+	}
+
+	/**
+	 * @return the names of the placeholders, in the order they appear
+	 */
+	public List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * @return the last segment of the path
+	 */
+	public String getCollectionName() {
+		return segments[segments.length - 1];
+	}
+
+	/**
+	 * fill in the placeholders
+	 * 
+	 * @param values
+	 *            the value for each placeholder, by name
+	 * @return the path, with the values URL encoded
+	 * @throws IllegalStateException
+	 *             if a placeholder has no value
+	 */
+	public String expand(Map<String, String> values) {
+		StringBuilder sb = new StringBuilder(template.length() + 16);
+		for (int i = 0; i < segments.length; i++) {
+			if (i > 0)
+				sb.append('/');
+			if (placeholder[i]) {
+				String v = values.get(segments[i]);
+				if (v == null)
+					throw new IllegalStateException("no value for :"
+							+ segments[i] + " in " + template);
+				try {
+					sb.append(URLEncoder.encode(v, "UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			} else {
+				sb.append(segments[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of how busy the connection pool of a
+ * {@link DefaultHttpClientFactory} is. Get a fresh one whenever you want to
+ * look, with {@link DefaultHttpClientFactory#getPoolStats()}.
+ * 
+ * <code>
+ * <pre>
+ * PoolStats s = factory.getPoolStats();
+ * if (s.getPending() > 0)
+ *     log.warn("waiting for connections: " + s);
+ * </pre>
+ * </code>
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class PoolStats {
+
+	private final int leased;
+	private final int available;
+	private final int pending;
+	private final int max;
+	private final long leases;
+	private final long leaseWaitNanos;
+
+	PoolStats(int leased, int available, int pending, int max, long leases,
+			long leaseWaitNanos) {
+		this.leased = leased;
+		this.available = available;
+		this.pending = pending;
+		this.max = max;
+		this.leases = leases;
+		this.leaseWaitNanos = leaseWaitNanos;
+	}
+
+	/**
+	 * @return the number of connections in use by a request
+	 */
+	public int getLeased() {
+		return leased;
+	}
+
+	/**
+	 * @return the number of open connections sitting idle in the pool
+	 */
+	public int getAvailable() {
+		return available;
+	}
+
+	/**
+	 * @return the number of requests waiting for a connection
+	 */
+	public int getPending() {
+		return pending;
+	}
+
+	/**
+	 * @return the most connections the pool will open
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the number of connections handed out since the pool was created
+	 */
+	public long getLeases() {
+		return leases;
+	}
+
+	/**
+	 * @return the total time requests have spent waiting for a connection, in
+	 *         milliseconds
+	 */
+	public long getLeaseWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(leaseWaitNanos);
+	}
+
+	/**
+	 * @return the average time a request waited for a connection, in
+	 *         milliseconds
+	 */
+	public double getAverageLeaseWaitTime() {
+		if (leases == 0)
+			return 0;
+		return leaseWaitNanos / 1000000.0 / leases;
+	}
+
+	public String toString() {
+		return "leased=" + getLeased() + " available=" + getAvailable()
+				+ " pending=" + getPending() + " max=" + getMax() + " leases="
+				+ getLeases() + " leaseWaitTime=" + getLeaseWaitTime();
+	}
+}
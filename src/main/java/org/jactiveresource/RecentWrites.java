@@ -0,0 +1,121 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * remembers which resources a {@link ResourceConnection} wrote to lately, so
+ * reads of them can go to the primary instead of a replica which might not
+ * have the write yet. A write to <code>/people/5.xml</code> covers reads of
+ * <code>/people/5.xml</code> and of the collection <code>/people.xml</code>,
+ * and a write to the collection, like creating a person, covers reads of
+ * every person.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+class RecentWrites {
+
+	// tidy up expired entries once there are this many
+	private static final int PRUNE_SIZE = 1000;
+	// keys for resources and collections written to directly
+	private static final String WRITTEN = "=";
+	// keys for collections one of whose members was written to
+	private static final String CHANGED = "*";
+
+	private final ConcurrentMap<String, Long> writes = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * note a write to uri, which reads should see for window milliseconds
+	 */
+	void record(String uri, long window) {
+		Long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+		String key = key(uri);
+		writes.put(WRITTEN + key, until);
+		writes.put(CHANGED + parent(key), until);
+		if (writes.size() > PRUNE_SIZE)
+			prune();
+	}
+
+	/**
+	 * @return true if uri, or the collection it is in, was written to lately,
+	 *         or uri is a collection and one of its members was
+	 */
+	boolean isRecent(String uri) {
+		String key = key(uri);
+		return isRecentKey(WRITTEN + key)
+				|| isRecentKey(WRITTEN + parent(key))
+				|| isRecentKey(CHANGED + key);
+	}
+
+	private boolean isRecentKey(String key) {
+		Long until = writes.get(key);
+		if (until == null)
+			return false;
+		if (System.nanoTime() - until < 0)
+			return true;
+		writes.remove(key, until);
+		return false;
+	}
+
+	private void prune() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, Long>> i = writes.entrySet().iterator();
+		while (i.hasNext())
+			if (now - i.next().getValue() >= 0)
+				i.remove();
+	}
+
+	/**
+	 * the path of uri without the format extension
+	 */
+	private static String key(String uri) {
+		String path = URI.create(uri).getPath();
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		return dot > slash ? path.substring(0, dot) : path;
+	}
+
+	private static String parent(String key) {
+		int slash = key.lastIndexOf('/');
+		return slash > 0 ? key.substring(0, slash) : key;
+	}
+}
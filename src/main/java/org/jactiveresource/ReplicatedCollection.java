@@ -0,0 +1,329 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpException;
+import org.jactiveresource.annotation.Indexed;
+
+/**
+ * A read-only copy of a collection held in memory, which you can query without
+ * a network round trip. It is meant for collections which are read a lot and
+ * change rarely.
+ * 
+ * <code>
+ * <pre>
+ * ReplicatedCollection&lt;Person&gt; people = new ReplicatedCollection&lt;Person&gt;(rf);
+ * people.refresh();
+ * people.start(60000);
+ * ...
+ * Person p = people.get("5");
+ * List&lt;Person&gt; freds = people.findBy("name", "Fred");
+ * List&lt;Person&gt; eighties = people.findRange("birthdate", jan1980, jan1990);
+ * </pre>
+ * </code>
+ * 
+ * Resources can always be looked up by id. Fields marked with
+ * {@link Indexed} can be looked up by value with {@link #findBy(String, Object)},
+ * and fields marked <code>@Indexed(sorted = true)</code> can also be searched
+ * by range with {@link #findRange(String, Object, Object)}.
+ * <p>
+ * {@link #refresh()} fetches the whole collection and builds a new set of
+ * indexes off to the side. When it is done the new set replaces the old one in
+ * a single step. Readers never take a lock, and always see either the old set
+ * or the new one, never a mixture. If you keep the collection up to date some
+ * other way, like with an {@link org.jactiveresource.rails.IncrementalSync},
+ * pass its contents to {@link #refresh(Collection)}.
+ * <p>
+ * The resources handed out are shared by every reader, so treat them as read
+ * only.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ReplicatedCollection<T extends Resource> {
+
+	private final ResourceFactory<T> factory;
+	private final Map<String, Field> hashed = new HashMap<String, Field>();
+	private final Map<String, Field> sorted = new HashMap<String, Field>();
+	private volatile Snapshot<T> snapshot;
+	private ScheduledExecutorService timer;
+
+	private Log log = LogFactory.getLog(ReplicatedCollection.class);
+
+	/**
+	 * create an empty replica of the collection of a factory. Nothing is
+	 * fetched until you call {@link #refresh()}.
+	 * 
+	 * @param factory
+	 * @throws IllegalArgumentException
+	 *             if a field with a sorted index isn't Comparable
+	 */
+	public ReplicatedCollection(ResourceFactory<T> factory) {
+		this.factory = factory;
+		for (Class<?> c = factory.getResourceClass(); c != null; c = c
+				.getSuperclass()) {
+			for (Field f : c.getDeclaredFields()) {
+				Indexed ix = f.getAnnotation(Indexed.class);
+				if (ix != null) {
+					f.setAccessible(true);
+					if (ix.sorted()) {
+						checkComparable(f);
+						sorted.put(f.getName(), f);
+					}
+					else
+						hashed.put(f.getName(), f);
+				}
+			}
+		}
+		this.snapshot = build(new ArrayList<T>());
+	}
+
+	/**
+	 * a sorted index is a TreeMap, which would only find out on the first
+	 * refresh that it can't order the values
+	 */
+	private static void checkComparable(Field f) {
+		Class<?> type = f.getType();
+		// primitives are boxed into something Comparable
+		if (type.isPrimitive() || Comparable.class.isAssignableFrom(type))
+			return;
+		throw new IllegalArgumentException("field " + f.getName() + " of "
+				+ f.getDeclaringClass().getSimpleName()
+				+ " has a sorted index, but " + type.getName()
+				+ " is not Comparable");
+	}
+
+	/**
+	 * fetch the whole collection from the server and swap it in
+	 * 
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public void refresh() throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		refresh(factory.findAll());
+	}
+
+	/**
+	 * replace the contents of the replica with the given resources
+	 * 
+	 * @param resources
+	 */
+	public void refresh(Collection<T> resources) {
+		this.snapshot = build(resources);
+		log.trace("replica of " + factory.getResourceClass().getSimpleName()
+				+ " refreshed with " + resources.size() + " resources");
+	}
+
+	/**
+	 * @param id
+	 * @return the resource with the given id, or null
+	 */
+	public T get(String id) {
+		return snapshot.byId.get(id);
+	}
+
+	/**
+	 * @return every resource in the replica
+	 */
+	public Collection<T> all() {
+		return Collections.unmodifiableCollection(snapshot.byId.values());
+	}
+
+	/**
+	 * @return the number of resources in the replica
+	 */
+	public int size() {
+		return snapshot.byId.size();
+	}
+
+	/**
+	 * find the resources whose indexed field has a given value
+	 * 
+	 * @param field
+	 *            the name of a field marked with {@link Indexed}
+	 * @param value
+	 * @return the matching resources, possibly none
+	 */
+	public List<T> findBy(String field, Object value) {
+		Snapshot<T> s = snapshot;
+		Map<Object, List<T>> index = s.hashes.get(field);
+		if (index == null)
+			index = s.trees.get(field);
+		if (index == null)
+			throw new IllegalArgumentException(field + " is not indexed");
+		if (value == null && index instanceof TreeMap)
+			return Collections.<T> emptyList();
+		List<T> found = index.get(value);
+		return found == null ? Collections.<T> emptyList() : found;
+	}
+
+	/**
+	 * find the resources whose sorted field is at least <code>from</code> and
+	 * less than <code>to</code>, in order of that field
+	 * 
+	 * @param field
+	 *            the name of a field marked with
+	 *            <code>@Indexed(sorted = true)</code>
+	 * @param from
+	 *            the lowest value, inclusive, or null for no lower bound
+	 * @param to
+	 *            the highest value, exclusive, or null for no upper bound
+	 * @return the matching resources, possibly none
+	 */
+	public List<T> findRange(String field, Object from, Object to) {
+		NavigableMap<Object, List<T>> index = snapshot.trees.get(field);
+		if (index == null)
+			throw new IllegalArgumentException(field
+					+ " does not have a sorted index");
+		if (from != null && to != null)
+			index = index.subMap(from, true, to, false);
+		else if (from != null)
+			index = index.tailMap(from, true);
+		else if (to != null)
+			index = index.headMap(to, false);
+
+		List<T> found = new ArrayList<T>();
+		for (List<T> l : index.values())
+			found.addAll(l);
+		return found;
+	}
+
+	/**
+	 * call {@link #refresh()} in the background every so often, until
+	 * {@link #stop()} is called. Failures are logged, and the replica keeps
+	 * serving what it had.
+	 * 
+	 * @param period
+	 *            milliseconds between refreshes
+	 */
+	public synchronized void start(long period) {
+		if (timer != null)
+			throw new IllegalStateException("already started");
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jactiveresource-replica");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception e) {
+					log.warn("refresh of replica failed", e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * stop refreshing in the background
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdown();
+			timer = null;
+		}
+	}
+
+	private Snapshot<T> build(Collection<T> resources) {
+		Snapshot<T> s = new Snapshot<T>();
+		for (T r : resources)
+			s.byId.put(r.getId(), r);
+		for (Map.Entry<String, Field> e : hashed.entrySet())
+			s.hashes.put(e.getKey(), index(e.getValue(), resources,
+					new HashMap<Object, List<T>>()));
+		for (Map.Entry<String, Field> e : sorted.entrySet())
+			s.trees.put(e.getKey(), (NavigableMap<Object, List<T>>) index(e
+					.getValue(), resources, new TreeMap<Object, List<T>>()));
+		return s;
+	}
+
+	private Map<Object, List<T>> index(Field f, Collection<T> resources,
+			Map<Object, List<T>> index) {
+		boolean tree = index instanceof TreeMap;
+		for (T r : resources) {
+			Object key;
+			try {
+				key = f.get(r);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+			// a tree can't hold null keys
+			if (key == null && tree)
+				continue;
+			List<T> l = index.get(key);
+			if (l == null) {
+				l = new ArrayList<T>(1);
+				index.put(key, l);
+			}
+			l.add(r);
+		}
+		for (Map.Entry<Object, List<T>> e : index.entrySet())
+			e.setValue(Collections.unmodifiableList(e.getValue()));
+		return index;
+	}
+
+	/**
+	 * everything a reader needs, never changed once it has been built
+	 */
+	private static class Snapshot<T> {
+		final Map<String, T> byId = new HashMap<String, T>();
+		final Map<String, Map<Object, List<T>>> hashes = new HashMap<String, Map<Object, List<T>>>();
+		final Map<String, NavigableMap<Object, List<T>>> trees = new HashMap<String, NavigableMap<Object, List<T>>>();
+	}
+}
@@ -36,13 +36,34 @@ package org.jactiveresource;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
@@ -51,7 +72,11 @@ import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 
 /**
  * <h3>Overview</h3>
@@ -90,6 +115,11 @@ import org.apache.http.entity.StringEntity;
  * create your own factory, as long as it implements the {@link AbstractHttpClientFactory}
  * interface, giving you full control over TCP timeouts, cookies, authentication,
  * and concurrency of the HttpClient objects used by the resource connection.
+ * <p>
+ * The factory a connection makes for itself borrows its connections from the
+ * process wide pool kept by {@link ConnectionPoolRegistry#getDefault()}, so
+ * many resource connections to the same site share sockets, and closing one
+ * doesn't close the pool while others still use it.
  * 
  * <h3>Authentication</h3>
  * 
@@ -104,7 +134,73 @@ import org.apache.http.entity.StringEntity;
  * These credentials will be passed through to the HttpClientFactory object,
  * which is responsible for using these credentials on the HTTP request.  The
  * default HttpClientFactory object will use these credentials as basic
- * authentication.  Authentication credentials embedded in the URL will be ignored.
+ * authentication, and sends them with every request to the sites of this
+ * connection rather than waiting for the service to ask for them, but never to
+ * another host.  Authentication credentials embedded in the URL will be ignored.
+ * <p>
+ * If the service wants a bearer token instead, give the connection a
+ * {@link TokenProvider} with {@link #setTokenProvider(TokenProvider)}, and the
+ * token it supplies goes in the <code>Authorization</code> header of every request.
+ * 
+ * <h3>Concurrency</h3>
+ * 
+ * Operations that fan out into many requests, like
+ * {@link ResourceFactory#find(java.util.Collection)}, run those requests on the
+ * executor returned by {@link #getExecutor()}. By default it is a cached pool of
+ * daemon threads which is shut down when the connection is closed, after which
+ * anything handed to it is rejected with a RejectedExecutionException. You can
+ * supply your own with {@link #setExecutor(ExecutorService)}, in which case it
+ * is up to you to shut it down.
+ * <p>
+ * Nothing on the request path holds a monitor while it waits on the network,
+ * so the blocking methods are fine to call from lightweight threads on JVMs
+ * that have them, and an executor which starts one such thread per task can
+ * be handed to {@link #setExecutor(ExecutorService)}. {@link #fanOut(List, int)}
+ * runs any list of requests on the executor.
+ * <p>
+ * To keep from swamping a service that is struggling, attach a
+ * {@link ConcurrencyLimiter} with
+ * {@link #setConcurrencyLimiter(ConcurrencyLimiter)}.
+ * 
+ * <h3>Several sites</h3>
+ * 
+ * When the same resources are served by several sites, a connection made with
+ * a {@link LoadBalancer} spreads its requests over all of them, and stops
+ * sending to any that keep failing for a while.
+ * <code>
+ * <pre>
+ * ResourceConnection c = new ResourceConnection(new LoadBalancer(
+ *         "http://app1:3000", "http://app2:3000"));
+ * </pre>
+ * </code>
+ * If only some of the sites can take writes, make the connection with the
+ * primary and hand the read replicas to {@link #setReadReplicas(LoadBalancer)}.
+ * GET and HEAD requests go to the replicas, except for resources this
+ * connection wrote to in the last few seconds, which are read from the primary
+ * so you see your own writes.
+ * 
+ * <h3>Failures</h3>
+ * 
+ * A {@link RetryPolicy} set with {@link #setRetryPolicy(RetryPolicy)} sends
+ * idempotent requests again when they fail in a way that might be temporary,
+ * like a 503. A {@link CircuitBreaker} set with
+ * {@link #setCircuitBreaker(CircuitBreaker)} stops sending requests for a
+ * while once the service keeps failing. Neither is used by default.
+ * <p>
+ * A few slow responses can hold up a whole page of work. With a
+ * {@link HedgePolicy} set by {@link #setHedgePolicy(HedgePolicy)}, a GET which
+ * takes longer than most recent ones is sent a second time, and whichever
+ * copy answers first is used.
+ * 
+ * <h3>Coalescing</h3>
+ * 
+ * When lots of threads ask for the same resource at the same time, say right
+ * after it drops out of a cache, you can have them share a single request with
+ * {@link #setCoalescingGets(boolean)}. While a GET for a URL is in flight,
+ * other calls to {@link #get(Object)} for the same URL wait for it and receive
+ * the same response body, instead of sending their own request. Each caller
+ * still deserializes its own copy, so no two callers end up sharing an object.
+ * How many requests were saved is reported in {@link #getMetrics()}.
  * 
  * @version $LastChangedRevision$ <br>
  *          $LastChangedDate$
@@ -113,10 +209,33 @@ import org.apache.http.entity.StringEntity;
 public class ResourceConnection {
 
 	private URL site;
+	private LoadBalancer balancer;
+	private volatile LoadBalancer readReplicas;
+	private volatile long readYourWritesWindow = 5000;
+	private final RecentWrites recentWrites = new RecentWrites();
 
 	private AbstractHttpClientFactory clientFactory;
+	private boolean ownFactory;
+
+	private volatile ExecutorService executor;
+	private boolean ownExecutor;
+	private volatile boolean closed;
+
+	private final ConnectionMetrics metrics = new ConnectionMetrics();
 
-	private static final String CONTENT_TYPE = "Content-type";
+	private volatile boolean coalescingGets;
+	private volatile NPlusOneDetector nPlusOneDetector;
+	private volatile ConcurrencyLimiter limiter;
+	private final ConcurrentMap<Endpoint, ConcurrencyLimiter> endpointLimiters = new ConcurrentHashMap<Endpoint, ConcurrencyLimiter>();
+	private volatile RetryPolicy retryPolicy;
+	private volatile CircuitBreaker circuitBreaker;
+	private volatile HedgePolicy hedgePolicy;
+	private ScheduledExecutorService hedgeTimer;
+	private volatile TokenProvider tokenProvider;
+	private final ConcurrentMap<String, ResultFuture<String>> inFlight = new ConcurrentHashMap<String, ResultFuture<String>>();
+
+	private static final String AUTHORIZATION = "Authorization";
+	private static final String ORIGINAL_URI = "org.jactiveresource.original-uri";
 
 	private Log log = LogFactory.getLog(ResourceConnection.class);
 
@@ -127,7 +246,8 @@ public class ResourceConnection {
 	 */
 	public ResourceConnection(URL site) {
 		this.site = site;
-		this.clientFactory = new DefaultHttpClientFactory();
+		this.clientFactory = sharedFactory(site);
+		this.ownFactory = true;
 	}
 
 	/**
@@ -138,7 +258,8 @@ public class ResourceConnection {
 	 */
 	public ResourceConnection(String site) throws MalformedURLException {
 		this.site = new URL(site);
-		this.clientFactory = new DefaultHttpClientFactory();
+		this.clientFactory = sharedFactory(this.site);
+		this.ownFactory = true;
 	}
 
 	/**
@@ -166,7 +287,52 @@ public class ResourceConnection {
 	}
 
 	/**
-	 * @return the URL object for the site this connection points to
+	 * Connect to resources served by several sites, spreading the requests
+	 * over them
+	 * 
+	 * @param balancer
+	 */
+	public ResourceConnection(LoadBalancer balancer) {
+		this(balancer, sharedFactory(balancer.getEndpoints()));
+		this.ownFactory = true;
+	}
+
+	/**
+	 * Connect to resources served by several sites, spreading the requests
+	 * over them, using a specific HttpClientFactory
+	 * 
+	 * @param balancer
+	 * @param factory
+	 */
+	public ResourceConnection(LoadBalancer balancer,
+			AbstractHttpClientFactory factory) {
+		this.site = balancer.getEndpoints().get(0).getSite();
+		this.balancer = balancer;
+		this.clientFactory = factory;
+		addCredentialSites(factory, balancer);
+	}
+
+	/**
+	 * @return a factory which uses the default {@link ConnectionPoolRegistry}
+	 */
+	private static AbstractHttpClientFactory sharedFactory(URL... sites) {
+		return new DefaultHttpClientFactory(ConnectionPoolRegistry
+				.getDefault(), sites);
+	}
+
+	private static AbstractHttpClientFactory sharedFactory(
+			List<Endpoint> endpoints) {
+		URL[] sites = new URL[endpoints.size()];
+		for (int i = 0; i < sites.length; i++)
+			sites[i] = endpoints.get(i).getSite();
+		return sharedFactory(sites);
+	}
+
+	/**
+	 * @return the URL object for the site this connection points to. If the
+	 *         connection has a {@link LoadBalancer}, this is the first of its
+	 *         sites, and requests built from it are sent to whichever site
+	 *         the balancer picks.
 	 */
 	public URL getSite() {
 		return this.site;
@@ -175,11 +341,34 @@ public class ResourceConnection {
 	/**
 	 * set the factory used to create HttpClient objects. If you don't
 	 * set your own factory, {@link DefaultHttpClientFactory} will be used.
+	 * If the connection made its own factory, it is shut down, handing its
+	 * share of the pool back.
 	 * 
 	 * @param factory
 	 */
 	public void setHttpClientFactory(AbstractHttpClientFactory factory) {
-		this.clientFactory = factory;
+		AbstractHttpClientFactory old;
+		synchronized (this) {
+			old = this.ownFactory ? this.clientFactory : null;
+			this.clientFactory = factory;
+			this.ownFactory = false;
+		}
+		if (old != null && old != factory)
+			old.shutter();
+		addCredentialSites(factory, balancer);
+		addCredentialSites(factory, readReplicas);
+	}
+
+	/**
+	 * let the factory know the credentials are meant for every site of a
+	 * load balancer, not just the first
+	 */
+	private static void addCredentialSites(AbstractHttpClientFactory factory,
+			LoadBalancer balancer) {
+		if (balancer == null || !(factory instanceof DefaultHttpClientFactory))
+			return;
+		for (Endpoint e : balancer.getEndpoints())
+			((DefaultHttpClientFactory) factory).addCredentialSite(e.getSite());
 	}
 
 	/**
@@ -220,10 +409,334 @@ public class ResourceConnection {
 		this.clientFactory.setPassword(password);
 	}
 
+	/**
+	 * @return the load balancer which spreads requests over several sites, or
+	 *         null if this connection only talks to one
+	 */
+	public LoadBalancer getLoadBalancer() {
+		return this.balancer;
+	}
+
+	/**
+	 * @return the replicas GET and HEAD requests are sent to, or null
+	 */
+	public LoadBalancer getReadReplicas() {
+		return this.readReplicas;
+	}
+
+	/**
+	 * Send GET and HEAD requests to these replicas, and everything else to the
+	 * site of this connection, or its load balancer, as usual. Reads of a
+	 * resource written in the last {@link #getReadYourWritesWindow()}
+	 * milliseconds still go to the primary, so you see your own writes. Set
+	 * to null, the default, to send reads to the primary too.
+	 * 
+	 * @param readReplicas
+	 */
+	public void setReadReplicas(LoadBalancer readReplicas) {
+		this.readReplicas = readReplicas;
+		addCredentialSites(clientFactory, readReplicas);
+	}
+
+	/**
+	 * @return how long after a write is done reads of the resource go to the
+	 *         primary, in milliseconds
+	 */
+	public long getReadYourWritesWindow() {
+		return this.readYourWritesWindow;
+	}
+
+	/**
+	 * @param readYourWritesWindow
+	 *            how long after a write is done reads of the resource go to
+	 *            the primary, in milliseconds, default 5 seconds. Make it
+	 *            longer than your replicas usually lag.
+	 */
+	public void setReadYourWritesWindow(long readYourWritesWindow) {
+		this.readYourWritesWindow = readYourWritesWindow;
+	}
+
+	/**
+	 * @return where bearer tokens come from, or null
+	 */
+	public TokenProvider getTokenProvider() {
+		return this.tokenProvider;
+	}
+
+	/**
+	 * Send a bearer token from this provider with every request. Set to null,
+	 * the default, to not send a token.
+	 * 
+	 * @param tokenProvider
+	 */
+	public void setTokenProvider(TokenProvider tokenProvider) {
+		this.tokenProvider = tokenProvider;
+	}
+
+	/**
+	 * @return the counters for the traffic sent through this connection
+	 */
+	public ConnectionMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return true if identical concurrent GET requests share one request
+	 */
+	public boolean isCoalescingGets() {
+		return this.coalescingGets;
+	}
+
+	/**
+	 * If true, calls to {@link #get(Object)} for a URL which is already being
+	 * retrieved wait for that request and share its response body rather than
+	 * sending another one. The default is false.
+	 * 
+	 * @param coalescingGets
+	 */
+	public void setCoalescingGets(boolean coalescingGets) {
+		this.coalescingGets = coalescingGets;
+	}
+
+	/**
+	 * @return the detector watching for N+1 request patterns, or null
+	 */
+	public NPlusOneDetector getNPlusOneDetector() {
+		return this.nPlusOneDetector;
+	}
+
+	/**
+	 * Every request sent through this connection is reported to the given
+	 * detector. Set to null, the default, to turn detection off.
+	 * 
+	 * @param nPlusOneDetector
+	 */
+	public void setNPlusOneDetector(NPlusOneDetector nPlusOneDetector) {
+		this.nPlusOneDetector = nPlusOneDetector;
+	}
+
+	/**
+	 * @return the limiter on requests in flight, or null if there isn't one
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return this.limiter;
+	}
+
+	/**
+	 * @param e
+	 *            one of the endpoints of the load balancer or read replicas
+	 * @return the limiter on requests in flight to that endpoint, or null if
+	 *         there isn't one
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter(Endpoint e) {
+		return limiterFor(e);
+	}
+
+	/**
+	 * Limit how many requests this connection has in flight at once, with a
+	 * limit that adapts to how the service is coping. Requests beyond the
+	 * limit wait, or fail with {@link LimitExceeded}. Set to null, the
+	 * default, to only be limited by the connection pool.
+	 * <p>
+	 * The limit is per site. The limiter you set covers the site of the
+	 * connection; each endpoint of a {@link LoadBalancer} or of the read
+	 * replicas gets a copy of it, with the same settings, so one struggling
+	 * site only holds back the requests sent to it.
+	 * 
+	 * @param limiter
+	 */
+	public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+		endpointLimiters.clear();
+		// with a load balancer, even writes go to a copy
+		metrics.setLimiter(limiter, balancer == null, endpointLimiters
+				.values());
+	}
+
+	/**
+	 * @return the policy for retrying failed requests, or null
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	/**
+	 * Retry requests that fail with an I/O error or a status the policy
+	 * considers temporary. Set to null, the default, to never retry.
+	 * 
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @return the circuit breaker for this site, or null
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	/**
+	 * Stop sending requests for a while when the service keeps failing.
+	 * While the breaker is open, requests fail with {@link CircuitOpen}. Set
+	 * to null, the default, to always send requests.
+	 * <p>
+	 * There is one breaker for the whole connection. With a
+	 * {@link LoadBalancer} or read replicas it counts the failures of every
+	 * site together, so it opens when the service as a whole is failing.
+	 * A single bad site is the balancer's business: it is ejected long before
+	 * its failures alone could open the breaker, since the others keep
+	 * succeeding in between.
+	 * 
+	 * @param circuitBreaker
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+		metrics.setCircuitBreaker(circuitBreaker);
+	}
+
+	/**
+	 * @return the policy for hedging slow GETs, or null
+	 */
+	public HedgePolicy getHedgePolicy() {
+		return this.hedgePolicy;
+	}
+
+	/**
+	 * Send a second copy of GETs which are slower than the policy allows, and
+	 * use whichever answers first. Set to null, the default, to never hedge.
+	 * The first copy is sent from the calling thread and the second from the
+	 * executor, and a caller never waits for the executor to start one, so
+	 * hedged GETs can be made from tasks running on a bounded executor.
+	 * 
+	 * @param hedgePolicy
+	 */
+	public void setHedgePolicy(HedgePolicy hedgePolicy) {
+		this.hedgePolicy = hedgePolicy;
+	}
+
+	/**
+	 * return the executor used to run requests concurrently. If one hasn't
+	 * been set, a cached pool of daemon threads is created the first time this
+	 * method is called. Once the connection is closed, that pool is shut down
+	 * and rejects whatever it is given.
+	 * 
+	 * @return the executor for concurrent requests
+	 * @throws RejectedExecutionException
+	 *             if the connection was closed before it ever had an executor
+	 */
+	public ExecutorService getExecutor() {
+		ExecutorService e = this.executor;
+		if (e != null)
+			return e;
+		synchronized (this) {
+			return createExecutor();
+		}
+	}
+
+	private ExecutorService createExecutor() {
+		if (this.executor == null) {
+			// a pool made now would never be shut down
+			if (this.closed)
+				throw new RejectedExecutionException("connection is closed");
+			this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jactiveresource-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this.ownExecutor = true;
+			log.trace("executor created");
+		}
+		return this.executor;
+	}
+
+	/**
+	 * set the executor used to run requests concurrently. An executor you set
+	 * is not shut down when this connection is closed.
+	 * 
+	 * @param executor
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		if (this.ownExecutor)
+			this.executor.shutdown();
+		this.executor = executor;
+		this.ownExecutor = false;
+	}
+
+	/**
+	 * Run tasks on the executor of this connection, with at most
+	 * <code>limit</code> of them running at once. This method returns once
+	 * every task has been started, and the futures it returns are in the same
+	 * order as the tasks.
+	 * 
+	 * <code>
+	 * <pre>
+	 * List&lt;ResultFuture&lt;Person&gt;&gt; people = c.fanOut(finds, 100);
+	 * for (ResultFuture&lt;Person&gt; p : people)
+	 *   p.getResult()...
+	 * </pre>
+	 * </code>
+	 * 
+	 * With an executor that starts a thread per task, the limit is the only
+	 * thing bounding how many requests are in flight, so it should be no more
+	 * than the service, and the connection pool, can cope with.
+	 * 
+	 * @param tasks
+	 * @param limit
+	 *            the most tasks to run at once, or 0 for no limit
+	 * @return a future for each task
+	 * @throws InterruptedException
+	 */
+	public <V> List<ResultFuture<V>> fanOut(
+			List<? extends Callable<V>> tasks, int limit)
+			throws InterruptedException {
+		final Semaphore permits = limit > 0 ? new Semaphore(limit) : null;
+		List<ResultFuture<V>> futures = new ArrayList<ResultFuture<V>>(
+				tasks.size());
+		ExecutorService e = getExecutor();
+		for (Callable<V> task : tasks) {
+			ResultFuture<V> f = new ResultFuture<V>(task) {
+				@Override
+				protected void done() {
+					if (permits != null)
+						permits.release();
+				}
+			};
+			if (permits != null)
+				permits.acquire();
+			futures.add(f);
+			try {
+				e.execute(f);
+			} catch (RejectedExecutionException x) {
+				f.setException(x);
+			}
+		}
+		return futures;
+	}
+
 	/**
 	 * Close this resource connection
 	 */
 	public void close() {
+		synchronized (this) {
+			this.closed = true;
+			// keep it, so later tasks are rejected rather than starting a
+			// new pool
+			if (this.ownExecutor) {
+				this.executor.shutdown();
+				this.ownExecutor = false;
+			}
+			if (this.hedgeTimer != null) {
+				this.hedgeTimer.shutdown();
+				this.hedgeTimer = null;
+			}
+		}
 		clientFactory.shutter();
 	}
 	
@@ -231,6 +744,11 @@ public class ResourceConnection {
 	 * append url to the site this Connection was created with, issue a HTTP GET
 	 * request, and return the body of the HTTP response
 	 * 
+	 * If this connection is coalescing gets and a request for the same URL is
+	 * already in flight, wait for that one and return its body instead. If the
+	 * thread doing that request is interrupted, the ones waiting on it start
+	 * over and one of them does the read.
+	 * 
 	 * @param url
 	 *            generates a URL when toString() is called
 	 * @return a string containing the body of the response
@@ -241,16 +759,62 @@ public class ResourceConnection {
 	 */
 	public String get(Object url) throws HttpException, IOException,
 			InterruptedException, URISyntaxException {
+		if (!isCoalescingGets())
+			return read(url);
 
-		StringBuffer sb = new StringBuffer();
-		BufferedReader reader = getStream(url);
+		String uri = this.getSite().toString() + url.toString();
+		while (true) {
+			ResultFuture<String> mine = new ResultFuture<String>();
+			ResultFuture<String> leader = inFlight.putIfAbsent(uri, mine);
+			if (leader != null) {
+				metrics.incrementCoalescedRequests();
+				log.trace("coalescing HttpGet uri=" + uri);
+				try {
+					return leader.getResult();
+				} catch (CancellationException e) {
+					// the leader was interrupted, so nobody read it for us
+					continue;
+				}
+			}
+
+			try {
+				mine.set(read(url));
+			} catch (InterruptedException e) {
+				// the interrupt was meant for this thread only, so don't
+				// hand it to the followers; they go around again instead
+				inFlight.remove(uri, mine);
+				mine.cancel(false);
+				Thread.currentThread().interrupt();
+				throw e;
+			} catch (Throwable t) {
+				mine.setException(t);
+			} finally {
+				inFlight.remove(uri, mine);
+			}
+			return mine.getResult();
+		}
+	}
+
+	/**
+	 * issue a HTTP GET request and read the whole body into a string
+	 */
+	private String read(Object url) throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+
+		StringBuilder sb = new StringBuilder();
+		ResponseReader reader = getStream(url);
 		if (reader != null) {
+			boolean done = false;
 			try {
 				int c;
 				while ((c = reader.read()) != -1)
 					sb.append((char) c);
+				done = true;
 			} finally {
-				reader.close();
+				if (done)
+					reader.close();
+				else
+					reader.abort();
 			}
 		}
 		return sb.toString();
@@ -260,7 +824,8 @@ public class ResourceConnection {
 	 * append url to the site this Connection was created with, issue a HTTP GET
 	 * request, and return a buffered input stream of the body of the HTTP
 	 * response. You have to call reader.close() when you are done with it in
-	 * order to clean up resources cleanly.
+	 * order to clean up resources cleanly, or reader.abort() if you don't want
+	 * the rest of it.
 	 * 
 	 * if there is no response body, return null
 	 * 
@@ -271,31 +836,262 @@ public class ResourceConnection {
 	 * @throws InterruptedException
 	 * @throws URISyntaxException
 	 */
-	public BufferedReader getStream(Object url) throws HttpException,
+	public ResponseReader getStream(Object url) throws HttpException,
 			IOException, InterruptedException, URISyntaxException {
 
 		HttpClient client = clientFactory.getHttpClient(this.getSite());
 		String uri = this.getSite().toString() + url.toString();
 
-		HttpGet request = new HttpGet(uri);
 		HttpEntity entity = null;
 		log.trace("HttpGet uri=" + uri);
 
-		HttpResponse response = client.execute(request);
-		checkHttpStatus(response);
-		entity = response.getEntity();
+		Attempt attempt = new Attempt(client, uri);
+		HedgePolicy h = hedgePolicy;
+		if (h == null || closed)
+			attempt.call();
+		else
+			attempt = hedged(h, attempt);
+		HttpGet request = attempt.request;
+		HttpResponse response = attempt.response;
 
-		BufferedReader reader = null;
-		if (entity != null) {
-			reader = new BufferedReader(new InputStreamReader(
-					entity.getContent()));
+		ResponseReader reader = null;
+		try {
+			checkHttpStatus(response);
+			entity = response.getEntity();
+			if (entity != null) {
+				reader = new ResponseReader(new InputStreamReader(entity
+						.getContent()), request);
+			}
+		} finally {
+			if (reader == null)
+				release(request, response);
 		}
 		return reader;
 	}
 
+	/**
+	 * one GET, which may be raced against another
+	 */
+	private class Attempt {
+		private final HttpClient client;
+		private final HttpGet request;
+		private HttpResponse response;
+		// guarded by the race
+		private long start;
+		private boolean started;
+		private boolean finished;
+
+		Attempt(HttpClient client, String uri) {
+			this.client = client;
+			this.request = new HttpGet(uri);
+		}
+
+		public Attempt call() throws IOException, ServerError {
+			response = execute(client, request);
+			return this;
+		}
+	}
+
+	/**
+	 * send the first attempt on this thread, and if it hasn't answered by the
+	 * time the policy says, send a second one on the executor. Whichever
+	 * answers first wins and the other is aborted, which hands its connection
+	 * back to the pool. Nothing here waits for the executor to find a thread,
+	 * so it is safe to call from a task running on a bounded executor.
+	 */
+	private Attempt hedged(HedgePolicy h, Attempt first) throws IOException,
+			ServerError, InterruptedException {
+		long delay = h.getDelayNanos();
+		if (delay < 0) {
+			long start = System.nanoTime();
+			first.call();
+			h.record(System.nanoTime() - start);
+			return first;
+		}
+
+		Race race = new Race(h, first);
+		ScheduledFuture<?> trigger = hedgeTimer().schedule(race, delay,
+				TimeUnit.NANOSECONDS);
+		race.attempt(first);
+		trigger.cancel(false);
+		return race.result();
+	}
+
+	private synchronized ScheduledExecutorService hedgeTimer() {
+		if (hedgeTimer == null) {
+			if (closed)
+				throw new RejectedExecutionException("connection is closed");
+			hedgeTimer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "jactiveresource-hedge");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return hedgeTimer;
+	}
+
+	/**
+	 * a GET and the copy of it sent if it is slow. Run by the timer once the
+	 * delay is up, to send the copy.
+	 */
+	private class Race implements Runnable {
+		private final HedgePolicy policy;
+		private final Attempt first;
+		private final long start = System.nanoTime();
+		// a lock rather than a monitor, as the caller waits on it while the
+		// copy is on the network
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition done = lock.newCondition();
+		// guarded by lock
+		private Attempt second;
+		private boolean abandoned;
+		private int running;
+		private Attempt winner;
+		private Throwable failure;
+
+		Race(HedgePolicy policy, Attempt first) {
+			this.policy = policy;
+			this.first = first;
+		}
+
+		public void run() {
+			final Attempt hedge;
+			lock.lock();
+			try {
+				if (first.finished || !policy.tryHedge())
+					return;
+				hedge = second = new Attempt(first.client, first.request
+						.getURI().toString());
+				running++;
+			} finally {
+				lock.unlock();
+			}
+			metrics.incrementHedgedRequests();
+			log.trace("hedging HttpGet uri=" + hedge.request.getURI());
+			try {
+				getExecutor().execute(new Runnable() {
+					public void run() {
+						attempt(hedge);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				finished(hedge, e);
+			}
+		}
+
+		/**
+		 * send an attempt, unless the race is already over
+		 */
+		void attempt(Attempt a) {
+			lock.lock();
+			try {
+				if (winner != null || abandoned) {
+					finished(a, null);
+					return;
+				}
+				a.start = System.nanoTime();
+				a.started = true;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				a.call();
+				finished(a, null);
+			} catch (Throwable t) {
+				finished(a, t);
+			}
+		}
+
+		private void finished(Attempt a, Throwable t) {
+			lock.lock();
+			try {
+				record(a, t);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// must hold the lock
+		private void record(Attempt a, Throwable t) {
+			a.finished = true;
+			if (a == second)
+				running--;
+			done.signalAll();
+			if (!a.started)
+				return;
+			if (t != null) {
+				if (a == first || failure == null)
+					failure = t;
+				return;
+			}
+			if (winner != null) {
+				// answered, but too late
+				a.request.abort();
+				return;
+			}
+			winner = a;
+			long now = System.nanoTime();
+			// the caller has been waiting since the first attempt went out
+			policy.record(now - start);
+			Attempt loser = a == first ? second : first;
+			if (loser != null && loser.started && !loser.finished) {
+				// all we know is that the loser takes at least this long
+				policy.recordCensored(now - (loser == first ? start
+						: loser.start));
+				loser.request.abort();
+			}
+		}
+
+		/**
+		 * wait for a winner, once the first attempt is done
+		 */
+		Attempt result() throws IOException, ServerError,
+				InterruptedException {
+			lock.lock();
+			try {
+				if (winner == null && second != null && !second.started) {
+					// don't wait for the executor to get round to it
+					abandoned = true;
+				}
+				try {
+					while (winner == null && !abandoned && running > 0)
+						done.await();
+				} catch (InterruptedException e) {
+					abandoned = true;
+					if (second != null)
+						second.request.abort();
+					throw e;
+				}
+				if (winner == null)
+					throw unwrap(failure);
+				if (winner != first)
+					metrics.incrementHedgeWins();
+				return winner;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private IOException unwrap(Throwable cause) throws ServerError {
+		if (cause instanceof IOException)
+			return (IOException) cause;
+		if (cause instanceof ServerError)
+			throw (ServerError) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return new IOException(String.valueOf(cause));
+	}
+
 	/**
 	 * send an http put request to the server. This is a bit unique because
-	 * there is no response returned from the server.
+	 * there is no response returned from the server. The body of the response
+	 * is read into memory before this returns, so there is nothing to close.
 	 * 
 	 * @param url
 	 * @param body
@@ -308,20 +1104,40 @@ public class ResourceConnection {
 	public HttpResponse put(Object url, String body, String contentType)
 			throws URISyntaxException, HttpException, IOException,
 			InterruptedException {
+		return put(url, stringEntity(body, contentType));
+	}
+
+	/**
+	 * send an http put request with the given body, like a
+	 * {@link ResourceEntity} which writes itself onto the connection as the
+	 * request is sent. The body of the response is read into memory before
+	 * this returns, so there is nothing to close.
+	 * 
+	 * @param url
+	 * @param entity
+	 * @throws URISyntaxException
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public HttpResponse put(Object url, HttpEntity entity)
+			throws URISyntaxException, HttpException, IOException,
+			InterruptedException {
 		HttpClient client = clientFactory.getHttpClient(this.getSite());
 		String uri = this.getSite().toString() + url.toString();
 
 		HttpPut request = new HttpPut(uri);
 		log.trace("HttpPut uri=" + uri);
-		request.setHeader(CONTENT_TYPE, contentType);
-		StringEntity entity = new StringEntity(body);
 		request.setEntity(entity);
-		HttpResponse response = client.execute(request);
+		HttpResponse response = execute(client, request);
+		buffer(request, response);
 		return response;
 	}
 
 	/**
-	 * post body to url using the supplied content type
+	 * post body to url using the supplied content type. The body of the
+	 * response is read into memory before this returns, so there is nothing
+	 * to close.
 	 * 
 	 * @param url
 	 * @param body
@@ -333,18 +1149,43 @@ public class ResourceConnection {
 	public HttpResponse post(Object url, String body, String contentType)
 			throws ClientProtocolException, IOException, ClientError,
 			ServerError {
+		return post(url, stringEntity(body, contentType));
+	}
+
+	/**
+	 * post the given body to url, like a {@link ResourceEntity} which writes
+	 * itself onto the connection as the request is sent. The body of the
+	 * response is read into memory before this returns, so there is nothing
+	 * to close.
+	 * 
+	 * @param url
+	 * @param entity
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 * @throws ClientError
+	 * @throws ServerError
+	 */
+	public HttpResponse post(Object url, HttpEntity entity)
+			throws ClientProtocolException, IOException, ClientError,
+			ServerError {
 		HttpClient client = clientFactory.getHttpClient(this.getSite());
 		String uri = this.getSite().toString() + url.toString();
 
 		HttpPost request = new HttpPost(uri);
-		log.trace("HttpGet uri=" + uri);
-		request.setHeader(CONTENT_TYPE, contentType);
-		StringEntity entity = new StringEntity(body);
+		log.trace("HttpPost uri=" + uri);
 		request.setEntity(entity);
-		HttpResponse response = client.execute(request);
+		HttpResponse response = execute(client, request);
+		buffer(request, response);
 		return response;
 	}
 
+	private StringEntity stringEntity(String body, String contentType)
+			throws UnsupportedEncodingException {
+		StringEntity entity = new StringEntity(body, "UTF-8");
+		entity.setContentType(contentType);
+		return entity;
+	}
+
 	/**
 	 * delete a resource on the server
 	 * 
@@ -360,8 +1201,310 @@ public class ResourceConnection {
 		String uri = this.getSite().toString() + url.toString();
 		HttpDelete request = new HttpDelete(uri);
 		log.trace("HttpDelete uri=" + uri);
+		HttpResponse response = execute(client, request);
+		try {
+			checkHttpStatus(response);
+		} finally {
+			release(request, response);
+		}
+	}
+
+	/**
+	 * read the body of a response into memory, so the connection goes back to
+	 * the pool before the caller ever sees the response
+	 */
+	private void buffer(HttpRequestBase request, HttpResponse response)
+			throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null)
+			return;
+		try {
+			response.setEntity(new BufferedHttpEntity(entity));
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			request.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * we are done with a response without reading it, so read the rest of the
+	 * body to free the connection, or drop the connection if that fails
+	 */
+	private void release(HttpRequestBase request, HttpResponse response) {
+		try {
+			EntityUtils.consume(response.getEntity());
+		} catch (IOException e) {
+			request.abort();
+		} catch (RuntimeException e) {
+			request.abort();
+		}
+	}
+
+	/**
+	 * every request this connection sends goes through here
+	 */
+	private HttpResponse execute(HttpClient client, HttpUriRequest request)
+			throws IOException, ClientProtocolException, ServerError {
+		RetryPolicy policy = retryPolicy;
+		if (policy == null)
+			return guarded(client, request);
+
+		boolean retryable = policy.isRetryable(request.getMethod())
+				&& repeatable(request);
+		policy.recordRequest();
+		for (int retry = 1;; retry++) {
+			HttpResponse response;
+			try {
+				response = guarded(client, request);
+			} catch (IOException e) {
+				if (!retryable || aborted(request) || !policy.tryRetry(retry))
+					throw e;
+				log.trace("retrying " + request.getURI() + " after " + e);
+				backoff(policy, retry);
+				continue;
+			}
+			int status = response.getStatusLine().getStatusCode();
+			if (!retryable || !policy.isRetryableStatus(status)
+					|| !policy.tryRetry(retry))
+				return response;
+			log.trace("retrying " + request.getURI() + " after " + status);
+			EntityUtils.consume(response.getEntity());
+			backoff(policy, retry);
+		}
+	}
+
+	private void backoff(RetryPolicy policy, int retry)
+			throws InterruptedIOException {
+		metrics.incrementRetries();
+		try {
+			Thread.sleep(policy.delay(retry));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * send one attempt, if the circuit breaker allows it
+	 */
+	private HttpResponse guarded(HttpClient client, HttpUriRequest request)
+			throws IOException, ClientProtocolException, ServerError {
+		CircuitBreaker b = circuitBreaker;
+		if (b == null)
+			return send(client, request);
+
+		if (!b.allowRequest()) {
+			metrics.incrementShortCircuitedRequests();
+			throw new CircuitOpen("circuit open for " + getSite());
+		}
+		HttpResponse response;
+		try {
+			response = send(client, request);
+		} catch (LimitExceeded e) {
+			b.onIgnored();
+			throw e;
+		} catch (IOException e) {
+			if (aborted(request))
+				b.onIgnored();
+			else
+				b.onFailure();
+			throw e;
+		} catch (RuntimeException e) {
+			b.onFailure();
+			throw e;
+		}
+		if (response.getStatusLine().getStatusCode() >= 500)
+			b.onFailure();
+		else
+			b.onSuccess();
+		return response;
+	}
+
+	/**
+	 * send one attempt, if the concurrency limiter for the site allows it
+	 */
+	private HttpResponse limited(ConcurrencyLimiter l, URL site,
+			HttpClient client, HttpUriRequest request) throws IOException,
+			ClientProtocolException, LimitExceeded {
+		if (l == null)
+			return counted(client, request);
+
+		try {
+			if (!l.acquire()) {
+				metrics.incrementRejectedRequests();
+				throw new LimitExceeded("too many requests in flight to "
+						+ site);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		long start = System.nanoTime();
+		boolean dropped = true;
+		try {
+			HttpResponse response = counted(client, request);
+			int status = response.getStatusLine().getStatusCode();
+			dropped = status == 429 || status == 503;
+			return response;
+		} finally {
+			l.release(System.nanoTime() - start, dropped && !aborted(request));
+		}
+	}
+
+	/**
+	 * the limiter for one of the sites of a load balancer, a copy of the one
+	 * set on the connection
+	 */
+	private ConcurrencyLimiter limiterFor(Endpoint e) {
+		ConcurrencyLimiter template = limiter;
+		if (template == null)
+			return null;
+		ConcurrencyLimiter l = endpointLimiters.get(e);
+		if (l == null) {
+			l = template.copy();
+			ConcurrencyLimiter raced = endpointLimiters.putIfAbsent(e, l);
+			if (raced != null)
+				l = raced;
+		}
+		return l;
+	}
+
+	/**
+	 * a body which can only be written once, like a stream, can't be sent
+	 * again
+	 */
+	private static boolean repeatable(HttpUriRequest request) {
+		if (!(request instanceof HttpEntityEnclosingRequest))
+			return true;
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		return entity == null || entity.isRepeatable();
+	}
+
+	/**
+	 * a request we gave up on ourselves, like the loser of a hedge, says
+	 * nothing about the health of the service
+	 */
+	private static boolean aborted(HttpUriRequest request) {
+		return request instanceof HttpRequestBase
+				&& ((HttpRequestBase) request).isAborted();
+	}
+
+	/**
+	 * pick the site for one attempt and send it there
+	 */
+	private HttpResponse send(HttpClient client, HttpUriRequest request)
+			throws IOException, ClientProtocolException, LimitExceeded {
+		if (!(request instanceof HttpRequestBase)
+				|| (balancer == null && readReplicas == null))
+			return limited(limiter, site, client, request);
+
+		HttpRequestBase base = (HttpRequestBase) request;
+		String uri = originalURI(base);
+		LoadBalancer replicas = readReplicas;
+		if (replicas == null)
+			return balanced(balancer, client, base, uri);
+
+		String method = request.getMethod();
+		if (method.equals("GET") || method.equals("HEAD")) {
+			if (!recentWrites.isRecent(uri))
+				return balanced(replicas, client, base, uri);
+			metrics.incrementPrimaryReads();
+			return balanced(balancer, client, base, uri);
+		}
+
+		// reads sent while the write is in flight go to the primary too, and
+		// the window starts again once it is done, however long it took
+		recentWrites.record(uri, readYourWritesWindow);
+		try {
+			return balanced(balancer, client, base, uri);
+		} finally {
+			recentWrites.record(uri, readYourWritesWindow);
+		}
+	}
+
+	/**
+	 * send an attempt to one of the sites of a load balancer, or to our own
+	 * site if there isn't one
+	 */
+	private HttpResponse balanced(LoadBalancer b, HttpClient client,
+			HttpRequestBase request, String uri) throws IOException,
+			ClientProtocolException, LimitExceeded {
+		if (b == null)
+			return limited(limiter, site, client, request);
+
+		Endpoint e = b.select();
+		request.setURI(URI.create(e.resolve(site, uri)));
+		long start = System.nanoTime();
+		boolean failed = true;
+		boolean ignored = false;
+		try {
+			HttpResponse response = limited(limiterFor(e), e.getSite(),
+					client, request);
+			failed = response.getStatusLine().getStatusCode() >= 500;
+			return response;
+		} catch (LimitExceeded x) {
+			// never sent, so it says nothing about the endpoint
+			ignored = true;
+			throw x;
+		} finally {
+			if (ignored || aborted(request))
+				b.onIgnored(e);
+			else if (failed)
+				b.onFailure(e);
+			else
+				b.onSuccess(e, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * the url a request was made with, before any attempt at it was pointed
+	 * at another site
+	 */
+	private String originalURI(HttpRequestBase request) {
+		String uri = (String) request.getParams().getParameter(ORIGINAL_URI);
+		if (uri == null) {
+			uri = request.getURI().toString();
+			request.getParams().setParameter(ORIGINAL_URI, uri);
+		} else {
+			request.setURI(URI.create(uri));
+		}
+		return uri;
+	}
+
+	/**
+	 * count the request, and send it
+	 */
+	private HttpResponse counted(HttpClient client, HttpUriRequest request)
+			throws IOException, ClientProtocolException {
+		metrics.incrementRequests();
+		NPlusOneDetector d = nPlusOneDetector;
+		if (d != null) {
+			URI uri = request.getURI();
+			String query = uri.getRawQuery();
+			d.record(query == null ? uri.getRawPath() : uri.getRawPath() + "?"
+					+ query);
+		}
+		return authorized(client, request);
+	}
+
+	/**
+	 * add the bearer token, if there is one, and send
+	 */
+	private HttpResponse authorized(HttpClient client, HttpUriRequest request)
+			throws IOException, ClientProtocolException {
+		TokenProvider t = tokenProvider;
+		if (t == null)
+			return client.execute(request);
+
+		String token = t.getToken();
+		request.setHeader(AUTHORIZATION, "Bearer " + token);
 		HttpResponse response = client.execute(request);
-		checkHttpStatus(response);
+		if (response.getStatusLine().getStatusCode() == 401)
+			t.invalidate(token);
+		return response;
 	}
 
 	/**
@@ -0,0 +1,154 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * The body of a request which serializes a resource, or a list of them,
+ * straight onto the connection as the request is sent, instead of building
+ * up a String first. Get one from {@link ResourceFactory#streamOne(Resource)}
+ * or {@link ResourceFactory#streamMany(java.util.List)} and hand it to
+ * {@link ResourceConnection#post(Object, org.apache.http.HttpEntity)} or
+ * {@link ResourceConnection#put(Object, org.apache.http.HttpEntity)}.
+ * <p>
+ * The body is always UTF-8. By default it is sent with a Content-Length,
+ * which every server and proxy understands, so the object is serialized once
+ * just to count the bytes, then again onto the connection. That costs time
+ * but still no memory, and the count is kept, so it is only done once however
+ * often the length is asked for. If the service accepts chunked transfer
+ * encoding, call <code>setChunked(true)</code> to skip the counting.
+ * <p>
+ * The object is serialized each time the body is written, so the entity can
+ * be sent again when a request is retried. Don't change it until the request
+ * is done, or the body won't match the length that was sent.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ResourceEntity extends AbstractHttpEntity {
+
+	private static final String CHARSET = "UTF-8";
+
+	private final XStream xstream;
+	private final Object source;
+	private long length = -1;
+
+	/**
+	 * @param xstream
+	 *            the XStream which serializes source
+	 * @param source
+	 *            the object to send
+	 * @param mimeType
+	 *            the mime type of the serialized object, like
+	 *            application/xml
+	 */
+	ResourceEntity(XStream xstream, Object source, String mimeType) {
+		this.xstream = xstream;
+		this.source = source;
+		setContentType(mimeType + "; charset=" + CHARSET);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		if (out == null)
+			throw new IllegalArgumentException("output stream may not be null");
+		Writer w = new OutputStreamWriter(out, CHARSET);
+		xstream.toXML(source, w);
+		w.flush();
+	}
+
+	/**
+	 * @return -1 if the body is chunked, otherwise the number of bytes in it
+	 */
+	public synchronized long getContentLength() {
+		if (isChunked())
+			return -1;
+		if (length < 0) {
+			CountingOutputStream c = new CountingOutputStream();
+			try {
+				writeTo(c);
+			} catch (IOException e) {
+				return -1;
+			}
+			length = c.count;
+		}
+		return length;
+	}
+
+	/**
+	 * serialize the whole body into memory and return a stream of it. This is
+	 * here because HttpEntity needs it; sending the request doesn't use it.
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		writeTo(buf);
+		return new ByteArrayInputStream(buf.toByteArray());
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * throws away what is written to it, except for how much
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
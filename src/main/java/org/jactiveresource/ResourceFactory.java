@@ -37,12 +37,23 @@ import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -51,6 +62,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.util.EntityUtils;
 import org.jactiveresource.annotation.CollectionName;
+import org.jactiveresource.annotation.ResourcePath;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
@@ -95,6 +107,8 @@ import com.thoughtworks.xstream.io.xml.XppDriver;
  * <ul>
  * <li>{@link #find(String)} - find a resource on the server with the given
  * identifier</li>
+ * <li>{@link #find(Collection)} - find many resources by identifier, several
+ * at a time</li>
  * <li>{@link #findAll()} - find all resources known to the server</li>
  * <li>{@link #findAll(URL)} - find all resources meeting certain criteria</li>
  * <li>{@link #instantiate()} - create an empty resource object</li>
@@ -104,7 +118,27 @@ import com.thoughtworks.xstream.io.xml.XppDriver;
  * new, updates it otherwise</li>
  * <li>{@link #reload(Resource)} - reload an object from the server</li>
  * <li>{@link #reload(Resource)} - delete a resource from the server</li>
+ * <li>{@link #writeBatcher()} - create, update and delete lots of resources
+ * concurrently</li>
  * </ul>
+ * 
+ * <h3>Nested resources</h3>
+ * 
+ * If your resources live inside another resource, like the comments at
+ * <code>http://localhost:3000/posts/1/comments.xml</code>, annotate the class
+ * with {@link ResourcePath} and bind the factory to a parent with
+ * {@link #withPrefix(String, Object)}:
+ * 
+ * <code>
+ * <pre>
+ * ResourceFactory&lt;Comment&gt; comments = cf.withPrefix("post_id", 1);
+ * ArrayList&lt;Comment&gt; firstPostComments = comments.findAll();
+ * </pre>
+ * </code>
+ * 
+ * When you create, update or delete a resource, placeholders the factory has
+ * no value for are filled in from the fields of the resource, so a comment
+ * with a postId of 1 is saved to <code>/posts/1/comments.xml</code>.
  * <p>
  * You may discover that the methods supplied are not sufficient for all of the
  * capabilities provided by the server resource you are accessing. You can
@@ -117,20 +151,34 @@ import com.thoughtworks.xstream.io.xml.XppDriver;
  * <li>{@link #deserializeMany(BufferedReader)} - if you want to do the network
  * IO yourself, this method will deserialize a list of objects from an input
  * stream</li>
+ * <li>{@link #publishMany(Object)} - pass this method any url, and it will
+ * parse the contents one resource at a time as a subscriber asks for
+ * them</li>
  * </ul>
  * 
  * @version $LastChangedRevision$ <br>
  *          $LastChangedDate$
  * @author $LastChangedBy$
  */
-public class ResourceFactory<T extends Resource> {
+public class ResourceFactory<T extends Resource> implements Cloneable {
 
 	private ResourceConnection connection;
 	private ResourceFormat rf;
 	private Class<T> clazz;
 	private XStream xstream;
+	private boolean xstreamShared;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private boolean parallelDecoding;
+	private Map<String, String> prefix = Collections.emptyMap();
+	private final ConcurrentMap<String, Field> prefixFields = new ConcurrentHashMap<String, Field>();
 	private Log log = LogFactory.getLog(ResourceFactory.class);
 
+	/**
+	 * the default number of requests a factory will have outstanding at once
+	 * when it fans out, see {@link #setParallelism(int)}
+	 */
+	public static final int DEFAULT_PARALLELISM = 8;
+
 	/**
 	 * Create a new resource factory for a class mapped to a network resource.
 	 * By default, the format is assumed to be XML.
@@ -192,6 +240,32 @@ public class ResourceFactory<T extends Resource> {
 		return this.rf;
 	}
 
+	/**
+	 * return the maximum number of requests this factory will have outstanding
+	 * at once when one call fans out into many requests
+	 * 
+	 * @return the parallelism limit
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * set the maximum number of requests this factory will have outstanding at
+	 * once when one call fans out into many requests, like
+	 * {@link #find(Collection)}. There isn't much point in setting this higher
+	 * than the number of connections the {@link AbstractHttpClientFactory} of
+	 * the connection allows per route.
+	 * 
+	 * @param parallelism
+	 *            a number greater than zero
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be > 0");
+		this.parallelism = parallelism;
+	}
+
 	/**
 	 * create the appropriate Hierarchical Stream Driver for XStream based on
 	 * the resource format of this factory
@@ -248,6 +322,16 @@ public class ResourceFactory<T extends Resource> {
 	 */
 	public void setXStream(XStream xstream) {
 		this.xstream = xstream;
+		this.xstreamShared = false;
+	}
+
+	/**
+	 * @return true if this factory shares its XStream with a copy made by
+	 *         {@link #withPrefix(String, Object)}, or with the factory it was
+	 *         copied from
+	 */
+	protected boolean isXStreamShared() {
+		return xstreamShared;
 	}
 
 	/**
@@ -280,6 +364,52 @@ public class ResourceFactory<T extends Resource> {
 		return fetchOne(uriForOne(id));
 	}
 
+	/**
+	 * Retrieve many resources by their identifiers. Rather than one round trip
+	 * after another, the requests are run on the executor of the connection,
+	 * with at most {@link #getParallelism()} of them outstanding at once.
+	 * 
+	 * <code>
+	 * <pre>
+	 * BatchResult&lt;Person&gt; people = rf.find(Arrays.asList("1", "2", "3"));
+	 * </pre>
+	 * </code>
+	 * 
+	 * The results are in the same order as <code>ids</code>. If an id can't be
+	 * retrieved, the exception is recorded in its position in the result and
+	 * the rest of the batch carries on.
+	 * 
+	 * @param ids
+	 *            the identifiers to retrieve
+	 * @return the resources or errors for each id, in order
+	 * @throws InterruptedException
+	 */
+	public BatchResult<T> find(Collection<String> ids)
+			throws InterruptedException {
+		final List<String> list = new ArrayList<String>(ids);
+		final BatchResult<T> result = new BatchResult<T>(list);
+		log.trace("finding " + list.size() + " ids");
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < list.size(); i++) {
+			final int index = i;
+			tasks.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					try {
+						result.set(index, find(list.get(index)));
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						result.setError(index, e);
+					}
+					return null;
+				}
+			});
+		}
+		invokeInParallel(tasks);
+		return result;
+	}
+
 	/**
 	 * Fetch all the resources. Say I have a person service at
 	 * <code>http://localhost:3000/</code>. The following would return the list
@@ -443,10 +573,8 @@ public class ResourceFactory<T extends Resource> {
 			ServerError, IOException {
 		log.trace("trying to create resource of class="
 				+ r.getClass().toString());
-		URI url = uriForCollection();
-		String xml = serializeOne(r);
-		HttpResponse response = getConnection().post(url, xml,
-				getResourceFormat().contentType());
+		URI url = uriForCollection(r);
+		HttpResponse response = getConnection().post(url, streamOne(r));
 		String entity = EntityUtils.toString(response.getEntity());
 		try {
 			getConnection().checkHttpStatus(response);
@@ -471,10 +599,8 @@ public class ResourceFactory<T extends Resource> {
 	public boolean update(T r) throws URISyntaxException, HttpException,
 			IOException, InterruptedException {
 		log.trace("update class=" + r.getClass().toString());
-		URI url = uriForOne(r.getId());
-		String xml = getXStream().toXML(r);
-		HttpResponse response = getConnection().put(url, xml,
-				getResourceFormat().contentType());
+		URI url = uriFor(r);
+		HttpResponse response = getConnection().put(url, streamOne(r));
 		// String entity = EntityUtils.toString(response.getEntity());
 		try {
 			connection.checkHttpStatus(response);
@@ -514,7 +640,7 @@ public class ResourceFactory<T extends Resource> {
 	public void reload(T r) throws HttpException, IOException,
 			InterruptedException, URISyntaxException {
 		log.trace("reloading class=" + r.getClass().toString());
-		URI url = uriForOne(r.getId());
+		URI url = uriFor(r);
 		fetchOne(url, r);
 	}
 
@@ -529,12 +655,22 @@ public class ResourceFactory<T extends Resource> {
 	 */
 	public void delete(T r) throws ClientError, ServerError,
 			ClientProtocolException, IOException {
-		URI url = uriForOne(r.getId());
+		URI url = uriFor(r);
 		log.trace("deleting class=" + r.getClass().toString() + " id="
 				+ r.getId());
 		getConnection().delete(url);
 	}
 
+	/**
+	 * Create a {@link WriteBatcher} which performs writes through this factory,
+	 * with at most {@link #getParallelism()} of them in flight at once.
+	 * 
+	 * @return a new write batcher
+	 */
+	public WriteBatcher<T> writeBatcher() {
+		return new WriteBatcher<T>(this, getParallelism());
+	}
+
 	/**
 	 * Create one object from the response of a given url. If your subclass
 	 * wants to create a bunch of cool find methods that each generate a proper
@@ -583,6 +719,28 @@ public class ResourceFactory<T extends Resource> {
 		return getXStream().toXML(resource);
 	}
 
+	/**
+	 * serialize a single resource onto a writer
+	 * 
+	 * @param resource
+	 * @param out
+	 */
+	public void serializeOne(T resource, Writer out) {
+		getXStream().toXML(resource, out);
+	}
+
+	/**
+	 * make a request body which serializes a single resource as it is sent,
+	 * see {@link ResourceEntity}
+	 * 
+	 * @param resource
+	 * @return a request body
+	 */
+	public ResourceEntity streamOne(T resource) {
+		return new ResourceEntity(getXStream(), resource, getResourceFormat()
+				.contentType());
+	}
+
 	/**
 	 * Update an existing object with data from the given url
 	 * 
@@ -632,7 +790,62 @@ public class ResourceFactory<T extends Resource> {
 	 */
 	public ArrayList<T> fetchMany(Object url) throws HttpException,
 			IOException, InterruptedException, URISyntaxException {
-		return deserializeMany(getConnection().getStream(url));
+		ResponseReader reader = getConnection().getStream(url);
+		if (reader == null)
+			return new ArrayList<T>();
+		boolean done = false;
+		try {
+			ArrayList<T> list = deserializeMany(reader);
+			done = true;
+			return list;
+		} finally {
+			if (!done)
+				reader.abort();
+		}
+	}
+
+	/**
+	 * Publish all the resources, parsing them from the response as the
+	 * subscriber asks for them rather than all at once. See
+	 * {@link ResourcePublisher}.
+	 * 
+	 * @return a publisher which sends a request for each subscriber
+	 */
+	public Publisher<T> publishAll() {
+		return publishMany(uriForCollection());
+	}
+
+	/**
+	 * Publish the resources returned by a given url, parsing them from the
+	 * response as the subscriber asks for them.
+	 * 
+	 * @param url
+	 * @return a publisher which sends a request for each subscriber
+	 */
+	public Publisher<T> publishMany(Object url) {
+		return new ResourcePublisher<T>(this, url);
+	}
+
+	/**
+	 * @return true if large XML collections are deserialized on several
+	 *         threads
+	 */
+	public boolean isParallelDecoding() {
+		return parallelDecoding;
+	}
+
+	/**
+	 * If true, {@link #deserializeMany(BufferedReader)} splits XML collections
+	 * into the XML for each resource on the calling thread, and turns them
+	 * into objects on the executor of the connection, using up to
+	 * {@link #getParallelism()} threads. This pays off for collections big
+	 * enough that parsing them keeps a core busy. The default is false. JSON
+	 * is always deserialized on the calling thread.
+	 * 
+	 * @param parallelDecoding
+	 */
+	public void setParallelDecoding(boolean parallelDecoding) {
+		this.parallelDecoding = parallelDecoding;
 	}
 
 	/**
@@ -644,9 +857,18 @@ public class ResourceFactory<T extends Resource> {
 	 * @return a list of objects
 	 * @throws IOException
 	 */
-	@SuppressWarnings("unchecked")
 	public ArrayList<T> deserializeMany(BufferedReader stream)
 			throws IOException {
+		if (isParallelDecoding() && getResourceFormat() == ResourceFormat.XML)
+			return new ParallelDecoder<T>(this).decode(stream);
+		return readMany(stream);
+	}
+
+	/**
+	 * inflate a list of objects on this thread, and close the stream
+	 */
+	@SuppressWarnings("unchecked")
+	ArrayList<T> readMany(Reader stream) throws IOException {
 		ObjectInputStream ostream = getXStream()
 				.createObjectInputStream(stream);
 		ArrayList<T> list = new ArrayList<T>();
@@ -680,6 +902,192 @@ public class ResourceFactory<T extends Resource> {
 		return getXStream().toXML(list);
 	}
 
+	/**
+	 * serialize a list of resources onto a writer, without building a string
+	 * of all of them first
+	 * 
+	 * @param list
+	 * @param out
+	 */
+	public void serializeMany(List<T> list, Writer out) {
+		getXStream().toXML(list, out);
+	}
+
+	/**
+	 * make a request body which serializes a list of resources as it is sent,
+	 * for services which accept a whole collection at once. See
+	 * {@link ResourceEntity}.
+	 * 
+	 * @param list
+	 * @return a request body
+	 */
+	public ResourceEntity streamMany(List<T> list) {
+		return new ResourceEntity(getXStream(), list, getResourceFormat()
+				.contentType());
+	}
+
+	/**
+	 * Run a list of tasks on the executor of the connection, with no more than
+	 * {@link #getParallelism()} of them running at once, and wait for all of
+	 * them to finish. Exceptions thrown by the tasks are logged and otherwise
+	 * ignored, so tasks that care should record their own failures.
+	 * 
+	 * @param tasks
+	 * @throws InterruptedException
+	 */
+	protected void invokeInParallel(List<? extends Callable<?>> tasks)
+			throws InterruptedException {
+		List<Callable<Object>> wrapped = new ArrayList<Callable<Object>>(
+				tasks.size());
+		for (final Callable<?> task : tasks) {
+			wrapped.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					return task.call();
+				}
+			});
+		}
+		for (ResultFuture<Object> f : getConnection().fanOut(wrapped,
+				getParallelism())) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof InterruptedException)
+					throw (InterruptedException) e.getCause();
+				log.info("parallel task failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Return a copy of this factory with a value for one of the placeholders in
+	 * the {@link ResourcePath} of its class. The copy shares the connection
+	 * and XStream of this factory, so it is cheap to make one per parent.
+	 * Anything else it gets a copy of, so changing the settings of one
+	 * factory leaves the other alone. Subclasses with mutable state of their
+	 * own copy it in {@link #clone()}.
+	 * 
+	 * <code>
+	 * <pre>
+	 * ResourceFactory&lt;Comment&gt; comments = cf.withPrefix("post_id", post.getId());
+	 * </pre>
+	 * </code>
+	 * 
+	 * @param name
+	 *            the placeholder, without the colon
+	 * @param value
+	 * @return a new factory
+	 */
+	@SuppressWarnings("unchecked")
+	public ResourceFactory<T> withPrefix(String name, Object value) {
+		Map<String, String> p = new HashMap<String, String>(prefix);
+		p.put(name, value.toString());
+		try {
+			ResourceFactory<T> copy = (ResourceFactory<T>) clone();
+			copy.prefix = Collections.unmodifiableMap(p);
+			copy.xstreamShared = true;
+			this.xstreamShared = true;
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the placeholder values this factory was bound to with
+	 *         {@link #withPrefix(String, Object)}
+	 */
+	public Map<String, String> getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * return the path to the collection, ie <code>people</code> or
+	 * <code>posts/1/comments</code>, without the format extension. Values
+	 * filled in from a {@link ResourcePath} are URL encoded.
+	 * 
+	 * @return the path to the collection
+	 */
+	public String getCollectionPath() {
+		return getCollectionPath(null);
+	}
+
+	/**
+	 * return the path to the collection containing the given resource. If the
+	 * class has a {@link ResourcePath}, placeholders which this factory has no
+	 * value for are filled in from the fields of the resource. If none of them
+	 * have a value, the path is just the collection name, ie
+	 * <code>comments</code>, as it was before the class had a path. If only
+	 * some of them do, an {@link IllegalStateException} is thrown.
+	 * 
+	 * @param resource
+	 *            may be null
+	 * @return the path to the collection
+	 */
+	protected String getCollectionPath(T resource) {
+		ResourcePath rp = getResourceClass().getAnnotation(ResourcePath.class);
+		if (rp == null)
+			return getCollectionName();
+		PathTemplate template = PathTemplate.compile(rp.value());
+		Map<String, String> values = prefix;
+		boolean bound = false;
+		for (String name : template.getNames()) {
+			if (values.containsKey(name)) {
+				bound = true;
+				continue;
+			}
+			String v = resource == null ? null : prefixFromResource(resource,
+					name);
+			if (v != null) {
+				if (values == prefix)
+					values = new HashMap<String, String>(prefix);
+				values.put(name, v);
+				bound = true;
+			}
+		}
+		if (!bound)
+			return getCollectionName();
+		return template.expand(values);
+	}
+
+	/**
+	 * read the value for a placeholder from a field of the resource
+	 */
+	private String prefixFromResource(T resource, String name) {
+		Field field = prefixFields.get(name);
+		if (field == null) {
+			String fieldName = prefixFieldName(name);
+			for (Class<?> c = resource.getClass(); c != null && field == null; c = c
+					.getSuperclass()) {
+				try {
+					field = c.getDeclaredField(fieldName);
+					field.setAccessible(true);
+				} catch (NoSuchFieldException e) {
+					// keep looking in the superclass
+				}
+			}
+			if (field == null)
+				return null;
+			prefixFields.put(name, field);
+		}
+		try {
+			Object v = field.get(resource);
+			return v == null ? null : v.toString();
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * return the name of the field holding the value of a placeholder. By
+	 * default this is the name of the placeholder itself.
+	 * 
+	 * @param placeholder
+	 * @return a field name
+	 */
+	protected String prefixFieldName(String placeholder) {
+		return placeholder;
+	}
+
 	/**
 	 * return the url that accesses the resource identified by id, ie
 	 * <code>/people/1.xml</code>
@@ -696,12 +1104,27 @@ public class ResourceFactory<T extends Resource> {
 		if (id == null) {
 			return null;
 		} else {
-			urlb = new URLBuilder(getCollectionName());
+			urlb = new URLBuilder().addEncoded(getCollectionPath());
 			urlb.add(id + getResourceFormat().extension());
 			return urlb.toURI();
 		}
 	}
 
+	/**
+	 * return the url that accesses the given resource, filling in any
+	 * placeholders in the path from the resource, ie
+	 * <code>/posts/1/comments/3.xml</code>
+	 * 
+	 * @param resource
+	 * @return a url fragment to be appended to a {@link ResourceConnection}
+	 */
+	protected URI uriFor(T resource) {
+		URLBuilder urlb = new URLBuilder()
+				.addEncoded(getCollectionPath(resource));
+		urlb.add(resource.getId() + getResourceFormat().extension());
+		return urlb.toURI();
+	}
+
 	/**
 	 * return the url that accesses the entire collection of resources, ie
 	 * <code>/people.xml</code>
@@ -711,7 +1134,21 @@ public class ResourceFactory<T extends Resource> {
 	 */
 	protected URI uriForCollection() {
 		URLBuilder urlb;
-		urlb = new URLBuilder(getCollectionName()
+		urlb = new URLBuilder().addEncoded(getCollectionPath()
+				+ getResourceFormat().extension());
+		return urlb.toURI();
+	}
+
+	/**
+	 * return the url of the collection the given resource belongs in, filling
+	 * in any placeholders in the path from the resource
+	 * 
+	 * @param resource
+	 * @return a url fragment to be appended to a {@link ResourceConnection}
+	 */
+	protected URI uriForCollection(T resource) {
+		URLBuilder urlb;
+		urlb = new URLBuilder().addEncoded(getCollectionPath(resource)
 				+ getResourceFormat().extension());
 		return urlb.toURI();
 	}
@@ -720,17 +1157,20 @@ public class ResourceFactory<T extends Resource> {
 	 * figure out the name of the collection of resources generated by the main
 	 * resource of this factory.
 	 * 
-	 * This method first looks for a CollectionName annotation on the class it
-	 * knows how to create. If there is no annotation, then the name of the
-	 * class is used.
+	 * This method first looks for a ResourcePath or CollectionName annotation
+	 * on the class it knows how to create. If there is no annotation, then the
+	 * name of the class is used.
 	 * 
 	 * @return the name of the collection
 	 */
 	protected String getCollectionName() {
 		String name;
+		ResourcePath rp = getResourceClass().getAnnotation(ResourcePath.class);
 		CollectionName cn = getResourceClass().getAnnotation(
 				CollectionName.class);
-		if (cn != null) {
+		if (rp != null) {
+			name = PathTemplate.compile(rp.value()).getCollectionName();
+		} else if (cn != null) {
 			name = cn.value();
 		} else {
 			name = getResourceClass().getSimpleName();
@@ -745,14 +1185,28 @@ public class ResourceFactory<T extends Resource> {
 	 * @param resource
 	 */
 	@SuppressWarnings("unchecked")
-	private void setFactory(T resource) {
+	void setFactory(T resource) {
 		if (ActiveResource.class.isInstance(resource)) {
 			ActiveResource<T> res = (ActiveResource<T>) resource;
 			res.setFactory(this);
 		}
+		inflated(resource);
 	}
 
-	protected Class<T> getResourceClass() {
+	/**
+	 * called for every resource this factory inflates, once XStream is done
+	 * with it. This does nothing, but subclasses can override it to finish
+	 * setting up their resources.
+	 * 
+	 * @param resource
+	 */
+	protected void inflated(T resource) {
+	}
+
+	/**
+	 * @return the class of the resources this factory creates
+	 */
+	public Class<T> getResourceClass() {
 		return clazz;
 	}
 
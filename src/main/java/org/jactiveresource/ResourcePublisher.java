@@ -0,0 +1,260 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Publishes the resources in a collection, parsing each one from the response
+ * only when a subscriber has asked for it. Get one from
+ * {@link ResourceFactory#publishAll()} or
+ * {@link ResourceFactory#publishMany(Object)}.
+ * 
+ * <code>
+ * <pre>
+ * rf.publishAll().subscribe(new Subscriber&lt;Person&gt;() {
+ *   private Subscription s;
+ *   public void onSubscribe(Subscription s) {
+ *     this.s = s;
+ *     s.request(10);
+ *   }
+ *   public void onNext(Person p) {
+ *     ...
+ *     s.request(1);
+ *   }
+ *   ...
+ * });
+ * </pre>
+ * </code>
+ * 
+ * Each subscription sends its own request, which happens on the executor of
+ * the connection when the first resources are asked for. Resources are read
+ * and handed over on that executor too. When the subscriber has nothing
+ * outstanding, reading stops, and the socket fills up and the server stops
+ * sending until more is asked for. Cancelling drops the connection instead
+ * of reading the rest of the response, and so does an exception thrown by
+ * the subscriber's <code>onNext</code>, which is then passed to its
+ * <code>onError</code>. If the executor won't take the work, say because the
+ * connection has been closed, the subscriber gets the
+ * RejectedExecutionException in <code>onError</code>.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ResourcePublisher<T extends Resource> implements Publisher<T> {
+
+	private final ResourceFactory<T> factory;
+	private final Object url;
+
+	private Log log = LogFactory.getLog(ResourcePublisher.class);
+
+	/**
+	 * @param factory
+	 *            the factory to read resources with
+	 * @param url
+	 *            the collection to read
+	 */
+	public ResourcePublisher(ResourceFactory<T> factory, Object url) {
+		this.factory = factory;
+		this.url = url;
+	}
+
+	public void subscribe(Subscriber<? super T> subscriber) {
+		subscriber.onSubscribe(new ResourceSubscription(subscriber));
+	}
+
+	private class ResourceSubscription implements Subscription, Runnable {
+
+		private final Subscriber<? super T> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		// how many times the drain has been asked for while running
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile IllegalArgumentException badRequest;
+		private volatile ResponseReader reader;
+
+		// only touched by the drain
+		private ObjectInputStream objects;
+		private boolean opened;
+		private boolean done;
+
+		ResourceSubscription(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				badRequest = new IllegalArgumentException(
+						"must request a positive number, not " + n);
+			} else {
+				long current, next;
+				do {
+					current = demand.get();
+					next = current + n;
+					if (next < 0)
+						next = Long.MAX_VALUE;
+				} while (!demand.compareAndSet(current, next));
+			}
+			schedule();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			ResponseReader r = reader;
+			if (r != null)
+				r.abort();
+		}
+
+		private void schedule() {
+			if (wip.getAndIncrement() != 0)
+				return;
+			try {
+				factory.getConnection().getExecutor().execute(this);
+			} catch (RejectedExecutionException e) {
+				// nothing is going to drain, so end it here, and let a later
+				// request in to find it cancelled
+				boolean signal = !cancelled;
+				cancelled = true;
+				ResponseReader r = reader;
+				if (r != null)
+					r.abort();
+				wip.set(0);
+				if (signal)
+					subscriber.onError(e);
+			}
+		}
+
+		public void run() {
+			int missed = 1;
+			do {
+				drain();
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void drain() {
+			if (done)
+				return;
+			while (true) {
+				if (cancelled) {
+					stop();
+					return;
+				}
+				if (badRequest != null) {
+					stop();
+					subscriber.onError(badRequest);
+					return;
+				}
+				if (demand.get() == 0)
+					return;
+
+				T obj;
+				try {
+					if (!opened) {
+						opened = true;
+						log.trace("publishing url=" + url);
+						reader = factory.getConnection().getStream(url);
+						if (cancelled)
+							continue;
+						if (reader != null)
+							objects = factory.getXStream()
+									.createObjectInputStream(reader);
+					}
+					if (objects == null) {
+						done = true;
+						subscriber.onComplete();
+						return;
+					}
+					obj = (T) objects.readObject();
+				} catch (EOFException e) {
+					done = true;
+					close();
+					subscriber.onComplete();
+					return;
+				} catch (ClassNotFoundException e) {
+					continue;
+				} catch (Throwable t) {
+					stop();
+					if (!cancelled)
+						subscriber.onError(t);
+					return;
+				}
+
+				try {
+					factory.setFactory(obj);
+					subscriber.onNext(obj);
+				} catch (Throwable t) {
+					// the subscriber blew up, so there is no point reading the
+					// rest
+					stop();
+					subscriber.onError(t);
+					return;
+				}
+				if (demand.get() != Long.MAX_VALUE)
+					demand.decrementAndGet();
+			}
+		}
+
+		/**
+		 * finished reading, so let the connection go back to the pool
+		 */
+		private void close() {
+			try {
+				objects.close();
+			} catch (IOException e) {
+				log.trace("error closing response", e);
+			}
+		}
+
+		/**
+		 * stopping early, so drop the connection
+		 */
+		private void stop() {
+			done = true;
+			ResponseReader r = reader;
+			if (r != null)
+				r.abort();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+/**
+ * A reader for the body of an HTTP response, as returned by
+ * {@link ResourceConnection#getStream(Object)}.
+ * <p>
+ * Calling {@link #close()} reads whatever is left of the body so the
+ * connection can go back to the pool and be reused. That is a waste if you
+ * are walking away from a large response part way through, so
+ * {@link #abort()} drops the connection instead, and can be called from any
+ * thread, even while another thread is blocked reading.
+ * <p>
+ * Until one or the other is called the connection stays out of the pool, so
+ * always finish with one of them:
+ * 
+ * <code>
+ * <pre>
+ * ResponseReader r = c.getStream(&quot;/people.xml&quot;);
+ * try {
+ *     ...
+ * } finally {
+ *     r.close();
+ * }
+ * </pre>
+ * </code>
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ResponseReader extends BufferedReader {
+
+	private final AbortableHttpRequest request;
+
+	/**
+	 * @param in
+	 *            the body of the response
+	 * @param request
+	 *            the request the response belongs to
+	 */
+	public ResponseReader(Reader in, AbortableHttpRequest request) {
+		super(in);
+		this.request = request;
+	}
+
+	/**
+	 * read the rest of the response so the connection can be reused, or drop
+	 * the connection if that fails
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * give up on the rest of the response, closing the connection rather than
+	 * reading to the end of it
+	 */
+	public void abort() {
+		request.abort();
+		try {
+			super.close();
+		} catch (IOException e) {
+			// the connection is already gone
+		}
+	}
+}
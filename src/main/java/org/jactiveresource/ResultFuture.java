@@ -0,0 +1,126 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.http.HttpException;
+
+/**
+ * A future whose result is filled in by whoever holds it, rather than by
+ * running a task. Several threads can wait on one of these while a single
+ * thread does the work and then calls {@link #set(Object)} or
+ * {@link #setException(Throwable)}. You can also hand it a task and pass it to
+ * an executor, like any other FutureTask.
+ * 
+ * {@link #getResult()} waits like {@link #get()}, but throws the same checked
+ * exceptions as the rest of the library instead of wrapping them in an
+ * ExecutionException.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ResultFuture<V> extends FutureTask<V> {
+
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {
+		}
+	};
+
+	public ResultFuture() {
+		super(NOTHING, null);
+	}
+
+	/**
+	 * create a future which is completed by running a task
+	 * 
+	 * @param task
+	 */
+	public ResultFuture(Callable<V> task) {
+		super(task);
+	}
+
+	/**
+	 * complete this future with a value, waking up everyone waiting on it
+	 */
+	@Override
+	public void set(V v) {
+		super.set(v);
+	}
+
+	/**
+	 * complete this future with an exception, waking up everyone waiting on it
+	 */
+	@Override
+	public void setException(Throwable t) {
+		super.setException(t);
+	}
+
+	/**
+	 * wait for the result, and rethrow whatever exception it was completed
+	 * with
+	 * 
+	 * @return the value this future was completed with
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public V getResult() throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		try {
+			return get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HttpException)
+				throw (HttpException) cause;
+			else if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			else if (cause instanceof URISyntaxException)
+				throw (URISyntaxException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+}
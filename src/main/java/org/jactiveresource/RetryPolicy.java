@@ -0,0 +1,260 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which failed requests a {@link ResourceConnection} sends again, and
+ * how long it waits first. Attach one with
+ * {@link ResourceConnection#setRetryPolicy(RetryPolicy)}.
+ * 
+ * <code>
+ * <pre>
+ * RetryPolicy retry = new RetryPolicy();
+ * retry.setMaxRetries(2);
+ * c.setRetryPolicy(retry);
+ * </pre>
+ * </code>
+ * 
+ * By default, GET, HEAD, PUT, DELETE and OPTIONS requests are retried when
+ * they fail with an I/O error or a 502, 503 or 504. POST isn't, because
+ * sending it twice might create two resources. Nor is a request whose body
+ * can only be written once, like an InputStreamEntity.
+ * <p>
+ * Waits grow exponentially from the base delay, up to the max delay, and are
+ * picked at random between zero and that, so that clients which failed at the
+ * same moment don't all come back at the same moment.
+ * <p>
+ * Retries are also limited by a budget, so that when a service is down the
+ * clients don't multiply the load on it. Every request adds
+ * {@link #getBudgetRatio()} of a token to the budget, up to
+ * {@link #getBudgetBurst()} tokens, and every retry spends a whole token. With
+ * the defaults, retries can add at most 10% to the traffic once the first
+ * burst is spent.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class RetryPolicy {
+
+	// the budget is kept in thousandths of a token
+	private static final long TOKEN = 1000;
+
+	private static final Random random = new Random();
+
+	private volatile int maxRetries = 3;
+	private volatile long baseDelay = 50;
+	private volatile long maxDelay = 2000;
+	private volatile double budgetRatio = 0.1;
+	private volatile int budgetBurst = 10;
+	private volatile Set<String> methods = new HashSet<String>(Arrays.asList(
+			"GET", "HEAD", "PUT", "DELETE", "OPTIONS"));
+	private volatile Set<Integer> statuses = new HashSet<Integer>(Arrays
+			.asList(502, 503, 504));
+
+	private final AtomicLong budget = new AtomicLong(budgetBurst * TOKEN);
+
+	/**
+	 * @param method
+	 *            an HTTP method, ie <code>GET</code>
+	 * @return true if requests with this method may be retried
+	 */
+	public boolean isRetryable(String method) {
+		return methods.contains(method);
+	}
+
+	/**
+	 * @param status
+	 *            an HTTP status code
+	 * @return true if a response with this status is worth retrying
+	 */
+	public boolean isRetryableStatus(int status) {
+		return statuses.contains(status);
+	}
+
+	/**
+	 * note that a request has been sent, adding to the retry budget
+	 */
+	public void recordRequest() {
+		long add = (long) (budgetRatio * TOKEN);
+		long max = budgetBurst * TOKEN;
+		long current, next;
+		do {
+			current = budget.get();
+			next = Math.min(max, current + add);
+		} while (current != next && !budget.compareAndSet(current, next));
+	}
+
+	/**
+	 * decide whether to make another attempt, spending from the budget if so
+	 * 
+	 * @param retry
+	 *            1 for the first retry, 2 for the second and so on
+	 * @return true if the request should be sent again
+	 */
+	public boolean tryRetry(int retry) {
+		if (retry > maxRetries || Thread.currentThread().isInterrupted())
+			return false;
+		long current;
+		do {
+			current = budget.get();
+			if (current < TOKEN)
+				return false;
+		} while (!budget.compareAndSet(current, current - TOKEN));
+		return true;
+	}
+
+	/**
+	 * @param retry
+	 *            1 for the first retry, 2 for the second and so on
+	 * @return how many milliseconds to wait before the retry
+	 */
+	public long delay(int retry) {
+		long ceiling = baseDelay << Math.min(retry - 1, 30);
+		if (ceiling <= 0 || ceiling > maxDelay)
+			ceiling = maxDelay;
+		synchronized (random) {
+			return (long) (random.nextDouble() * ceiling);
+		}
+	}
+
+	/**
+	 * @return the most times a request is retried
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries
+	 *            the most times a request is retried, default 3
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @return the longest wait before the first retry, in milliseconds
+	 */
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	/**
+	 * @param baseDelay
+	 *            the longest wait before the first retry, in milliseconds,
+	 *            default 50. The longest wait doubles with each retry.
+	 */
+	public void setBaseDelay(long baseDelay) {
+		this.baseDelay = baseDelay;
+	}
+
+	/**
+	 * @return the longest wait before any retry, in milliseconds
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * @param maxDelay
+	 *            the longest wait before any retry, in milliseconds, default
+	 *            2000
+	 */
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @return the fraction of a retry each request adds to the budget
+	 */
+	public double getBudgetRatio() {
+		return budgetRatio;
+	}
+
+	/**
+	 * @param budgetRatio
+	 *            the fraction of a retry each request adds to the budget,
+	 *            default 0.1
+	 */
+	public void setBudgetRatio(double budgetRatio) {
+		this.budgetRatio = budgetRatio;
+	}
+
+	/**
+	 * @return the most retries the budget can save up
+	 */
+	public int getBudgetBurst() {
+		return budgetBurst;
+	}
+
+	/**
+	 * @param budgetBurst
+	 *            the most retries the budget can save up, default 10. The
+	 *            budget grows or shrinks by the difference straight away, so
+	 *            a new policy starts out with the whole burst.
+	 */
+	public synchronized void setBudgetBurst(int budgetBurst) {
+		long delta = (budgetBurst - this.budgetBurst) * TOKEN;
+		long max = budgetBurst * TOKEN;
+		this.budgetBurst = budgetBurst;
+		long current, next;
+		do {
+			current = budget.get();
+			next = Math.max(0, Math.min(max, current + delta));
+		} while (!budget.compareAndSet(current, next));
+	}
+
+	/**
+	 * @param methods
+	 *            the HTTP methods which may be retried
+	 */
+	public void setRetryableMethods(String... methods) {
+		this.methods = new HashSet<String>(Arrays.asList(methods));
+	}
+
+	/**
+	 * @param statuses
+	 *            the HTTP status codes which are worth retrying
+	 */
+	public void setRetryableStatuses(Integer... statuses) {
+		this.statuses = new HashSet<Integer>(Arrays.asList(statuses));
+	}
+}
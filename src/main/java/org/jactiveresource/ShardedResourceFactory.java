@@ -0,0 +1,352 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpException;
+import org.apache.http.client.ClientProtocolException;
+
+/**
+ * Works with a collection which is split by id over several sites, one
+ * {@link ResourceFactory} per site. Which site holds a resource is decided by
+ * a {@link HashRing} over the sites, so every client agrees on it, and adding
+ * a site only moves about one in n of the resources.
+ * 
+ * <code>
+ * <pre>
+ * List&lt;ResourceFactory&lt;Person&gt;&gt; shards = new ArrayList&lt;ResourceFactory&lt;Person&gt;&gt;();
+ * shards.add(new RailsResourceFactory&lt;Person&gt;(
+ *         new ResourceConnection("http://people1:3000"), Person.class));
+ * shards.add(new RailsResourceFactory&lt;Person&gt;(
+ *         new ResourceConnection("http://people2:3000"), Person.class));
+ * ShardedResourceFactory&lt;Person&gt; people = new ShardedResourceFactory&lt;Person&gt;(shards);
+ * Person p = people.find("42");
+ * </pre>
+ * </code>
+ * 
+ * {@link #find(String)}, {@link #update(Resource)}, {@link #delete(Resource)}
+ * and the rest go to the shard which owns the id. Since the id decides the
+ * shard, a resource must have its id before it is created with
+ * {@link #create(Resource)}, so the service has to accept ids chosen by the
+ * client; by default rails ignores an id posted to the create action. There
+ * is no <code>save</code>, as a resource with an id can't be told apart from
+ * one which has already been created. Asking for many ids at once with
+ * {@link #find(Collection)} sends each shard its share of the ids in one call
+ * to its own {@link ResourceFactory#find(Collection)}, all the shards at the
+ * same time. {@link #findAll()} asks every shard at once and puts the
+ * results together, and {@link #publishAll()} streams them as they arrive,
+ * without waiting for the slowest shard or holding everything in memory.
+ * <p>
+ * Shards are placed on the ring by the site of their connection, so keep the
+ * sites the same across clients and restarts.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class ShardedResourceFactory<T extends Resource> {
+
+	private final List<ResourceFactory<T>> shards;
+	private final HashRing<ResourceFactory<T>> ring;
+
+	private Log log = LogFactory.getLog(ShardedResourceFactory.class);
+
+	/**
+	 * @param shards
+	 *            a factory for each site the collection is split over
+	 */
+	public ShardedResourceFactory(List<? extends ResourceFactory<T>> shards) {
+		this(shards, 160);
+	}
+
+	/**
+	 * @param shards
+	 *            a factory for each site the collection is split over
+	 * @param virtualNodes
+	 *            how many places on the ring each shard gets
+	 */
+	public ShardedResourceFactory(List<? extends ResourceFactory<T>> shards,
+			int virtualNodes) {
+		this.shards = Collections
+				.unmodifiableList(new ArrayList<ResourceFactory<T>>(shards));
+		Map<String, ResourceFactory<T>> nodes = new LinkedHashMap<String, ResourceFactory<T>>();
+		for (ResourceFactory<T> f : shards) {
+			String site = f.getConnection().getSite().toString();
+			if (nodes.put(site, f) != null)
+				throw new IllegalArgumentException("two shards for " + site);
+		}
+		this.ring = new HashRing<ResourceFactory<T>>(nodes, virtualNodes);
+	}
+
+	/**
+	 * @return the factories for all the shards
+	 */
+	public List<ResourceFactory<T>> getShards() {
+		return shards;
+	}
+
+	/**
+	 * @param id
+	 * @return the factory for the shard which holds the resource with this id
+	 */
+	public ResourceFactory<T> shardFor(String id) {
+		if (id == null)
+			throw new IllegalArgumentException(
+					"a resource needs an id to be found in a sharded collection");
+		return ring.get(id);
+	}
+
+	private ResourceFactory<T> shardFor(T resource) {
+		return shardFor(resource.getId());
+	}
+
+	/**
+	 * @param id
+	 * @return the resource with this id
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public T find(String id) throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		return shardFor(id).find(id);
+	}
+
+	/**
+	 * Retrieve many resources by their identifiers. The ids are split up by
+	 * shard, and each shard gets all of its ids in one call to
+	 * {@link ResourceFactory#find(Collection)}, so its own limit on
+	 * parallelism and any collection requests by id still apply. The shards
+	 * are all asked at the same time.
+	 * 
+	 * @param ids
+	 * @return the resources or errors for each id, in order
+	 * @throws InterruptedException
+	 */
+	public BatchResult<T> find(Collection<String> ids)
+			throws InterruptedException {
+		List<String> list = new ArrayList<String>(ids);
+		final BatchResult<T> result = new BatchResult<T>(list);
+		log.trace("finding " + list.size() + " ids on " + shards.size()
+				+ " shards");
+
+		// where each shard's ids are in the list
+		Map<ResourceFactory<T>, List<Integer>> split = new LinkedHashMap<ResourceFactory<T>, List<Integer>>();
+		for (int i = 0; i < list.size(); i++) {
+			ResourceFactory<T> shard;
+			try {
+				shard = shardFor(list.get(i));
+			} catch (IllegalArgumentException e) {
+				result.setError(i, e);
+				continue;
+			}
+			List<Integer> indexes = split.get(shard);
+			if (indexes == null) {
+				indexes = new ArrayList<Integer>();
+				split.put(shard, indexes);
+			}
+			indexes.add(i);
+		}
+
+		List<ResultFuture<Object>> futures = new ArrayList<ResultFuture<Object>>();
+		try {
+			for (Map.Entry<ResourceFactory<T>, List<Integer>> entry : split
+					.entrySet()) {
+				final ResourceFactory<T> shard = entry.getKey();
+				final List<Integer> indexes = entry.getValue();
+				final List<String> part = new ArrayList<String>(indexes.size());
+				for (int i : indexes)
+					part.add(list.get(i));
+				futures.add(submit(shard, new Callable<Object>() {
+					public Object call() throws Exception {
+						try {
+							BatchResult<T> found = shard.find(part);
+							for (int i = 0; i < indexes.size(); i++) {
+								if (found.isSuccess(i))
+									result.set(indexes.get(i), found.get(i));
+								else
+									result.setError(indexes.get(i), found
+											.getError(i));
+							}
+						} catch (InterruptedException e) {
+							throw e;
+						} catch (Exception e) {
+							for (int i : indexes)
+								result.setError(i, e);
+						}
+						return null;
+					}
+				}));
+			}
+			for (ResultFuture<Object> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					// only an interrupt gets here, and the error is already set
+				}
+			}
+		} finally {
+			for (ResultFuture<Object> f : futures)
+				f.cancel(true);
+		}
+		return result;
+	}
+
+	/**
+	 * Fetch all the resources from every shard. The shards are all asked at
+	 * once, and the results are in shard order.
+	 * 
+	 * @return a list of resources
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public ArrayList<T> findAll() throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		List<ResultFuture<ArrayList<T>>> futures = new ArrayList<ResultFuture<ArrayList<T>>>();
+		for (final ResourceFactory<T> shard : shards) {
+			futures.add(submit(shard, new Callable<ArrayList<T>>() {
+				public ArrayList<T> call() throws Exception {
+					return shard.findAll();
+				}
+			}));
+		}
+		ArrayList<T> all = new ArrayList<T>();
+		try {
+			for (ResultFuture<ArrayList<T>> f : futures)
+				all.addAll(f.getResult());
+		} finally {
+			for (ResultFuture<ArrayList<T>> f : futures)
+				f.cancel(true);
+		}
+		return all;
+	}
+
+	/**
+	 * Publish all the resources of every shard as one stream, in the order
+	 * they arrive. Every shard is read at once, and each only as fast as the
+	 * subscriber asks, see {@link MergedPublisher}.
+	 * 
+	 * @return a publisher of every resource
+	 */
+	public Publisher<T> publishAll() {
+		List<Publisher<T>> sources = new ArrayList<Publisher<T>>(shards.size());
+		for (ResourceFactory<T> shard : shards)
+			sources.add(shard.publishAll());
+		return new MergedPublisher<T>(sources);
+	}
+
+	/**
+	 * @param id
+	 * @return true if the resource exists on its shard
+	 */
+	public boolean exists(String id) {
+		return shardFor(id).exists(id);
+	}
+
+	/**
+	 * create a resource on the shard its id belongs to. The id must already
+	 * be set, and the service must keep it.
+	 * 
+	 * @param r
+	 * @throws ClientProtocolException
+	 * @throws ClientError
+	 * @throws ServerError
+	 * @throws IOException
+	 */
+	public boolean create(T r) throws ClientProtocolException, ClientError,
+			ServerError, IOException {
+		return shardFor(r).create(r);
+	}
+
+	/**
+	 * @param r
+	 * @throws URISyntaxException
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean update(T r) throws URISyntaxException, HttpException,
+			IOException, InterruptedException {
+		return shardFor(r).update(r);
+	}
+
+	/**
+	 * @param r
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public void reload(T r) throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		shardFor(r).reload(r);
+	}
+
+	/**
+	 * @param r
+	 * @throws ClientError
+	 * @throws ServerError
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	public void delete(T r) throws ClientError, ServerError,
+			ClientProtocolException, IOException {
+		shardFor(r).delete(r);
+	}
+
+	/**
+	 * run a task on the executor of a shard's connection
+	 */
+	private <V> ResultFuture<V> submit(ResourceFactory<T> shard,
+			Callable<V> task) {
+		ResultFuture<V> f = new ResultFuture<V>(task);
+		shard.getConnection().getExecutor().execute(f);
+		return f;
+	}
+}
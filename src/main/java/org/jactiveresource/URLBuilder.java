@@ -37,6 +37,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -208,7 +209,7 @@ public class URLBuilder {
 	 * @throws MalformedURLException
 	 */
 	public void setBase(URI base) throws MalformedURLException {
-		StringBuffer newurl = new StringBuffer();
+		StringBuilder newurl = new StringBuilder();
 		if (base.isOpaque()) {
 			throw new MalformedURLException();
 		}
@@ -267,6 +268,27 @@ public class URLBuilder {
 		return this;
 	}
 
+	/**
+	 * Append path components which are already URL encoded, like the paths
+	 * from {@link PathTemplate#expand(Map)}. They are decoded here and encoded
+	 * again with the rest of the URL, so an encoded slash stays inside its
+	 * component instead of splitting it in two.
+	 * 
+	 * @param pathcomponent
+	 *            an encoded path, ie <code>posts/a%2Fb/comments</code>
+	 * @return self
+	 */
+	public URLBuilder addEncoded(Object pathcomponent) {
+		StringTokenizer st = new StringTokenizer(pathcomponent.toString(),
+				Character.toString(PATH_SEGMENT_SEPARATOR));
+		try {
+			while (st.hasMoreTokens())
+				path.add(URLDecoder.decode(st.nextToken(), UTF8));
+		} catch (UnsupportedEncodingException e) {
+		}
+		return this;
+	}
+
 	/**
 	 * clear all path components
 	 */
@@ -362,7 +384,7 @@ public class URLBuilder {
 	public String toString() {
 		Iterator<String> pi;
 		Iterator<URLBuilder.QueryParam> qi;
-		StringBuffer out = new StringBuffer();
+		StringBuilder out = new StringBuilder();
 
 		// first the base
 		if (base != null)
@@ -452,7 +474,7 @@ public class URLBuilder {
 		 * Return the URL-encoded query string.
 		 */
 		public String toString() {
-			StringBuffer out = new StringBuffer();
+			StringBuilder out = new StringBuilder();
 			try {
 				String encodedKey = URLEncoder.encode(key.toString(), UTF8);
 				if (value == null) {
@@ -496,7 +518,7 @@ public class URLBuilder {
 				}
 			} catch (UnsupportedEncodingException e) {
 				// make sure we return an empty string
-				out = new StringBuffer();
+				out = new StringBuilder();
 			}
 
 			return out.toString();
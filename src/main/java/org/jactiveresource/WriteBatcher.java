@@ -0,0 +1,306 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs creates, updates and deletes concurrently instead of waiting for each
+ * round trip before starting the next. Get one from
+ * {@link ResourceFactory#writeBatcher()}, hand it all your writes, and then
+ * call {@link #finish()} to wait for them and find out how each one went.
+ * 
+ * <code>
+ * <pre>
+ * WriteBatcher&lt;Person&gt; wb = rf.writeBatcher();
+ * for (Person p : imported)
+ *   wb.save(p);
+ * BatchResult&lt;Person&gt; outcome = wb.finish();
+ * if (outcome.hasErrors())
+ *   System.out.println(outcome.getErrors());
+ * </pre>
+ * </code>
+ * 
+ * No more than the maximum number of writes are in flight at once; when that
+ * many are outstanding, the methods that add a write block until one finishes,
+ * so a fast producer can't run away from the service. Writes to the same
+ * resource are never reordered: a write to a resource waits until the writes
+ * to that resource added before it have finished. A resource is identified by
+ * its id, or if it doesn't have one yet, by the object itself.
+ * 
+ * A write that fails doesn't stop the others. Its exception is recorded in the
+ * result; a create or update refused by the service with a validation error
+ * is recorded as {@link ResourceInvalid}, and a write the connection's
+ * executor won't take, because the connection has been closed, is recorded as
+ * the RejectedExecutionException.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class WriteBatcher<T extends Resource> {
+
+	/**
+	 * the kinds of write a batcher can perform
+	 */
+	public enum Operation {
+		CREATE, UPDATE, SAVE, DELETE
+	}
+
+	private final ResourceFactory<T> factory;
+	private final Semaphore permits;
+
+	// all guarded by lock
+	private final Object lock = new Object();
+	private final Map<Object, LinkedList<Write>> lanes = new HashMap<Object, LinkedList<Write>>();
+	private final Map<Object, LinkedList<Write>> newLanes = new IdentityHashMap<Object, LinkedList<Write>>();
+	private List<Write> writes = new ArrayList<Write>();
+	private int outstanding;
+
+	private Log log = LogFactory.getLog(WriteBatcher.class);
+
+	/**
+	 * create a batcher
+	 * 
+	 * @param factory
+	 *            the factory which performs the writes
+	 * @param maxInFlight
+	 *            the most writes outstanding at once
+	 */
+	public WriteBatcher(ResourceFactory<T> factory, int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be > 0");
+		this.factory = factory;
+		this.permits = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * create a resource on the server
+	 * 
+	 * @param resource
+	 * @throws InterruptedException
+	 */
+	public void create(T resource) throws InterruptedException {
+		submit(Operation.CREATE, resource);
+	}
+
+	/**
+	 * update a resource on the server
+	 * 
+	 * @param resource
+	 * @throws InterruptedException
+	 */
+	public void update(T resource) throws InterruptedException {
+		submit(Operation.UPDATE, resource);
+	}
+
+	/**
+	 * create a resource if it is new, otherwise update it
+	 * 
+	 * @param resource
+	 * @throws InterruptedException
+	 */
+	public void save(T resource) throws InterruptedException {
+		submit(Operation.SAVE, resource);
+	}
+
+	/**
+	 * delete a resource from the server
+	 * 
+	 * @param resource
+	 * @throws InterruptedException
+	 */
+	public void delete(T resource) throws InterruptedException {
+		submit(Operation.DELETE, resource);
+	}
+
+	/**
+	 * add a write. This blocks if the maximum number of writes are already
+	 * outstanding, counting those waiting behind another write to the same
+	 * resource. If it is interrupted while it waits, the write is not added.
+	 * 
+	 * @param op
+	 * @param resource
+	 * @throws InterruptedException
+	 */
+	public void submit(Operation op, T resource) throws InterruptedException {
+		Write w = new Write(op, resource);
+		// every write holds a permit from now until it is done, even while it
+		// waits in a lane
+		permits.acquire();
+		synchronized (lock) {
+			writes.add(w);
+			outstanding++;
+			LinkedList<Write> lane = lane(w.key);
+			if (lane != null) {
+				// something is already writing this resource, get in line
+				lane.add(w);
+				return;
+			}
+			putLane(w.key, new LinkedList<Write>());
+		}
+		start(w);
+	}
+
+	/**
+	 * wait for every write added so far to finish, and report how each one
+	 * went. The batcher can be used again afterwards.
+	 * 
+	 * @return the outcome of each write, in the order they were added
+	 * @throws InterruptedException
+	 */
+	public BatchResult<T> finish() throws InterruptedException {
+		List<Write> finished;
+		synchronized (lock) {
+			while (outstanding > 0)
+				lock.wait();
+			finished = writes;
+			writes = new ArrayList<Write>();
+		}
+
+		List<String> ids = new ArrayList<String>();
+		for (Write w : finished)
+			ids.add(w.resource.getId());
+		BatchResult<T> result = new BatchResult<T>(ids);
+		for (int i = 0; i < finished.size(); i++) {
+			Write w = finished.get(i);
+			if (w.error != null)
+				result.setError(i, w.error);
+			else
+				result.set(i, w.resource);
+		}
+		log.trace("finished " + result);
+		return result;
+	}
+
+	private void start(final Write w) {
+		try {
+			factory.getConnection().getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						perform(w);
+					} catch (Exception e) {
+						w.error = e;
+					} finally {
+						done(w);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			w.error = e;
+			done(w);
+		}
+	}
+
+	private void perform(Write w) throws Exception {
+		boolean ok = true;
+		switch (w.op) {
+		case CREATE:
+			ok = factory.create(w.resource);
+			break;
+		case UPDATE:
+			ok = factory.update(w.resource);
+			break;
+		case SAVE:
+			ok = factory.save(w.resource);
+			break;
+		case DELETE:
+			factory.delete(w.resource);
+			break;
+		}
+		if (!ok)
+			w.error = new ResourceInvalid();
+	}
+
+	/**
+	 * a write has finished, so give up its permit and start the next write to
+	 * the same resource, which already has its own
+	 */
+	private void done(Write w) {
+		Write next;
+		synchronized (lock) {
+			LinkedList<Write> lane = lane(w.key);
+			next = lane.poll();
+			if (next == null)
+				removeLane(w.key);
+			outstanding--;
+			lock.notifyAll();
+		}
+		permits.release();
+		if (next != null)
+			start(next);
+	}
+
+	private LinkedList<Write> lane(Object key) {
+		return key instanceof String ? lanes.get(key) : newLanes.get(key);
+	}
+
+	private void putLane(Object key, LinkedList<Write> lane) {
+		if (key instanceof String)
+			lanes.put(key, lane);
+		else
+			newLanes.put(key, lane);
+	}
+
+	private void removeLane(Object key) {
+		if (key instanceof String)
+			lanes.remove(key);
+		else
+			newLanes.remove(key);
+	}
+
+	private class Write {
+		final Operation op;
+		final T resource;
+		final Object key;
+		volatile Exception error;
+
+		Write(Operation op, T resource) {
+			this.op = op;
+			this.resource = resource;
+			// new resources don't have an id, so we go by the object itself
+			this.key = resource.getId() != null ? resource.getId() : resource;
+		}
+	}
+}
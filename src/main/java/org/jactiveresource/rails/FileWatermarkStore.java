@@ -0,0 +1,104 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.rails;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A {@link WatermarkStore} which keeps the watermarks of all collections in a
+ * properties file. The file is rewritten, by way of a temporary file and a
+ * rename, every time a watermark is saved.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class FileWatermarkStore implements WatermarkStore {
+
+	private final File file;
+
+	/**
+	 * @param file
+	 *            the properties file to keep the watermarks in. It doesn't
+	 *            have to exist yet.
+	 */
+	public FileWatermarkStore(File file) {
+		this.file = file;
+	}
+
+	public synchronized String load(String collection) throws IOException {
+		return read().getProperty(collection);
+	}
+
+	public synchronized void save(String collection, String watermark)
+			throws IOException {
+		Properties p = read();
+		if (watermark == null)
+			p.remove(collection);
+		else
+			p.setProperty(collection, watermark);
+
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			p.store(out, "jactiveresource watermarks");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("could not replace " + file);
+		}
+	}
+
+	private Properties read() throws IOException {
+		Properties p = new Properties();
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return p;
+	}
+}
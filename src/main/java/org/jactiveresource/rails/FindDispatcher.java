@@ -0,0 +1,263 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.rails;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpException;
+import org.jactiveresource.Resource;
+import org.jactiveresource.ResourceNotFound;
+import org.jactiveresource.ResultFuture;
+
+/**
+ * Collects find requests made by many independent threads over a short window
+ * and issues them as a single collection request, ie
+ * <code>/people.xml?ids[]=1&ids[]=2&ids[]=3</code>. Every caller gets its own
+ * resource out of the one response. If several callers ask for the same id in
+ * the same window, the id is only requested once, and those callers share
+ * the same object.
+ * 
+ * <code>
+ * <pre>
+ * RailsResourceFactory&lt;Person&gt; rf = new RailsResourceFactory&lt;Person&gt;(c, Person.class);
+ * rf.setIdsParameter("ids[]");
+ * FindDispatcher&lt;Person&gt; people = new FindDispatcher&lt;Person&gt;(rf, 2, 100);
+ * 
+ * // from any number of threads
+ * Person p = people.find("5");
+ * </pre>
+ * </code>
+ * 
+ * A batch is sent when the window (in milliseconds) has passed since the first
+ * id was added to it, or as soon as it holds the maximum number of ids,
+ * whichever comes first. The factory must have an ids parameter set, see
+ * {@link RailsResourceFactory#setIdsParameter(String)}. Ids that aren't in the
+ * response complete with {@link ResourceNotFound}; if the request fails, or
+ * the connection's executor won't take it, every caller in the batch gets the
+ * exception.
+ * 
+ * Call {@link #close()} when you are done, to stop the timer thread. Once it
+ * is closed, a dispatcher takes no more ids.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class FindDispatcher<T extends Resource> {
+
+	private final RailsResourceFactory<T> factory;
+	private final long window;
+	private final int maxBatchSize;
+	private final ScheduledExecutorService timer;
+
+	// guarded by this
+	private LinkedHashMap<String, ResultFuture<T>> pending = new LinkedHashMap<String, ResultFuture<T>>();
+	private ScheduledFuture<?> scheduled;
+	private boolean closed;
+
+	private Log log = LogFactory.getLog(FindDispatcher.class);
+
+	/**
+	 * create a dispatcher
+	 * 
+	 * @param factory
+	 *            a factory with an ids parameter set
+	 * @param window
+	 *            how many milliseconds to wait for more ids before sending a
+	 *            batch, must be more than zero
+	 * @param maxBatchSize
+	 *            the most ids sent in one request
+	 */
+	public FindDispatcher(RailsResourceFactory<T> factory, long window,
+			int maxBatchSize) {
+		if (factory.getIdsParameter() == null)
+			throw new IllegalArgumentException(
+					"factory has no ids parameter set");
+		if (window <= 0)
+			throw new IllegalArgumentException("window must be > 0");
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("maxBatchSize must be > 0");
+		this.factory = factory;
+		this.window = window;
+		this.maxBatchSize = maxBatchSize;
+		this.timer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "jactiveresource-dispatcher");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * ask for a resource to be included in the next batch
+	 * 
+	 * @param id
+	 * @return a future which completes when the batch comes back
+	 * @throws IllegalStateException
+	 *             if the dispatcher has been closed
+	 */
+	public Future<T> submit(String id) {
+		return enqueue(id);
+	}
+
+	/**
+	 * find a resource by id, waiting for the batch it ends up in
+	 * 
+	 * @param id
+	 * @return the resource
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 * @throws IllegalStateException
+	 *             if the dispatcher has been closed
+	 */
+	public T find(String id) throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		return enqueue(id).getResult();
+	}
+
+	/**
+	 * send whatever ids are waiting right now, without waiting for the window
+	 * to pass
+	 */
+	public void flush() {
+		Map<String, ResultFuture<T>> batch;
+		synchronized (this) {
+			batch = takeBatch();
+		}
+		dispatch(batch);
+	}
+
+	/**
+	 * send any waiting ids and stop the timer
+	 */
+	public void close() {
+		Map<String, ResultFuture<T>> batch;
+		synchronized (this) {
+			closed = true;
+			batch = takeBatch();
+		}
+		dispatch(batch);
+		timer.shutdown();
+	}
+
+	private ResultFuture<T> enqueue(String id) {
+		Map<String, ResultFuture<T>> batch = null;
+		ResultFuture<T> future;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("dispatcher is closed");
+			future = pending.get(id);
+			if (future == null) {
+				future = new ResultFuture<T>();
+				pending.put(id, future);
+				if (pending.size() >= maxBatchSize) {
+					batch = takeBatch();
+				} else if (scheduled == null) {
+					scheduled = timer.schedule(new Runnable() {
+						public void run() {
+							flush();
+						}
+					}, window, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		if (batch != null)
+			dispatch(batch);
+		return future;
+	}
+
+	// must hold the lock
+	private Map<String, ResultFuture<T>> takeBatch() {
+		Map<String, ResultFuture<T>> batch = pending;
+		pending = new LinkedHashMap<String, ResultFuture<T>>();
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		return batch;
+	}
+
+	private void dispatch(final Map<String, ResultFuture<T>> batch) {
+		if (batch.isEmpty())
+			return;
+		try {
+			factory.getConnection().getExecutor().execute(new Runnable() {
+				public void run() {
+					fetch(batch);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.trace("batch of " + batch.size() + " ids rejected");
+			for (ResultFuture<T> future : batch.values())
+				future.setException(e);
+		}
+	}
+
+	private void fetch(Map<String, ResultFuture<T>> batch) {
+		log.trace("dispatching batch of " + batch.size() + " ids");
+		try {
+			Map<String, T> found = new HashMap<String, T>();
+			for (T r : factory.findAll(new ArrayList<String>(batch.keySet())))
+				found.put(r.getId(), r);
+			for (Map.Entry<String, ResultFuture<T>> e : batch.entrySet()) {
+				T r = found.get(e.getKey());
+				if (r == null)
+					e.getValue().setException(new ResourceNotFound());
+				else
+					e.getValue().set(r);
+			}
+		} catch (Throwable t) {
+			for (ResultFuture<T> future : batch.values())
+				future.setException(t);
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.rails;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpException;
+import org.jactiveresource.Resource;
+
+/**
+ * Keeps a local copy of a collection up to date by only asking the service for
+ * what has changed. The sync remembers a high-water mark for the collection,
+ * either the largest id it has seen or the latest value of a timestamp field
+ * like <code>updatedAt</code>, and passes it in a query parameter on the next
+ * request, ie <code>/people.xml?updated_since=2011-03-01T10:15:00Z</code>.
+ * Whatever comes back is merged into the local store.
+ * 
+ * <code>
+ * <pre>
+ * IncrementalSync&lt;Person&gt; sync = new IncrementalSync&lt;Person&gt;(rf,
+ *     "updated_since", "updatedAt");
+ * sync.setWatermarkStore(new FileWatermarkStore(new File("sync.properties")));
+ * sync.start(60000);
+ * ...
+ * Person p = sync.getStore().get("5");
+ * </pre>
+ * </code>
+ * 
+ * Your rails controller has to understand the parameter, say with
+ * <code>Person.where("updated_at >= ?", params[:updated_since])</code>. Getting
+ * a resource a second time is harmless, so an inclusive comparison is fine.
+ * <p>
+ * An incremental request can't tell us about deletes. Every
+ * {@link #getReconcileInterval()} milliseconds, and the first time the sync
+ * runs without a saved watermark, {@link #sync()} does a full
+ * {@link #reconcile()} instead: it fetches the whole collection and drops
+ * anything from the store which is no longer there.
+ * <p>
+ * If a {@link WatermarkStore} is set, the watermark is saved after each sync
+ * and loaded when the sync first runs. The watermark is only worth something
+ * together with the local copy it describes, so a restarted process resumes
+ * with an incremental request only if the store already holds resources. The
+ * default store lives in memory and starts out empty, so with it the first
+ * sync after a restart is a full {@link #reconcile()}. If you want to skip
+ * that, pass a map which survives a restart to
+ * {@link #setStore(ConcurrentMap)}.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class IncrementalSync<T extends Resource> {
+
+	/**
+	 * how often a full reconcile happens unless you say otherwise, one hour
+	 */
+	public static final long DEFAULT_RECONCILE_INTERVAL = 60 * 60 * 1000;
+
+	private final RailsResourceFactory<T> factory;
+	private final String sinceParameter;
+	private final Field watermarkField;
+	private ConcurrentMap<String, T> store = new ConcurrentHashMap<String, T>();
+
+	private WatermarkStore watermarkStore;
+	private long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+	private ScheduledExecutorService timer;
+
+	// guarded by lock, which is held while talking to the service
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile String watermark;
+	private boolean loaded;
+	private long lastReconcile;
+
+	private Log log = LogFactory.getLog(IncrementalSync.class);
+
+	/**
+	 * create a sync which uses the largest id seen as its watermark
+	 * 
+	 * @param factory
+	 * @param sinceParameter
+	 *            the query parameter that carries the watermark, ie
+	 *            <code>since_id</code>
+	 */
+	public IncrementalSync(RailsResourceFactory<T> factory,
+			String sinceParameter) {
+		this(factory, sinceParameter, null);
+	}
+
+	/**
+	 * create a sync which uses the latest value of a field as its watermark
+	 * 
+	 * @param factory
+	 * @param sinceParameter
+	 *            the query parameter that carries the watermark, ie
+	 *            <code>updated_since</code>
+	 * @param watermarkField
+	 *            the name of a Date or String field of the resource class, ie
+	 *            <code>updatedAt</code>, or null to use the id
+	 */
+	public IncrementalSync(RailsResourceFactory<T> factory,
+			String sinceParameter, String watermarkField) {
+		this.factory = factory;
+		this.sinceParameter = sinceParameter;
+		if (watermarkField == null) {
+			this.watermarkField = null;
+		} else {
+			this.watermarkField = findField(factory.getResourceClass(),
+					watermarkField);
+			this.watermarkField.setAccessible(true);
+		}
+	}
+
+	/**
+	 * @return the local copy of the collection, keyed by id
+	 */
+	public Map<String, T> getStore() {
+		return Collections.unmodifiableMap(store);
+	}
+
+	/**
+	 * use your own map as the local store, for instance one that is backed by
+	 * disk. Set this before the first sync.
+	 * 
+	 * @param store
+	 */
+	public void setStore(ConcurrentMap<String, T> store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return the current watermark, or null if there isn't one yet
+	 */
+	public String getWatermark() {
+		return watermark;
+	}
+
+	/**
+	 * set where the watermark is saved between runs
+	 * 
+	 * @param watermarkStore
+	 */
+	public void setWatermarkStore(WatermarkStore watermarkStore) {
+		this.watermarkStore = watermarkStore;
+	}
+
+	/**
+	 * @return milliseconds between full reconciles
+	 */
+	public long getReconcileInterval() {
+		return reconcileInterval;
+	}
+
+	/**
+	 * set the number of milliseconds between full reconciles
+	 * 
+	 * @param reconcileInterval
+	 */
+	public void setReconcileInterval(long reconcileInterval) {
+		this.reconcileInterval = reconcileInterval;
+	}
+
+	/**
+	 * Fetch whatever has changed since the watermark and merge it into the
+	 * store. If there is no watermark yet, or a reconcile is due, do a full
+	 * {@link #reconcile()} instead.
+	 * 
+	 * @return the number of resources fetched
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public int sync() throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		lock.lockInterruptibly();
+		try {
+			loadWatermark();
+			if (watermark == null
+					|| System.currentTimeMillis() - lastReconcile >= reconcileInterval)
+				return reconcile();
+
+			Map<Object, Object> params = new HashMap<Object, Object>();
+			params.put(sinceParameter, watermark);
+			ArrayList<T> changed = factory.findAll(params);
+			for (T r : changed) {
+				store.put(r.getId(), r);
+				advance(r);
+			}
+			saveWatermark();
+			log.trace("synced " + changed.size() + " changes, watermark="
+					+ watermark);
+			return changed.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fetch the whole collection, replace the store with it, and recompute the
+	 * watermark.
+	 * 
+	 * @return the number of resources fetched
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public int reconcile() throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		lock.lockInterruptibly();
+		try {
+			loadWatermark();
+			ArrayList<T> all = factory.findAll();
+			Set<String> ids = new HashSet<String>();
+			for (T r : all) {
+				ids.add(r.getId());
+				store.put(r.getId(), r);
+				advance(r);
+			}
+			store.keySet().retainAll(ids);
+			lastReconcile = System.currentTimeMillis();
+			saveWatermark();
+			log.trace("reconciled " + all.size() + " resources, watermark="
+					+ watermark);
+			return all.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * call {@link #sync()} in the background every so often, until
+	 * {@link #stop()} is called. Failures are logged and the next sync tries
+	 * again.
+	 * 
+	 * @param period
+	 *            milliseconds between syncs
+	 */
+	public synchronized void start(long period) {
+		if (timer != null)
+			throw new IllegalStateException("already started");
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jactiveresource-sync");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					sync();
+				} catch (Exception e) {
+					log.warn("sync of " + factory.getCollectionName()
+							+ " failed", e);
+				}
+			}
+		}, 0, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * stop syncing in the background
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdown();
+			timer = null;
+		}
+	}
+
+	private void loadWatermark() throws IOException {
+		if (!loaded) {
+			loaded = true;
+			if (watermarkStore != null && watermark == null) {
+				watermark = watermarkStore.load(factory.getCollectionName());
+				// resume incrementally if we still have what the watermark
+				// describes, the next reconcile is then a full interval away.
+				// An empty store would only ever get the changes after it.
+				if (watermark != null && !store.isEmpty())
+					lastReconcile = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private void saveWatermark() throws IOException {
+		if (watermarkStore != null)
+			watermarkStore.save(factory.getCollectionName(), watermark);
+	}
+
+	/**
+	 * move the watermark forward if this resource is past it
+	 */
+	private void advance(T r) {
+		String mark = watermarkOf(r);
+		if (mark != null && (watermark == null || compare(mark, watermark) > 0))
+			watermark = mark;
+	}
+
+	private String watermarkOf(T r) {
+		if (watermarkField == null)
+			return r.getId();
+		Object value;
+		try {
+			value = watermarkField.get(r);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		if (value instanceof Date) {
+			SimpleDateFormat f = new SimpleDateFormat(
+					"yyyy-MM-dd'T'HH:mm:ss'Z'");
+			f.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return f.format((Date) value);
+		}
+		return value == null ? null : value.toString();
+	}
+
+	private int compare(String a, String b) {
+		if (watermarkField == null) {
+			// ids are usually numbers, and "10" comes after "9"
+			try {
+				return Long.valueOf(a).compareTo(Long.valueOf(b));
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+		return a.compareTo(b);
+	}
+
+	private static Field findField(Class<?> c, String name) {
+		for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+			try {
+				return k.getDeclaredField(name);
+			} catch (NoSuchFieldException e) {
+				// try the superclass
+			}
+		}
+		throw new IllegalArgumentException(c.getName() + " has no field "
+				+ name);
+	}
+}
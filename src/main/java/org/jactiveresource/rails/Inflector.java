@@ -92,7 +92,7 @@ public class Inflector {
 	 */
 	public static String camelize(String word, boolean firstLetterInUppercase) {
 		String out, part;
-		StringBuffer outbuf;
+		StringBuilder outbuf;
 		Matcher m;
 		StringTokenizer t;
 		boolean firstToken = true;
@@ -100,7 +100,7 @@ public class Inflector {
 		m = slashPattern.matcher(word);
 		out = m.replaceAll("::_$1");
 
-		outbuf = new StringBuffer();
+		outbuf = new StringBuilder();
 		t = new StringTokenizer(out, "_");
 		while (t.hasMoreTokens()) {
 			part = t.nextToken();
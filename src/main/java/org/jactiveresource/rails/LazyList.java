@@ -0,0 +1,379 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.rails;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jactiveresource.Resource;
+
+/**
+ * A list of associated resources which isn't fetched until it is first used.
+ * {@link RailsResourceFactory} puts one of these in each association you ask
+ * it to defer with {@link RailsResourceFactory#defer(String...)}, so reading a
+ * post doesn't mean reading all of its comments too.
+ * <p>
+ * The first call to any method of the list fetches the resources from the
+ * nested route of the parent, ie <code>/posts/1/comments.xml</code>. If that
+ * fails, an {@link IllegalStateException} wrapping the cause is thrown, and
+ * the next call tries again.
+ * <p>
+ * That includes {@link #equals(Object)} and {@link #hashCode()}, which compare
+ * the contents, so comparing a list which hasn't been loaded, or putting it in
+ * a hash set or map, sends a request. Use {@link #isLoaded()} first if that
+ * matters.
+ * <p>
+ * It has to be an {@link ArrayList} so it can go in the association fields
+ * rails resources use, so every method of ArrayList which reads the contents,
+ * including the ones added in later versions of Java, is overridden to load
+ * them first. An ArrayList compares itself with another by looking straight
+ * at the other's contents, though, so <code>arrayList.equals(lazyList)</code>
+ * may say false before the lazy list is loaded.
+ * <p>
+ * A list is loaded before it is serialized, and comes back as a plain
+ * {@link ArrayList}, since the factory can't go with it.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class LazyList<E extends Resource> extends ArrayList<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient RailsResourceFactory<E> factory;
+	private final String from;
+	private volatile boolean loaded;
+	private final transient ReentrantLock lock = new ReentrantLock();
+
+	private static final Log log = LogFactory.getLog(LazyList.class);
+
+	/**
+	 * @param factory
+	 *            the factory for the associated resources
+	 * @param from
+	 *            the URL encoded path to fetch them from, ie
+	 *            <code>posts/1/comments</code>
+	 */
+	public LazyList(RailsResourceFactory<E> factory, String from) {
+		this.factory = factory;
+		this.from = from;
+	}
+
+	/**
+	 * @return true if the resources have been fetched
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * fetch the resources now, if they haven't been already
+	 */
+	public void load() {
+		if (loaded)
+			return;
+		lock.lock();
+		try {
+			if (loaded)
+				return;
+			log.trace("loading " + from);
+			try {
+				super.addAll(factory.findAllEncoded(from));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted loading " + from,
+						e);
+			} catch (Exception e) {
+				throw new IllegalStateException("could not load " + from, e);
+			}
+			loaded = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		load();
+		return super.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		load();
+		return super.isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		load();
+		return super.contains(o);
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		load();
+		return super.containsAll(c);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		load();
+		return super.indexOf(o);
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		load();
+		return super.lastIndexOf(o);
+	}
+
+	@Override
+	public Object[] toArray() {
+		load();
+		return super.toArray();
+	}
+
+	@Override
+	public <A> A[] toArray(A[] a) {
+		load();
+		return super.toArray(a);
+	}
+
+	@Override
+	public E get(int index) {
+		load();
+		return super.get(index);
+	}
+
+	@Override
+	public E set(int index, E element) {
+		load();
+		return super.set(index, element);
+	}
+
+	@Override
+	public boolean add(E e) {
+		load();
+		return super.add(e);
+	}
+
+	@Override
+	public void add(int index, E element) {
+		load();
+		super.add(index, element);
+	}
+
+	@Override
+	public E remove(int index) {
+		load();
+		return super.remove(index);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		load();
+		return super.remove(o);
+	}
+
+	@Override
+	public void clear() {
+		load();
+		super.clear();
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> c) {
+		load();
+		return super.addAll(c);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends E> c) {
+		load();
+		return super.addAll(index, c);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		load();
+		return super.removeAll(c);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		load();
+		return super.retainAll(c);
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		load();
+		return super.iterator();
+	}
+
+	@Override
+	public ListIterator<E> listIterator() {
+		load();
+		return super.listIterator();
+	}
+
+	@Override
+	public ListIterator<E> listIterator(int index) {
+		load();
+		return super.listIterator(index);
+	}
+
+	@Override
+	public List<E> subList(int fromIndex, int toIndex) {
+		load();
+		return super.subList(fromIndex, toIndex);
+	}
+
+	/**
+	 * compare the contents, fetching them first if need be
+	 */
+	@Override
+	public boolean equals(Object o) {
+		load();
+		// ArrayList looks straight at the contents of another ArrayList
+		if (o instanceof LazyList<?>)
+			((LazyList<?>) o).load();
+		return super.equals(o);
+	}
+
+	/**
+	 * hash the contents, fetching them first if need be
+	 */
+	@Override
+	public int hashCode() {
+		load();
+		return super.hashCode();
+	}
+
+	@Override
+	public void forEach(Consumer<? super E> action) {
+		load();
+		super.forEach(action);
+	}
+
+	/**
+	 * also what {@link #stream()} reads from
+	 */
+	@Override
+	public Spliterator<E> spliterator() {
+		load();
+		return super.spliterator();
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super E> filter) {
+		load();
+		return super.removeIf(filter);
+	}
+
+	@Override
+	public void replaceAll(UnaryOperator<E> operator) {
+		load();
+		super.replaceAll(operator);
+	}
+
+	@Override
+	public void sort(Comparator<? super E> c) {
+		load();
+		super.sort(c);
+	}
+
+	// ArrayList has its own versions of these from Java 21
+
+	public E getFirst() {
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return get(0);
+	}
+
+	public E getLast() {
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return get(size() - 1);
+	}
+
+	public E removeFirst() {
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return remove(0);
+	}
+
+	public E removeLast() {
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return remove(size() - 1);
+	}
+
+	/**
+	 * copy the contents into a plain list, fetching them first if need be
+	 */
+	@Override
+	public Object clone() {
+		load();
+		return new ArrayList<E>(this);
+	}
+
+	@Override
+	public String toString() {
+		return loaded ? super.toString() : "[not loaded: " + from + "]";
+	}
+
+	/**
+	 * serialize a plain list of the contents, fetching them first if need be
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		load();
+		return new ArrayList<E>(this);
+	}
+}
@@ -0,0 +1,298 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.rails;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpException;
+import org.jactiveresource.Resource;
+import org.jactiveresource.ResponseReader;
+import org.jactiveresource.ResultFuture;
+
+/**
+ * Walks a paginated collection one page at a time, fetching the following
+ * pages in the background while you work on the current one. Get one from
+ * {@link RailsResourceFactory#findAllPaged(Map, int)}.
+ * 
+ * <code>
+ * <pre>
+ * Pager&lt;Person&gt; pager = rf.findAllPaged(params, 100);
+ * ArrayList&lt;Person&gt; page;
+ * while ((page = pager.nextPage()) != null) {
+ *   for (Person p : page)
+ *     ...
+ * }
+ * </pre>
+ * </code>
+ * 
+ * By default, pages are asked for with the <code>page</code> and
+ * <code>per_page</code> query parameters, which is what will_paginate and
+ * kaminari understand, ie <code>/people.xml?page=3&per_page=100</code>. Since
+ * the page numbers are known in advance, up to {@link #getPrefetch()} pages
+ * beyond the current one are requested concurrently.
+ * <p>
+ * If the service pages by cursor instead, set the cursor parameter with
+ * {@link #setCursorParameter(String)} before asking for the first page. Each
+ * request then passes the id of the last resource on the previous page, ie
+ * <code>/people.xml?after=300&per_page=100</code>. Since each page depends on
+ * the one before, only one page is fetched ahead.
+ * <p>
+ * The walk ends at the first page with fewer than <code>perPage</code>
+ * resources. The pager never holds more than the current page and the pages
+ * it has fetched ahead. If you stop early, call {@link #close()} to cancel the
+ * requests that are still outstanding. Pages whose responses are still being
+ * read have their connections dropped, rather than read to the end.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class Pager<T extends Resource> {
+
+	/**
+	 * the number of pages fetched ahead unless you say otherwise
+	 */
+	public static final int DEFAULT_PREFETCH = 2;
+
+	private final RailsResourceFactory<T> factory;
+	private final Map<Object, Object> params;
+	private final int perPage;
+	private int prefetch = DEFAULT_PREFETCH;
+	private String pageParameter = "page";
+	private String perPageParameter = "per_page";
+	private String cursorParameter;
+
+	private final LinkedList<Fetch> ahead = new LinkedList<Fetch>();
+	private int nextPageNumber = 1;
+	private boolean started;
+	private boolean finished;
+
+	private Log log = LogFactory.getLog(Pager.class);
+
+	/**
+	 * create a pager
+	 * 
+	 * @param factory
+	 *            the factory to fetch the pages with
+	 * @param params
+	 *            any other query parameters to send with each request, may be
+	 *            null
+	 * @param perPage
+	 *            the number of resources to ask for on each page
+	 */
+	public Pager(RailsResourceFactory<T> factory, Map<Object, Object> params,
+			int perPage) {
+		if (perPage < 1)
+			throw new IllegalArgumentException("perPage must be > 0");
+		this.factory = factory;
+		this.params = params == null ? new HashMap<Object, Object>()
+				: new HashMap<Object, Object>(params);
+		this.perPage = perPage;
+	}
+
+	/**
+	 * @return the number of pages fetched ahead of the current one
+	 */
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * set the number of pages fetched ahead of the current one. Zero means
+	 * pages are only fetched when you ask for them.
+	 * 
+	 * @param prefetch
+	 */
+	public void setPrefetch(int prefetch) {
+		if (prefetch < 0)
+			throw new IllegalArgumentException("prefetch must be >= 0");
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * set the name of the page number query parameter, the default is
+	 * <code>page</code>
+	 * 
+	 * @param pageParameter
+	 */
+	public void setPageParameter(String pageParameter) {
+		this.pageParameter = pageParameter;
+	}
+
+	/**
+	 * set the name of the page size query parameter, the default is
+	 * <code>per_page</code>
+	 * 
+	 * @param perPageParameter
+	 */
+	public void setPerPageParameter(String perPageParameter) {
+		this.perPageParameter = perPageParameter;
+	}
+
+	/**
+	 * page by cursor instead of by page number. The id of the last resource
+	 * on each page is sent in this parameter to get the next page.
+	 * 
+	 * @param cursorParameter
+	 */
+	public void setCursorParameter(String cursorParameter) {
+		if (started)
+			throw new IllegalStateException("paging has already started");
+		this.cursorParameter = cursorParameter;
+	}
+
+	/**
+	 * return the next page of resources, waiting for it if it hasn't arrived
+	 * yet
+	 * 
+	 * @return the next page, or null if there are no more
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public ArrayList<T> nextPage() throws HttpException, IOException,
+			InterruptedException, URISyntaxException {
+		if (!started) {
+			started = true;
+			ahead.add(fetch(null));
+			fillAhead();
+		}
+		if (ahead.isEmpty())
+			return null;
+
+		ArrayList<T> page;
+		boolean done = false;
+		try {
+			page = ahead.removeFirst().future.getResult();
+			if (page.size() < perPage) {
+				// a short page is the last page
+				close();
+			} else if (cursorParameter != null) {
+				ahead.add(fetch(page.get(page.size() - 1).getId()));
+			} else {
+				fillAhead();
+			}
+			done = true;
+		} finally {
+			// whatever went wrong, don't leave the pages ahead running
+			if (!done)
+				close();
+		}
+		return page.isEmpty() ? null : page;
+	}
+
+	/**
+	 * stop paging, and cancel any pages still being fetched
+	 */
+	public void close() {
+		finished = true;
+		for (Fetch f : ahead)
+			f.abort();
+		ahead.clear();
+	}
+
+	private void fillAhead() {
+		if (cursorParameter != null)
+			return;
+		while (!finished && ahead.size() < prefetch + 1)
+			ahead.add(fetch(null));
+	}
+
+	private Fetch fetch(String cursor) {
+		Map<Object, Object> query = new HashMap<Object, Object>(params);
+		query.put(perPageParameter, perPage);
+		if (cursorParameter == null) {
+			query.put(pageParameter, nextPageNumber++);
+		} else if (cursor != null) {
+			query.put(cursorParameter, cursor);
+		}
+		log.trace("fetching page " + query);
+		Fetch f = new Fetch(query);
+		factory.getConnection().getExecutor().execute(f.future);
+		return f;
+	}
+
+	/**
+	 * one page being fetched, which keeps hold of the response so it can be
+	 * dropped part way through
+	 */
+	private class Fetch implements Callable<ArrayList<T>> {
+		private final Map<Object, Object> query;
+		private volatile ResponseReader reader;
+		private volatile boolean aborted;
+		final ResultFuture<ArrayList<T>> future = new ResultFuture<ArrayList<T>>(
+				this);
+
+		Fetch(Map<Object, Object> query) {
+			this.query = query;
+		}
+
+		public ArrayList<T> call() throws Exception {
+			ResponseReader r = factory.getConnection().getStream(
+					factory.uriForCollection(query));
+			if (r == null)
+				return new ArrayList<T>();
+			reader = r;
+			boolean done = false;
+			try {
+				// closed while we were waiting for the response
+				if (aborted)
+					r.abort();
+				ArrayList<T> page = factory.deserializeMany(r);
+				done = true;
+				return page;
+			} finally {
+				if (!done)
+					r.abort();
+			}
+		}
+
+		void abort() {
+			aborted = true;
+			future.cancel(true);
+			ResponseReader r = reader;
+			if (r != null)
+				r.abort();
+		}
+	}
+}
@@ -33,10 +33,9 @@ POSSIBILITY OF SUCH DAMAGE.
 
 package org.jactiveresource.rails;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.thoughtworks.xstream.converters.ConversionException;
 import com.thoughtworks.xstream.converters.Converter;
@@ -63,8 +62,7 @@ import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 public class RailsConverterLookup implements ConverterLookup, ConverterRegistry {
 
 	private final PrioritizedList converters = new PrioritizedList();
-	private transient Map typeToConverterMap = Collections
-			.synchronizedMap(new HashMap());
+	private transient Map typeToConverterMap = new ConcurrentHashMap();
 
 	public RailsConverterLookup() {
 	}
@@ -33,32 +33,53 @@ POSSIBILITY OF SUCH DAMAGE.
 
 package org.jactiveresource.rails;
 
+import static org.jactiveresource.rails.Inflector.camelize;
 import static org.jactiveresource.rails.Inflector.dasherize;
 import static org.jactiveresource.rails.Inflector.singularize;
 import static org.jactiveresource.rails.Inflector.underscore;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpException;
+import org.jactiveresource.BatchResult;
+import org.jactiveresource.PathTemplate;
 import org.jactiveresource.Resource;
 import org.jactiveresource.ResourceConnection;
 import org.jactiveresource.ResourceFactory;
 import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.ResourceNotFound;
+import org.jactiveresource.ResultFuture;
 import org.jactiveresource.URLBuilder;
 import org.jactiveresource.annotation.CollectionName;
+import org.jactiveresource.annotation.ResourcePath;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.converters.extended.ISO8601DateConverter;
 import com.thoughtworks.xstream.core.util.ClassLoaderReference;
 import com.thoughtworks.xstream.core.util.CompositeClassLoader;
 import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.io.json.JettisonMappedXmlDriver;
 import com.thoughtworks.xstream.io.xml.XppDriver;
 
@@ -80,6 +101,14 @@ import com.thoughtworks.xstream.io.xml.XppDriver;
  * <li>{@link #findAll(String)} - find resources from a custom path</li>
  * <li>{@link #findAll(String, Map)} - find resources from a custom path with
  * query parameters</li>
+ * <li>{@link #findAll(Collection)} - find many resources by id in a single
+ * request, if the service supports it</li>
+ * <li>{@link #findAllPaged(Map, int)} - walk a paginated collection, fetching
+ * pages ahead of time</li>
+ * <li>{@link #findAll(Map, String...)} - find resources along with their
+ * associated resources, without a request per resource</li>
+ * <li>{@link #defer(String...)} - don't read associated resources until they
+ * are used</li>
  * </ul>
  * 
  * @version $LastChangedRevision$ <br>
@@ -89,6 +118,17 @@ import com.thoughtworks.xstream.io.xml.XppDriver;
 public class RailsResourceFactory<T extends Resource> extends
 		ResourceFactory<T> {
 	private Log log = LogFactory.getLog(RailsResourceFactory.class);
+	private String idsParameter;
+	private int maxIdsPerRequest = DEFAULT_MAX_IDS_PER_REQUEST;
+	private String includeParameter;
+	private ConcurrentMap<Class<?>, RailsResourceFactory<?>> associationFactories = new ConcurrentHashMap<Class<?>, RailsResourceFactory<?>>();
+	private ConcurrentMap<Field, RailsResourceFactory<?>> deferred = new ConcurrentHashMap<Field, RailsResourceFactory<?>>();
+
+	/**
+	 * the default number of ids put in a single collection request, which
+	 * keeps the URL a reasonable length
+	 */
+	public static final int DEFAULT_MAX_IDS_PER_REQUEST = 100;
 
 	public RailsResourceFactory(ResourceConnection c, Class<T> clazz) {
 		super(c, clazz);
@@ -226,6 +266,26 @@ public class RailsResourceFactory<T extends Resource> extends
 		return fetchMany(url);
 	}
 
+	/**
+	 * Fetch resources from a path which is already URL encoded, like the
+	 * paths {@link LazyList} loads from.
+	 * 
+	 * @param path
+	 *            an encoded path, ie <code>posts/1/comments</code>
+	 * @return a list of objects
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	protected ArrayList<T> findAllEncoded(String path) throws HttpException,
+			IOException, InterruptedException, URISyntaxException {
+		URLBuilder url = new URLBuilder().addEncoded(path
+				+ getResourceFormat().extension());
+		log.trace("findAllEncoded path=" + path);
+		return fetchMany(url.toURI());
+	}
+
 	/**
 	 * Fetch resources using a custom method and query parameters. Say I have a
 	 * collection of people at <code>http://localhost:3000/people.xml</code>.
@@ -262,22 +322,485 @@ public class RailsResourceFactory<T extends Resource> extends
 		return fetchMany(url);
 	}
 
+	/**
+	 * return the name of the query parameter used to ask the collection for
+	 * specific ids, or null if the service can't filter the collection by id
+	 * 
+	 * @return the ids query parameter
+	 */
+	public String getIdsParameter() {
+		return idsParameter;
+	}
+
+	/**
+	 * If the index action of your rails controller can filter the collection
+	 * by id, say with <code>Person.where(:id => params[:ids])</code>, tell the
+	 * factory the name of the query parameter, usually <code>"ids[]"</code>.
+	 * {@link #find(Collection)} will then ask for many resources in one request
+	 * instead of one request per id.
+	 * 
+	 * @param idsParameter
+	 *            the query parameter name, or null to turn this off
+	 */
+	public void setIdsParameter(String idsParameter) {
+		this.idsParameter = idsParameter;
+	}
+
+	/**
+	 * @return the most ids put into a single collection request
+	 */
+	public int getMaxIdsPerRequest() {
+		return maxIdsPerRequest;
+	}
+
+	/**
+	 * set the most ids put into a single collection request. Longer lists are
+	 * split into several requests.
+	 * 
+	 * @param maxIdsPerRequest
+	 */
+	public void setMaxIdsPerRequest(int maxIdsPerRequest) {
+		if (maxIdsPerRequest < 1)
+			throw new IllegalArgumentException(
+					"maxIdsPerRequest must be > 0");
+		this.maxIdsPerRequest = maxIdsPerRequest;
+	}
+
+	/**
+	 * Retrieve many resources by id. If an ids parameter has been set with
+	 * {@link #setIdsParameter(String)}, the ids are requested from the
+	 * collection in as few requests as {@link #getMaxIdsPerRequest()} allows,
+	 * ie <code>/people.xml?ids[]=1&ids[]=2</code>. Otherwise each id is
+	 * fetched separately, see {@link ResourceFactory#find(Collection)}.
+	 * <p>
+	 * Ids which the collection doesn't return are reported as
+	 * {@link ResourceNotFound} in the result. If a collection request fails,
+	 * its exception is reported for every id it asked for.
+	 * 
+	 * @param ids
+	 * @return the resources or errors for each id, in order
+	 * @throws InterruptedException
+	 */
+	@Override
+	public BatchResult<T> find(Collection<String> ids)
+			throws InterruptedException {
+		if (getIdsParameter() == null)
+			return super.find(ids);
+
+		final List<String> list = new ArrayList<String>(ids);
+		final BatchResult<T> result = new BatchResult<T>(list);
+		log.trace("finding " + list.size() + " ids in collection requests");
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < list.size(); start += getMaxIdsPerRequest()) {
+			final int from = start;
+			final int to = Math.min(start + getMaxIdsPerRequest(), list.size());
+			tasks.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					List<String> chunk = list.subList(from, to);
+					try {
+						Map<String, T> found = new HashMap<String, T>();
+						for (T r : findAll(chunk))
+							found.put(r.getId(), r);
+						for (int i = from; i < to; i++) {
+							T r = found.get(list.get(i));
+							if (r == null)
+								result.setError(i, new ResourceNotFound());
+							else
+								result.set(i, r);
+						}
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						for (int i = from; i < to; i++)
+							result.setError(i, e);
+					}
+					return null;
+				}
+			});
+		}
+		invokeInParallel(tasks);
+		return result;
+	}
+
+	/**
+	 * Fetch the resources with the given ids from the collection in a single
+	 * request, using the query parameter set by
+	 * {@link #setIdsParameter(String)}. The resources come back in whatever
+	 * order the service chooses, and ids it doesn't know are left out.
+	 * 
+	 * @param ids
+	 * @return a list of objects
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public ArrayList<T> findAll(Collection<String> ids) throws HttpException,
+			IOException, InterruptedException, URISyntaxException {
+		if (getIdsParameter() == null)
+			throw new IllegalStateException("no ids parameter has been set");
+		URI url = uriForIds(ids);
+		log.trace("finding all url=" + url);
+		return fetchMany(url);
+	}
+
+	/**
+	 * return the name of the query parameter used to ask the service to embed
+	 * associated resources, or null if associations are fetched separately
+	 * 
+	 * @return the include query parameter
+	 */
+	public String getIncludeParameter() {
+		return includeParameter;
+	}
+
+	/**
+	 * If the index action of your rails controller can embed associations in
+	 * its response, say with
+	 * <code>@posts.to_xml(:include => params[:include].split(","))</code>,
+	 * tell the factory the name of the query parameter, usually
+	 * <code>"include"</code>. {@link #findAll(Map, String...)} will then pass
+	 * the association names to the service instead of fetching them itself.
+	 * 
+	 * @param includeParameter
+	 *            the query parameter name, or null to turn this off
+	 */
+	public void setIncludeParameter(String includeParameter) {
+		this.includeParameter = includeParameter;
+	}
+
+	/**
+	 * Fetch resources using query parameters, along with the named
+	 * associations of each one. Instead of asking for the comments of each post
+	 * one post at a time, say:
+	 * 
+	 * <code>
+	 * <pre>
+	 * ArrayList&lt;Post&gt; posts = pf.findAll(params, "comments");
+	 * </pre>
+	 * </code>
+	 * 
+	 * If an include parameter has been set with
+	 * {@link #setIncludeParameter(String)}, the association names are passed
+	 * to the service, ie <code>/posts.xml?include=comments</code>, and it is
+	 * up to the service to embed them. Otherwise the associations are loaded
+	 * with {@link #include(List, String...)}.
+	 * 
+	 * @param params
+	 *            query parameters, may be null
+	 * @param includes
+	 *            the names of the associations to load
+	 * @return a list of objects
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public ArrayList<T> findAll(Map<Object, Object> params, String... includes)
+			throws HttpException, IOException, InterruptedException,
+			URISyntaxException {
+		Map<Object, Object> query = new HashMap<Object, Object>();
+		if (params != null)
+			query.putAll(params);
+		if (includes.length == 0 || getIncludeParameter() == null) {
+			ArrayList<T> list = findAll(query);
+			include(list, includes);
+			return list;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (String association : includes) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(association);
+		}
+		query.put(getIncludeParameter(), sb.toString());
+		return findAll(query);
+	}
+
+	/**
+	 * Load the named associations of resources you already have, using one
+	 * request per association for every {@link #getMaxIdsPerRequest()}
+	 * parents instead of one request per parent.
+	 * <p>
+	 * This follows the rails conventions. An association named
+	 * <code>comments</code> on a Post is a field called <code>comments</code>
+	 * holding a list of Comment objects. The comments are found by asking
+	 * their collection for <code>/comments.xml?post_id[]=1&post_id[]=2</code>,
+	 * so the index action of the comments controller needs to filter by
+	 * <code>post_id</code>. Each comment is then handed to the post named by
+	 * its <code>postId</code> field. Parents with no children get an empty
+	 * list.
+	 * 
+	 * @param parents
+	 * @param associations
+	 *            the names of the associations to load
+	 * @throws HttpException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	public void include(List<T> parents, String... associations)
+			throws HttpException, IOException, InterruptedException,
+			URISyntaxException {
+		for (String association : associations) {
+			Field field = associationField(association);
+			includeOne(parents, field, childClassOf(association, field));
+		}
+	}
+
+	private <C extends Resource> void includeOne(List<T> parents,
+			Field field, Class<C> childClass) throws HttpException,
+			IOException, InterruptedException, URISyntaxException {
+		String foreignKey = singularize(getCollectionName()) + "_id";
+		final RailsResourceFactory<C> children = associationFactory(childClass);
+		Field keyField = findField(childClass, camelize(foreignKey, false));
+		if (keyField == null)
+			throw new IllegalArgumentException(childClass.getSimpleName()
+					+ " has no field for " + foreignKey);
+		final String keyParameter = foreignKey + "[]";
+		log.trace("including " + field.getName() + " for " + parents.size()
+				+ " resources");
+
+		// ask for the children of many parents at once
+		List<String> ids = new ArrayList<String>();
+		Map<String, ArrayList<C>> byParent = new HashMap<String, ArrayList<C>>();
+		for (T parent : parents) {
+			if (parent.getId() != null
+					&& !byParent.containsKey(parent.getId())) {
+				ids.add(parent.getId());
+				byParent.put(parent.getId(), new ArrayList<C>());
+			}
+		}
+		List<ResultFuture<ArrayList<C>>> chunks = new ArrayList<ResultFuture<ArrayList<C>>>();
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < ids.size(); start += getMaxIdsPerRequest()) {
+			final List<String> chunk = ids.subList(start,
+					Math.min(start + getMaxIdsPerRequest(), ids.size()));
+			final ResultFuture<ArrayList<C>> f = new ResultFuture<ArrayList<C>>(
+					new Callable<ArrayList<C>>() {
+						public ArrayList<C> call() throws Exception {
+							URLBuilder url = new URLBuilder(children
+									.getCollectionName()
+									+ getResourceFormat().extension());
+							url.addQuery(keyParameter, chunk);
+							return children.fetchMany(url.toURI());
+						}
+					});
+			chunks.add(f);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					f.run();
+					return null;
+				}
+			});
+		}
+		invokeInParallel(tasks);
+
+		// hand each child to its parent
+		try {
+			for (ResultFuture<ArrayList<C>> f : chunks) {
+				for (C child : f.getResult()) {
+					Object key = keyField.get(child);
+					ArrayList<C> list = key == null ? null : byParent.get(key
+							.toString());
+					if (list != null)
+						list.add(child);
+				}
+			}
+			for (T parent : parents) {
+				if (parent.getId() != null)
+					field.set(parent, new ArrayList<C>(byParent.get(parent
+							.getId())));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <C extends Resource> RailsResourceFactory<C> associationFactory(
+			Class<C> childClass) {
+		RailsResourceFactory<?> f = associationFactories.get(childClass);
+		if (f == null) {
+			f = new RailsResourceFactory<C>(getConnection(), childClass,
+					getResourceFormat());
+			RailsResourceFactory<?> existing = associationFactories
+					.putIfAbsent(childClass, f);
+			if (existing != null)
+				f = existing;
+		}
+		return (RailsResourceFactory<C>) f;
+	}
+
+	/**
+	 * return the class of resource held by the list in an association field
+	 */
+	private Class<? extends Resource> childClassOf(String association,
+			Field field) {
+		Type type = field.getGenericType();
+		Class<?> childClass = null;
+		if (type instanceof ParameterizedType) {
+			Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+			if (arg instanceof Class<?>)
+				childClass = (Class<?>) arg;
+		}
+		if (childClass == null || !Resource.class.isAssignableFrom(childClass)
+				|| !field.getType().isAssignableFrom(ArrayList.class))
+			throw new IllegalArgumentException(association
+					+ " is not a list of resources");
+		return childClass.asSubclass(Resource.class);
+	}
+
+	private Field associationField(String association) {
+		Field field = findField(getResourceClass(), camelize(association,
+				false));
+		if (field == null)
+			throw new IllegalArgumentException(getResourceClass()
+					.getSimpleName()
+					+ " has no association " + association);
+		return field;
+	}
+
+	private static Field findField(Class<?> c, String name) {
+		for (; c != null; c = c.getSuperclass()) {
+			try {
+				Field field = c.getDeclaredField(name);
+				field.setAccessible(true);
+				return field;
+			} catch (NoSuchFieldException e) {
+				// keep looking in the superclass
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stop reading the named associations when resources are inflated, and
+	 * fetch them from their nested route the first time they are used instead.
+	 * With <code>pf.defer("comments")</code>, any comments embedded in a post
+	 * are skipped by the parser, and the comments field of each post is set to
+	 * a {@link LazyList} which asks for <code>/posts/1/comments.xml</code> when
+	 * you first look at it.
+	 * <p>
+	 * This is worthwhile when most reads never look at the association. If
+	 * you are going to look at the association of every resource, use
+	 * {@link #findAll(Map, String...)} instead.
+	 * <p>
+	 * Deferring changes the XStream of this factory, so do it before making
+	 * copies with {@link #withPrefix(String, Object)}. The copies keep the
+	 * deferrals of the factory they were made from.
+	 * 
+	 * @param associations
+	 *            the names of the associations to defer
+	 * @throws IllegalStateException
+	 *             if the XStream is shared with a copy of this factory
+	 */
+	public void defer(String... associations) {
+		if (isXStreamShared())
+			throw new IllegalStateException(
+					"defer before making copies with withPrefix");
+		for (String association : associations) {
+			Field field = associationField(association);
+			RailsResourceFactory<?> children = associationFactory(childClassOf(
+					association, field));
+			// omitted fields are still read, so skip the element as well
+			getXStream().omitField(getResourceClass(), field.getName());
+			getXStream().registerLocalConverter(getResourceClass(),
+					field.getName(), SKIP);
+			deferred.put(field, children);
+		}
+	}
+
+	/**
+	 * put a lazy list in each deferred association
+	 */
+	@Override
+	protected void inflated(T resource) {
+		if (deferred.isEmpty() || resource.getId() == null)
+			return;
+		for (Map.Entry<Field, RailsResourceFactory<?>> d : deferred.entrySet()) {
+			RailsResourceFactory<?> children = d.getValue();
+			try {
+				d.getKey().set(resource, lazyList(children,
+						getCollectionPath(resource) + "/"
+								+ URLEncoder.encode(resource.getId(), "UTF-8")
+								+ "/" + children.getCollectionName()));
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * leaves an element and everything in it unread
+	 */
+	private static final Converter SKIP = new Converter() {
+		public boolean canConvert(@SuppressWarnings("rawtypes") Class type) {
+			return true;
+		}
+
+		public void marshal(Object source, HierarchicalStreamWriter writer,
+				MarshallingContext context) {
+		}
+
+		public Object unmarshal(HierarchicalStreamReader reader,
+				UnmarshallingContext context) {
+			return null;
+		}
+	};
+
+	private <C extends Resource> LazyList<C> lazyList(
+			RailsResourceFactory<C> children, String from) {
+		return new LazyList<C>(children, from);
+	}
+
+	/**
+	 * Walk a collection that the service returns a page at a time. The
+	 * following pages are fetched in the background while you process the
+	 * current one; see {@link Pager} for the details.
+	 * 
+	 * <code>
+	 * <pre>
+	 * Pager&lt;Person&gt; pager = rf.findAllPaged(null, 100);
+	 * ArrayList&lt;Person&gt; page;
+	 * while ((page = pager.nextPage()) != null)
+	 *   ...
+	 * </pre>
+	 * </code>
+	 * 
+	 * @param params
+	 *            other query parameters for every page, may be null
+	 * @param perPage
+	 *            the number of resources on each page
+	 * @return a pager positioned before the first page
+	 */
+	public Pager<T> findAllPaged(Map<Object, Object> params, int perPage) {
+		return new Pager<T>(this, params, perPage);
+	}
+
 	/**
 	 * figure out the name of the collection of resources generated by the main
 	 * class of this factory.
 	 * 
-	 * This method first looks for a CollectionName annotation on the class it
-	 * knows how to create. If there is no annotation, then it guesses based on
-	 * the name of the class.
+	 * This method first looks for a ResourcePath or CollectionName annotation
+	 * on the class it knows how to create. If there is no annotation, then it
+	 * guesses based on the name of the class.
 	 * 
 	 * @return the name of the collection
 	 */
 	@Override
 	public String getCollectionName() {
 		String name;
+		ResourcePath rp = getResourceClass().getAnnotation(ResourcePath.class);
 		CollectionName cn = getResourceClass().getAnnotation(
 				CollectionName.class);
-		if (cn != null) {
+		if (rp != null) {
+			name = PathTemplate.compile(rp.value()).getCollectionName();
+		} else if (cn != null) {
 			name = cn.value();
 		} else {
 			name = Inflector.underscore(getResourceClass().getSimpleName());
@@ -286,14 +809,50 @@ public class RailsResourceFactory<T extends Resource> extends
 		return name;
 	}
 
+	/**
+	 * the field holding the value of a placeholder is the camelized form of
+	 * its name, ie <code>post_id</code> is read from <code>postId</code>
+	 */
+	@Override
+	protected String prefixFieldName(String placeholder) {
+		return camelize(placeholder, false);
+	}
+
+	@Override
+	public RailsResourceFactory<T> withPrefix(String name, Object value) {
+		return (RailsResourceFactory<T>) super.withPrefix(name, value);
+	}
+
+	/**
+	 * the copy gets its own association factories and deferrals
+	 */
+	@Override
+	protected Object clone() throws CloneNotSupportedException {
+		@SuppressWarnings("unchecked")
+		RailsResourceFactory<T> copy = (RailsResourceFactory<T>) super.clone();
+		copy.associationFactories = new ConcurrentHashMap<Class<?>, RailsResourceFactory<?>>(
+				associationFactories);
+		copy.deferred = new ConcurrentHashMap<Field, RailsResourceFactory<?>>(
+				deferred);
+		return copy;
+	}
+
 	protected URI uriForCollection(Map<Object, Object> params) {
 		URLBuilder url;
-		url = new URLBuilder(getCollectionName()
+		url = new URLBuilder().addEncoded(getCollectionPath()
 				+ getResourceFormat().extension());
 		url.addQuery(params);
 		return url.toURI();
 	}
 
+	protected URI uriForIds(Collection<String> ids) {
+		URLBuilder url;
+		url = new URLBuilder().addEncoded(getCollectionPath()
+				+ getResourceFormat().extension());
+		url.addQuery(getIdsParameter(), ids);
+		return url.toURI();
+	}
+
 	protected URI uriForCollection(String from) {
 		URLBuilder url;
 		url = new URLBuilder(from + getResourceFormat().extension());
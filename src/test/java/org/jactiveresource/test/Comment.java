@@ -36,6 +36,7 @@ package org.jactiveresource.test;
 import java.util.Date;
 
 import org.jactiveresource.Resource;
+import org.jactiveresource.annotation.ResourcePath;
 
 /**
  * 
@@ -43,6 +44,7 @@ import org.jactiveresource.Resource;
  *          $LastChangedDate$
  * @author $LastChangedBy$
  */
+@ResourcePath("posts/:post_id/comments")
 public class Comment implements Resource {
 
 	private String id;
@@ -0,0 +1,112 @@
+/*
+
+Copyright (c) 2010, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.jactiveresource.BatchResult;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.rails.RailsResourceFactory;
+
+/**
+ * Times a large number of concurrent finds against the test service. This is
+ * not a unit test, run it by hand:
+ * 
+ * <code>
+ * <pre>
+ * java org.jactiveresource.test.FindBenchmark http://localhost:3000 10000 10000
+ * </pre>
+ * </code>
+ * 
+ * The arguments are the site, the number of finds, and how many may be in
+ * flight at once. The ids asked for cycle through 1 to 100. If the JVM can
+ * make an executor which starts a virtual thread per task, it is used instead
+ * of the default pool of the connection.
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class FindBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String site = args.length > 0 ? args[0] : "http://localhost:3000";
+		int finds = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : finds;
+
+		ResourceConnection c = new ResourceConnection(site);
+		ExecutorService virtual = virtualThreadExecutor();
+		if (virtual != null)
+			c.setExecutor(virtual);
+		RailsResourceFactory<Person> rf = new RailsResourceFactory<Person>(c,
+				Person.class);
+		rf.setParallelism(parallelism);
+
+		List<String> ids = new ArrayList<String>(finds);
+		for (int i = 0; i < finds; i++)
+			ids.add(Integer.toString(i % 100 + 1));
+
+		System.out.println("executor: "
+				+ (virtual == null ? "thread pool" : "virtual threads"));
+		for (int run = 1; run <= 3; run++) {
+			long start = System.nanoTime();
+			BatchResult<Person> result = rf.find(ids);
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.out.println("run " + run + ": " + finds + " finds in "
+					+ millis + "ms, " + result.getErrors().size() + " errors, "
+					+ (finds * 1000L / Math.max(millis, 1)) + " finds/s");
+		}
+
+		if (virtual != null)
+			virtual.shutdown();
+		c.close();
+	}
+
+	/**
+	 * return an executor that starts a virtual thread for each task, or null
+	 * if this JVM doesn't have them
+	 */
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method m = java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -36,6 +36,7 @@ package org.jactiveresource.test;
 import java.util.Date;
 
 import org.jactiveresource.ActiveResource;
+import org.jactiveresource.annotation.Indexed;
 
 /**
  * 
@@ -45,7 +46,9 @@ import org.jactiveresource.ActiveResource;
  */
 public class Person extends ActiveResource<Person> {
 
+	@Indexed
 	private String name;
+	@Indexed(sorted = true)
 	private Date birthdate;
 	private Date createdAt;
 	private Date updatedAt;
@@ -0,0 +1,116 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+
+package org.jactiveresource.test;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.jactiveresource.AbstractHttpClientFactory;
+
+/**
+ * hands out a client which doesn't send anything, but asks a responder to
+ * make up the response to each request
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class StubClientFactory implements AbstractHttpClientFactory,
+		InvocationHandler {
+
+	/**
+	 * makes up the response to a request, or throws whatever the client
+	 * should throw
+	 */
+	public interface Responder {
+		HttpResponse respond(HttpUriRequest request) throws Exception;
+	}
+
+	private final Responder responder;
+
+	public StubClientFactory(Responder responder) {
+		this.responder = responder;
+	}
+
+	/**
+	 * @return a response with this status and body, or no body if it is null
+	 */
+	public static HttpResponse response(int status, String body)
+			throws UnsupportedEncodingException {
+		BasicHttpResponse response = new BasicHttpResponse(
+				HttpVersion.HTTP_1_1, status, "");
+		if (body != null)
+			response.setEntity(new StringEntity(body));
+		return response;
+	}
+
+	public HttpClient getHttpClient(URL site) {
+		return (HttpClient) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { HttpClient.class }, this);
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		if (!method.getName().equals("execute") || args.length != 1)
+			throw new UnsupportedOperationException(method.getName());
+		return responder.respond((HttpUriRequest) args[0]);
+	}
+
+	public void shutter() {
+	}
+
+	public String getUsername() {
+		return null;
+	}
+
+	public void setUsername(String username) {
+	}
+
+	public String getPassword() {
+		return null;
+	}
+
+	public void setPassword(String password) {
+	}
+}
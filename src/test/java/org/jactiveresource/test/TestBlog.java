@@ -34,12 +34,17 @@ POSSIBILITY OF SUCH DAMAGE.
 package org.jactiveresource.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.TimeZone;
 
+import org.jactiveresource.DefaultHttpClientFactory;
 import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.rails.LazyList;
 import org.jactiveresource.rails.RailsResourceFactory;
 import org.junit.Before;
 import org.junit.Test;
@@ -71,9 +76,52 @@ public class TestBlog {
 	@Test
 	public void getPostAndComments() throws Exception {
 		p = (Post) pf.find("1");
+		assertReleased();
 		assertEquals("first post", p.getTitle());
 	}
 
+	@Test
+	public void includeComments() throws Exception {
+		long requests = c.getMetrics().getRequests();
+		ArrayList<Post> posts = pf.findAll(null, "comments");
+		assertReleased();
+		// one for the posts, and one for all of their comments
+		assertEquals(requests + 2, c.getMetrics().getRequests());
+		int comments = 0;
+		for (Post post : posts) {
+			for (Comment comment : post.getComments()) {
+				assertEquals(post.getId(), comment.getPostId());
+				comments++;
+			}
+		}
+		assertTrue(comments > 0);
+		// reading the comments doesn't ask for them again
+		assertEquals(requests + 2, c.getMetrics().getRequests());
+	}
+
+	@Test
+	public void deferComments() throws Exception {
+		pf.defer("comments");
+		p = pf.deserializeOne(serializedPost1());
+		assertEquals("first post", p.getTitle());
+		assertFalse(((LazyList<Comment>) p.getComments()).isLoaded());
+		assertEquals(2, p.getComments().size());
+	}
+
+	@Test
+	public void nestedComments() throws Exception {
+		RailsResourceFactory<Comment> cf = new RailsResourceFactory<Comment>(
+				c, Comment.class).withPrefix("post_id", "1");
+		assertEquals("posts/1/comments", cf.getCollectionPath());
+		long requests = c.getMetrics().getRequests();
+		ArrayList<Comment> comments = cf.findAll();
+		assertReleased();
+		assertFalse(comments.isEmpty());
+		for (Comment comment : comments)
+			assertEquals("1", comment.getPostId());
+		assertEquals(requests + 1, c.getMetrics().getRequests());
+	}
+
 	@Test
 	public void deserialize1() throws Exception {
 		p = pf.deserializeOne(serializedPost1());
@@ -122,4 +170,13 @@ public class TestBlog {
 		sb.append("</post>");
 		return sb.toString();
 	}
+
+	/**
+	 * every request so far has given its connection back to the pool
+	 */
+	private void assertReleased() {
+		DefaultHttpClientFactory factory = (DefaultHttpClientFactory) c
+				.getHttpClientFactory();
+		assertEquals(0, factory.getPoolStats().getLeased());
+	}
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jactiveresource.CachingTokenProvider;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * tests for the CachingTokenProvider class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestCachingTokenProvider {
+
+	private CountingProvider p;
+
+	@After
+	public void tearDown() {
+		p.shutdown();
+	}
+
+	@Test
+	public void cachesToken() throws Exception {
+		p = new CountingProvider(1, TimeUnit.HOURS);
+		assertEquals("token1", p.getToken());
+		assertEquals("token1", p.getToken());
+		assertEquals(1, p.fetches.get());
+	}
+
+	@Test
+	public void refreshesAhead() throws Exception {
+		p = new CountingProvider(2500, TimeUnit.MILLISECONDS);
+		p.setRefreshAhead(2000);
+		assertEquals("token1", p.getToken());
+		// refreshed half way through, since it doesn't last twice as long as
+		// the refresh ahead
+		Thread.sleep(1800);
+		assertEquals(2, p.fetches.get());
+		assertEquals("token2", p.getToken());
+		assertEquals(2, p.fetches.get());
+	}
+
+	@Test
+	public void invalidate() throws Exception {
+		p = new CountingProvider(1, TimeUnit.HOURS);
+		assertEquals("token1", p.getToken());
+		// an old token doesn't throw out the current one
+		p.invalidate("token0");
+		assertEquals("token1", p.getToken());
+		p.invalidate("token1");
+		assertEquals("token2", p.getToken());
+		assertEquals(2, p.fetches.get());
+	}
+
+	@Test
+	public void expiredToken() throws Exception {
+		p = new CountingProvider(0, TimeUnit.SECONDS);
+		assertEquals("token1", p.getToken());
+		// nothing is fetched in the background
+		Thread.sleep(300);
+		assertEquals(1, p.fetches.get());
+		// but the next request wants a fresh one
+		assertEquals("token2", p.getToken());
+
+		p.shutdown();
+		p = new CountingProvider(-5, TimeUnit.SECONDS);
+		p.getToken();
+		Thread.sleep(300);
+		assertEquals(1, p.fetches.get());
+	}
+
+	@Test
+	public void shortLivedToken() throws Exception {
+		p = new CountingProvider(50, TimeUnit.MILLISECONDS);
+		p.getToken();
+		Thread.sleep(300);
+		assertEquals(1, p.fetches.get());
+		assertFalse("token1".equals(p.getToken()));
+	}
+
+	/**
+	 * hands out numbered tokens with a fixed lifetime
+	 */
+	private static class CountingProvider extends CachingTokenProvider {
+		final AtomicInteger fetches = new AtomicInteger();
+		final long lifetime;
+		final TimeUnit unit;
+
+		CountingProvider(long lifetime, TimeUnit unit) {
+			this.lifetime = lifetime;
+			this.unit = unit;
+		}
+
+		@Override
+		protected Token fetchToken() throws IOException {
+			return new Token("token" + fetches.incrementAndGet(), lifetime,
+					unit);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.jactiveresource.CircuitBreaker;
+import org.jactiveresource.CircuitBreaker.State;
+import org.junit.Test;
+
+/**
+ * tests for the CircuitBreaker class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestCircuitBreaker {
+
+	@Test
+	public void opensAfterFailuresInARow() {
+		CircuitBreaker b = new CircuitBreaker(3, 60000);
+		for (int i = 0; i < 2; i++) {
+			assertTrue(b.allowRequest());
+			b.onFailure();
+		}
+		assertEquals(State.CLOSED, b.getState());
+		assertTrue(b.allowRequest());
+		b.onFailure();
+		assertEquals(State.OPEN, b.getState());
+		assertFalse(b.allowRequest());
+	}
+
+	@Test
+	public void successStartsTheCountAgain() {
+		CircuitBreaker b = new CircuitBreaker(3, 60000);
+		b.onFailure();
+		b.onFailure();
+		b.onSuccess();
+		b.onFailure();
+		b.onFailure();
+		assertEquals(State.CLOSED, b.getState());
+		b.onFailure();
+		assertEquals(State.OPEN, b.getState());
+	}
+
+	@Test
+	public void probeSuccessCloses() throws InterruptedException {
+		CircuitBreaker b = opened();
+		assertEquals(State.HALF_OPEN, b.getState());
+		assertTrue(b.allowRequest());
+		// only one probe at a time
+		assertFalse(b.allowRequest());
+		b.onSuccess();
+		assertEquals(State.CLOSED, b.getState());
+		assertTrue(b.allowRequest());
+		assertTrue(b.allowRequest());
+	}
+
+	@Test
+	public void probeFailureOpensAgain() throws InterruptedException {
+		CircuitBreaker b = opened();
+		assertTrue(b.allowRequest());
+		b.onFailure();
+		assertEquals(State.OPEN, b.getState());
+		assertFalse(b.allowRequest());
+	}
+
+	@Test
+	public void ignoredProbeFreesTheSlot() throws InterruptedException {
+		CircuitBreaker b = opened();
+		assertTrue(b.allowRequest());
+		assertFalse(b.allowRequest());
+		b.onIgnored();
+		assertEquals(State.HALF_OPEN, b.getState());
+		assertTrue(b.allowRequest());
+	}
+
+	@Test
+	public void maxProbes() throws InterruptedException {
+		CircuitBreaker b = opened();
+		b.setMaxProbes(2);
+		assertTrue(b.allowRequest());
+		assertTrue(b.allowRequest());
+		assertFalse(b.allowRequest());
+	}
+
+	/**
+	 * a breaker which has been open long enough to probe
+	 */
+	private CircuitBreaker opened() throws InterruptedException {
+		CircuitBreaker b = new CircuitBreaker(1, 20);
+		b.onFailure();
+		assertEquals(State.OPEN, b.getState());
+		assertFalse(b.allowRequest());
+		Thread.sleep(40);
+		return b;
+	}
+}
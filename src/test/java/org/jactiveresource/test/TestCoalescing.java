@@ -0,0 +1,167 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpGet;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ResponseReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for coalescing gets in ResourceConnection, with a connection which
+ * reads canned responses instead of talking to a service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestCoalescing {
+
+	private StubConnection c;
+
+	@Before
+	public void setUp() throws Exception {
+		c = new StubConnection();
+		c.setCoalescingGets(true);
+	}
+
+	@After
+	public void tearDown() {
+		c.close();
+	}
+
+	@Test(timeout = 10000)
+	public void sharesOneRead() throws Exception {
+		Getter leader = new Getter();
+		leader.start();
+		c.entered.await();
+
+		Getter[] followers = new Getter[3];
+		for (int i = 0; i < followers.length; i++) {
+			followers[i] = new Getter();
+			followers[i].start();
+		}
+		waitForCoalesced(3);
+		c.release.countDown();
+
+		leader.join();
+		assertEquals("<people/>", leader.body);
+		for (Getter f : followers) {
+			f.join();
+			assertEquals("<people/>", f.body);
+		}
+		assertEquals(1, c.reads.get());
+	}
+
+	@Test(timeout = 10000)
+	public void interruptedLeader() throws Exception {
+		Getter leader = new Getter();
+		leader.start();
+		c.entered.await();
+
+		Getter follower = new Getter();
+		follower.start();
+		waitForCoalesced(1);
+		leader.interrupt();
+
+		leader.join();
+		assertTrue(leader.error instanceof InterruptedException);
+		assertTrue(leader.interrupted);
+
+		// the follower does its own read instead of getting the leader's
+		// interrupt
+		follower.join();
+		assertEquals(null, follower.error);
+		assertEquals("<people/>", follower.body);
+		assertEquals(2, c.reads.get());
+	}
+
+	private void waitForCoalesced(int n) throws InterruptedException {
+		while (c.getMetrics().getCoalescedRequests() < n)
+			Thread.sleep(10);
+	}
+
+	/**
+	 * does a get on its own thread
+	 */
+	private class Getter extends Thread {
+		volatile String body;
+		volatile Throwable error;
+		volatile boolean interrupted;
+
+		public void run() {
+			try {
+				body = c.get("/people.xml");
+			} catch (Throwable t) {
+				error = t;
+			}
+			interrupted = isInterrupted();
+		}
+	}
+
+	/**
+	 * the first read waits until it is released, the rest come back right
+	 * away
+	 */
+	private static class StubConnection extends ResourceConnection {
+		final AtomicInteger reads = new AtomicInteger();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		StubConnection() throws Exception {
+			super("http://localhost:3000");
+		}
+
+		@Override
+		public ResponseReader getStream(Object url)
+				throws InterruptedException {
+			if (reads.incrementAndGet() == 1) {
+				entered.countDown();
+				release.await(5, TimeUnit.SECONDS);
+			}
+			return new ResponseReader(new StringReader("<people/>"),
+					new HttpGet(getSite().toString() + url));
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jactiveresource.ConcurrencyLimiter;
+import org.jactiveresource.Endpoint;
+import org.jactiveresource.LoadBalancer;
+import org.jactiveresource.ResourceConnection;
+import org.junit.Test;
+
+/**
+ * tests for the ConcurrencyLimiter class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestConcurrencyLimiter {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long LONG_AGO = TimeUnit.SECONDS.toNanos(10);
+
+	@Test
+	public void growsWhenUsed() throws Exception {
+		ConcurrencyLimiter l = new ConcurrencyLimiter(10, 15);
+		for (int round = 0; round < 100; round++) {
+			int n = l.getLimit();
+			for (int i = 0; i < n; i++)
+				assertTrue(l.acquire());
+			for (int i = 0; i < n; i++)
+				l.release(FAST, false);
+		}
+		assertEquals(15, l.getLimit());
+		assertEquals(0, l.getInFlight());
+	}
+
+	@Test
+	public void idleDoesNotGrow() throws Exception {
+		ConcurrencyLimiter l = new ConcurrencyLimiter(10, 40);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(l.acquire());
+			l.release(FAST, false);
+		}
+		assertEquals(10, l.getLimit());
+	}
+
+	@Test
+	public void backsOffOncePerOverload() throws Exception {
+		ConcurrencyLimiter l = new ConcurrencyLimiter(100, 100);
+		for (int i = 0; i < 40; i++)
+			assertTrue(l.acquire());
+		// forty timeouts from requests that were all sent before the first
+		// one came back
+		for (int i = 0; i < 40; i++)
+			l.release(LONG_AGO, true);
+		assertEquals(90, l.getLimit());
+
+		// a request sent after that backs off again
+		Thread.sleep(20);
+		assertTrue(l.acquire());
+		l.release(FAST, true);
+		assertEquals(81, l.getLimit());
+	}
+
+	@Test
+	public void slowCountsAsDropped() throws Exception {
+		ConcurrencyLimiter l = new ConcurrencyLimiter(10, 10);
+		l.setSlowThreshold(100);
+		assertTrue(l.acquire());
+		l.release(TimeUnit.MILLISECONDS.toNanos(50), false);
+		assertEquals(10, l.getLimit());
+		assertTrue(l.acquire());
+		l.release(TimeUnit.MILLISECONDS.toNanos(200), false);
+		assertEquals(9, l.getLimit());
+	}
+
+	@Test
+	public void neverBelowMin() throws Exception {
+		ConcurrencyLimiter l = new ConcurrencyLimiter(4, 4);
+		l.setMinLimit(2);
+		l.setBackoffRatio(0.5);
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(2);
+			assertTrue(l.acquire());
+			l.release(FAST / 2, true);
+		}
+		assertEquals(2, l.getLimit());
+	}
+
+	@Test
+	public void rejectsWhenFull() throws Exception {
+		ConcurrencyLimiter l = new ConcurrencyLimiter(2, 2);
+		l.setMaxQueue(0);
+		assertTrue(l.acquire());
+		assertTrue(l.acquire());
+		assertFalse(l.acquire());
+
+		l.setMaxQueue(1);
+		l.setMaxWait(50);
+		long start = System.nanoTime();
+		assertFalse(l.acquire());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(40));
+
+		l.release(FAST, false);
+		assertTrue(l.acquire());
+	}
+
+	@Test
+	public void limitPerSite() throws Exception {
+		LoadBalancer b = new LoadBalancer("http://one:3000",
+				"http://two:3000");
+		ResourceConnection c = new ResourceConnection(b);
+		try {
+			ConcurrencyLimiter template = new ConcurrencyLimiter(4, 8);
+			template.setSlowThreshold(100);
+			c.setConcurrencyLimiter(template);
+			Endpoint one = b.getEndpoints().get(0);
+			Endpoint two = b.getEndpoints().get(1);
+			ConcurrencyLimiter l1 = c.getConcurrencyLimiter(one);
+			ConcurrencyLimiter l2 = c.getConcurrencyLimiter(two);
+			assertNotSame(template, l1);
+			assertNotSame(l1, l2);
+			assertSame(l1, c.getConcurrencyLimiter(one));
+			assertEquals(4, l2.getLimit());
+			assertEquals(100, l2.getSlowThreshold());
+			// the template itself never sees a request
+			assertEquals(8, c.getMetrics().getConcurrencyLimit());
+
+			// one site backing off leaves the other alone
+			assertTrue(l1.acquire());
+			l1.release(FAST, true);
+			assertEquals(3, l1.getLimit());
+			assertEquals(4, l2.getLimit());
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void replicasAddToOwnSite() throws Exception {
+		ResourceConnection c = new ResourceConnection("http://one:3000");
+		LoadBalancer replicas = new LoadBalancer("http://two:3000");
+		c.setReadReplicas(replicas);
+		try {
+			c.setConcurrencyLimiter(new ConcurrencyLimiter(4, 8));
+			assertEquals(4, c.getMetrics().getConcurrencyLimit());
+			c.getConcurrencyLimiter(replicas.getEndpoints().get(0));
+			// writes still go through the template
+			assertEquals(8, c.getMetrics().getConcurrencyLimit());
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+
+import org.jactiveresource.ConnectionPoolRegistry;
+import org.jactiveresource.DefaultHttpClientFactory;
+import org.junit.Test;
+
+/**
+ * tests for the ConnectionPoolRegistry class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestConnectionPoolRegistry {
+
+	@Test
+	public void countsReferences() throws Exception {
+		ConnectionPoolRegistry r = new ConnectionPoolRegistry();
+		URL a = new URL("http://localhost:3000");
+		URL b = new URL("http://LOCALHOST:3000/people");
+		URL c = new URL("https://localhost");
+
+		DefaultHttpClientFactory f1 = new DefaultHttpClientFactory(r, a);
+		DefaultHttpClientFactory f2 = new DefaultHttpClientFactory(r, b, c);
+		assertEquals(2, r.getReferences(a));
+		assertEquals(1, r.getReferences(new URL("https://localhost:443")));
+		assertEquals(2, r.getReferences().size());
+
+		f1.shutter();
+		// shuttering twice only gives the reference back once
+		f1.shutter();
+		assertEquals(1, r.getReferences(a));
+
+		f2.shutter();
+		assertEquals(0, r.getReferences(a));
+		assertTrue(r.getReferences().isEmpty());
+	}
+
+	@Test
+	public void sharesOnePool() throws Exception {
+		ConnectionPoolRegistry r = new ConnectionPoolRegistry();
+		r.setMaxTotal(10);
+		URL a = new URL("http://localhost:3000");
+		DefaultHttpClientFactory f1 = new DefaultHttpClientFactory(r, a);
+		DefaultHttpClientFactory f2 = new DefaultHttpClientFactory(r, a);
+		f1.setUsername("ace");
+		assertEquals(10, f2.getPoolStats().getMax());
+		r.setMaxTotal(20);
+		assertEquals(20, f1.getPoolStats().getMax());
+		// credentials are not shared
+		assertEquals(null, f2.getUsername());
+		f1.shutter();
+		f2.shutter();
+		assertEquals(20, r.getPoolStats().getMax());
+	}
+}
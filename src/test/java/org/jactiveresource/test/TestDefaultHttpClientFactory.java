@@ -0,0 +1,321 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.auth.AuthState;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.jactiveresource.DefaultHttpClientFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the DefaultHttpClientFactory class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestDefaultHttpClientFactory {
+
+	private DefaultHttpClientFactory f;
+
+	@Before
+	public void setUp() {
+		f = new DefaultHttpClientFactory.Builder().build();
+	}
+
+	@After
+	public void tearDown() {
+		f.shutter();
+	}
+
+	@Test
+	public void credentialsOnlyForTheirSites() throws Exception {
+		f.setUsername("Ace");
+		f.setPassword("newenglandclamchowder");
+		f.addCredentialSite(new URL("http://replica:3001"));
+		f.addCredentialSite(new URL("https://secure"));
+		DefaultHttpClient c = f.getHttpClient(new URL("http://primary:3000"));
+		HttpRequestInterceptor auth = c.getRequestInterceptor(0);
+
+		assertTrue(sendsCredentials(auth, new HttpHost("primary", 3000)));
+		assertTrue(sendsCredentials(auth, new HttpHost("PRIMARY", 3000)));
+		assertTrue(sendsCredentials(auth, new HttpHost("replica", 3001)));
+		assertTrue(sendsCredentials(auth, new HttpHost("secure", -1,
+				"https")));
+		assertTrue(sendsCredentials(auth, new HttpHost("secure", 443,
+				"https")));
+
+		// somewhere a redirect might point
+		assertFalse(sendsCredentials(auth, new HttpHost("elsewhere", 3000)));
+		assertFalse(sendsCredentials(auth, new HttpHost("primary", 3001)));
+		assertFalse(sendsCredentials(auth, new HttpHost("secure", -1)));
+	}
+
+	@Test
+	public void staleCheckingOnlyAfterIdle() throws Exception {
+		DefaultHttpClient c = f.getHttpClient(new URL("http://primary:3000"));
+		assertFalse(HttpConnectionParams.isStaleCheckingEnabled(c.getParams()));
+		assertEquals(2000, f.getStaleCheckThreshold());
+
+		f.setStaleCheckingEnabled(true);
+		c = f.getHttpClient(new URL("http://primary:3000"));
+		assertTrue(HttpConnectionParams.isStaleCheckingEnabled(c.getParams()));
+	}
+
+	@Test(timeout = 20000)
+	public void idleStaleConnectionIsReplaced() throws Exception {
+		OneShotServer server = new OneShotServer();
+		try {
+			f.setStaleCheckThreshold(0);
+			DefaultHttpClient c = client(server);
+			assertEquals(200, get(c, server));
+			// let the close get here
+			Thread.sleep(100);
+			assertEquals(200, get(c, server));
+			assertEquals(2, server.accepted.get());
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void staleConnectionUsedWithoutTheCheck() throws Exception {
+		OneShotServer server = new OneShotServer();
+		try {
+			f.setStaleCheckThreshold(-1);
+			DefaultHttpClient c = client(server);
+			assertEquals(200, get(c, server));
+			Thread.sleep(100);
+			try {
+				get(c, server);
+				fail("used a connection the server had closed");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void leakIsReportedOnce() throws Exception {
+		OneShotServer server = new OneShotServer();
+		Logger logger = Logger
+				.getLogger("org.jactiveresource.InstrumentedConnManager");
+		Recorder warnings = new Recorder();
+		logger.addAppender(warnings);
+		try {
+			f.setLeakDetectionThreshold(1);
+			f.setEvictionInterval(20);
+			DefaultHttpClient c = client(server);
+			// never read, so the connection stays leased
+			HttpResponse response = c.execute(new HttpGet(server.url()
+					+ "/people.xml"));
+			assertEquals(1, f.getPoolStats().getLeased());
+
+			// the evictor picks up the new interval after its first look
+			while (warnings.events.isEmpty())
+				Thread.sleep(20);
+			Thread.sleep(200);
+			assertEquals(1, warnings.events.size());
+			Throwable site = warnings.events.get(0).getThrowableInformation()
+					.getThrowable();
+			assertEquals("connection leased here", site.getMessage());
+			boolean here = false;
+			for (StackTraceElement e : site.getStackTrace())
+				here |= e.getMethodName().equals("leakIsReportedOnce");
+			assertTrue(here);
+
+			EntityUtils.consume(response.getEntity());
+			assertEquals(0, f.getPoolStats().getLeased());
+		} finally {
+			logger.removeAppender(warnings);
+			server.close();
+		}
+	}
+
+	/**
+	 * keeps the warnings logged while it is attached
+	 */
+	private static class Recorder extends AppenderSkeleton {
+		final List<LoggingEvent> events = Collections
+				.synchronizedList(new ArrayList<LoggingEvent>());
+
+		@Override
+		protected void append(LoggingEvent event) {
+			if (event.getLevel().isGreaterOrEqual(Level.WARN))
+				events.add(event);
+		}
+
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		public void close() {
+		}
+	}
+
+	private DefaultHttpClient client(OneShotServer server) throws Exception {
+		DefaultHttpClient c = f.getHttpClient(server.url());
+		// so a stale connection shows up as a failure
+		c.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0,
+				false));
+		return c;
+	}
+
+	private int get(DefaultHttpClient c, OneShotServer server)
+			throws Exception {
+		HttpResponse response = c.execute(new HttpGet(server.url().toString()
+				+ "/people.xml"));
+		EntityUtils.consume(response.getEntity());
+		return response.getStatusLine().getStatusCode();
+	}
+
+	/**
+	 * answers one keep alive request on each connection, then closes it
+	 */
+	private static class OneShotServer implements Runnable {
+		final ServerSocket socket = new ServerSocket(0);
+		final AtomicInteger accepted = new AtomicInteger();
+
+		OneShotServer() throws IOException {
+			Thread t = new Thread(this, "one-shot-server");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		URL url() throws IOException {
+			return new URL("http://127.0.0.1:" + socket.getLocalPort());
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket s = socket.accept();
+					accepted.incrementAndGet();
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(s.getInputStream(), "US-ASCII"));
+					String line;
+					while ((line = in.readLine()) != null && line.length() > 0)
+						;
+					OutputStream out = s.getOutputStream();
+					out.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n"
+							+ "Content-Type: text/plain\r\n\r\nok")
+							.getBytes("US-ASCII"));
+					out.flush();
+					s.close();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void evictorGoesWithTheFactory() throws Exception {
+		Set<Thread> before = evictors();
+		DefaultHttpClientFactory dropped = new DefaultHttpClientFactory();
+		dropped.setEvictionInterval(10);
+		Set<Thread> started = evictors();
+		started.removeAll(before);
+		assertFalse(started.isEmpty());
+
+		// never shuttered
+		dropped = null;
+		while (!started.isEmpty()) {
+			System.gc();
+			Thread.sleep(50);
+			for (Thread t : started.toArray(new Thread[0]))
+				if (!t.isAlive())
+					started.remove(t);
+		}
+	}
+
+	private Set<Thread> evictors() {
+		Set<Thread> evictors = new HashSet<Thread>();
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (t.getName().equals("jactiveresource-evictor"))
+				evictors.add(t);
+		return evictors;
+	}
+
+	private boolean sendsCredentials(HttpRequestInterceptor auth,
+			HttpHost target) throws Exception {
+		BasicHttpContext context = new BasicHttpContext();
+		AuthState state = new AuthState();
+		context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+		context.setAttribute(ClientContext.TARGET_AUTH_STATE, state);
+		auth.process(new HttpGet("/people.xml"), context);
+		return state.getCredentials() != null;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.ResourceNotFound;
+import org.jactiveresource.rails.FindDispatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the FindDispatcher class, with a factory which doesn't talk to a
+ * service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestFindDispatcher {
+
+	private ResourceConnection c;
+	private ExecutorService executor;
+	private StubFactory pf;
+
+	@Before
+	public void setUp() throws Exception {
+		c = new ResourceConnection("http://localhost:3000");
+		executor = Executors.newCachedThreadPool();
+		c.setExecutor(executor);
+		pf = new StubFactory(c);
+		pf.setIdsParameter("ids[]");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		c.close();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void batchesIds() throws Exception {
+		FindDispatcher<Person> d = new FindDispatcher<Person>(pf, 50, 10);
+		Future<Person> one = d.submit("1");
+		Future<Person> two = d.submit("2");
+		Future<Person> again = d.submit("1");
+		assertSame(one, again);
+		assertEquals("1", one.get().getId());
+		assertEquals("2", two.get().getId());
+		assertEquals(1, pf.batches.size());
+		assertEquals(2, pf.batches.get(0).size());
+		d.close();
+	}
+
+	@Test
+	public void fullBatchGoesAtOnce() throws Exception {
+		FindDispatcher<Person> d = new FindDispatcher<Person>(pf, 60000, 2);
+		Future<Person> one = d.submit("1");
+		Future<Person> two = d.submit("2");
+		assertEquals("1", one.get().getId());
+		assertEquals("2", two.get().getId());
+		d.close();
+	}
+
+	@Test
+	public void missingId() throws Exception {
+		FindDispatcher<Person> d = new FindDispatcher<Person>(pf, 10, 10);
+		try {
+			d.submit("404").get();
+			fail("missing id was found");
+		} catch (ExecutionException e) {
+			assertEquals(ResourceNotFound.class, e.getCause().getClass());
+		}
+		d.close();
+	}
+
+	@Test
+	public void closeSendsWhatIsWaiting() throws Exception {
+		FindDispatcher<Person> d = new FindDispatcher<Person>(pf, 60000, 10);
+		Future<Person> one = d.submit("1");
+		d.close();
+		assertEquals("1", one.get().getId());
+	}
+
+	@Test
+	public void closedTakesNoMoreIds() throws Exception {
+		FindDispatcher<Person> d = new FindDispatcher<Person>(pf, 50, 10);
+		d.close();
+		try {
+			d.submit("1");
+			fail("closed dispatcher took an id");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectedBatchFails() throws Exception {
+		FindDispatcher<Person> d = new FindDispatcher<Person>(pf, 10, 2);
+		executor.shutdown();
+		Future<Person> timed = d.submit("1");
+		try {
+			timed.get(5, TimeUnit.SECONDS);
+			fail("rejected batch was found");
+		} catch (ExecutionException e) {
+			assertEquals(RejectedExecutionException.class, e.getCause()
+					.getClass());
+		}
+		Future<Person> full = d.submit("2");
+		try {
+			d.submit("3").get(5, TimeUnit.SECONDS);
+			fail("rejected batch was found");
+		} catch (ExecutionException e) {
+			assertEquals(RejectedExecutionException.class, e.getCause()
+					.getClass());
+		}
+		assertTrue(full.isDone());
+		d.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void windowMustBePositive() {
+		new FindDispatcher<Person>(pf, 0, 10);
+	}
+
+	/**
+	 * finds every id except 404
+	 */
+	private static class StubFactory extends PersonFactory {
+		final List<List<String>> batches = Collections
+				.synchronizedList(new ArrayList<List<String>>());
+
+		StubFactory(ResourceConnection c) {
+			super(c, ResourceFormat.XML);
+		}
+
+		@Override
+		public ArrayList<Person> findAll(Collection<String> ids)
+				throws IOException {
+			batches.add(new ArrayList<String>(ids));
+			ArrayList<Person> people = new ArrayList<Person>();
+			for (String id : ids)
+				if (!id.equals("404"))
+					people.add(deserializeOne("<person><id type=\"integer\">"
+							+ id + "</id></person>"));
+			return people;
+		}
+	}
+}
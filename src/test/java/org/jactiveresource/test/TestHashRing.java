@@ -0,0 +1,105 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jactiveresource.HashRing;
+import org.junit.Test;
+
+/**
+ * tests for the HashRing class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestHashRing {
+
+	private static final int KEYS = 10000;
+
+	private Map<String, String> nodes(int n) {
+		Map<String, String> nodes = new LinkedHashMap<String, String>();
+		for (int i = 1; i <= n; i++)
+			nodes.put("http://shard" + i + ":3000", "shard" + i);
+		return nodes;
+	}
+
+	@Test
+	public void sameKeySameNode() {
+		HashRing<String> a = new HashRing<String>(nodes(3));
+		HashRing<String> b = new HashRing<String>(nodes(3));
+		for (int i = 0; i < 100; i++)
+			assertEquals(a.get(Integer.toString(i)), b.get(Integer.toString(i)));
+	}
+
+	@Test
+	public void spreadsKeys() {
+		HashRing<String> ring = new HashRing<String>(nodes(4));
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < KEYS; i++) {
+			String node = ring.get(Integer.toString(i));
+			Integer c = counts.get(node);
+			counts.put(node, c == null ? 1 : c + 1);
+		}
+		assertEquals(4, counts.size());
+		for (int c : counts.values())
+			assertTrue("uneven spread " + counts, c > KEYS / 4 * 0.8
+					&& c < KEYS / 4 * 1.2);
+	}
+
+	@Test
+	public void addingANodeMovesFewKeys() {
+		HashRing<String> before = new HashRing<String>(nodes(4));
+		HashRing<String> after = new HashRing<String>(nodes(5));
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String key = Integer.toString(i);
+			String was = before.get(key);
+			String is = after.get(key);
+			if (!was.equals(is)) {
+				// keys only move to the new node
+				assertEquals("shard5", is);
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > KEYS / 5 * 0.8
+				&& moved < KEYS / 5 * 1.2);
+	}
+}
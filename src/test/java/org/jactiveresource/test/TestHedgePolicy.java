@@ -0,0 +1,245 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.jactiveresource.HedgePolicy;
+import org.jactiveresource.ResourceConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the HedgePolicy class, and for hedged GETs with a client which
+ * makes up its responses instead of talking to a service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestHedgePolicy {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private SlowResponder slow;
+	private ResourceConnection c;
+	private ExecutorService executor;
+	private RecordingPolicy h;
+
+	@Before
+	public void setUp() throws Exception {
+		slow = new SlowResponder();
+		c = new ResourceConnection("http://localhost:3000",
+				new StubClientFactory(slow));
+		h = new RecordingPolicy();
+		for (int i = 0; i < h.getMinSamples(); i++)
+			h.record(5 * MS);
+		h.recorded.clear();
+		c.setHedgePolicy(h);
+	}
+
+	@After
+	public void tearDown() {
+		if (executor != null)
+			executor.shutdownNow();
+		c.close();
+	}
+
+	@Test
+	public void noDelayUntilEnoughSamples() {
+		HedgePolicy p = new HedgePolicy();
+		p.setMinSamples(10);
+		for (int i = 0; i < 9; i++) {
+			p.record(i * MS);
+			assertEquals(-1, p.getDelayNanos());
+		}
+		p.record(9 * MS);
+		assertTrue(p.getDelayNanos() > 0);
+	}
+
+	@Test
+	public void delayIsThePercentile() {
+		HedgePolicy p = new HedgePolicy(100);
+		p.setPercentile(0.9);
+		p.setMinSamples(100);
+		for (int i = 1; i <= 100; i++)
+			p.record(i * MS);
+		assertEquals(90 * MS, p.getDelayNanos());
+	}
+
+	@Test
+	public void budgetRunsOut() {
+		HedgePolicy p = new HedgePolicy();
+		p.setBudgetRatio(0.5);
+		for (int i = 0; i < p.getBudgetBurst(); i++)
+			assertTrue(p.tryHedge());
+		assertFalse(p.tryHedge());
+		p.record(MS);
+		assertFalse(p.tryHedge());
+		p.record(MS);
+		assertTrue(p.tryHedge());
+	}
+
+	@Test
+	public void burstAppliesRightAway() {
+		HedgePolicy p = new HedgePolicy();
+		p.setBudgetBurst(2);
+		assertTrue(p.tryHedge());
+		assertTrue(p.tryHedge());
+		assertFalse(p.tryHedge());
+		p.setBudgetBurst(5);
+		for (int i = 0; i < 3; i++)
+			assertTrue(p.tryHedge());
+		assertFalse(p.tryHedge());
+	}
+
+	@Test
+	public void censoredOnlyCountsInTheTail() {
+		HedgePolicy p = new HedgePolicy(20);
+		p.setMinSamples(20);
+		p.setPercentile(1);
+		for (int i = 0; i < 20; i++)
+			p.record(5 * MS);
+		assertEquals(5 * MS, p.getDelayNanos());
+		// too short to say anything about the tail
+		for (int i = 0; i < 50; i++)
+			p.recordCensored(MS);
+		assertEquals(5 * MS, p.getDelayNanos());
+		for (int i = 0; i < 50; i++)
+			p.recordCensored(20 * MS);
+		assertEquals(20 * MS, p.getDelayNanos());
+	}
+
+	@Test(timeout = 10000)
+	public void hedgeWins() throws Exception {
+		slow.delay = 5000;
+		slow.slowThread = Thread.currentThread();
+		assertEquals("<people/>", c.get("/people.xml"));
+		assertEquals(2, slow.requests.get());
+		assertTrue(slow.slowAborted);
+		assertEquals(1, c.getMetrics().getHedgedRequests());
+		assertEquals(1, c.getMetrics().getHedgeWins());
+
+		// the winner is timed from when the first copy went out, and the
+		// loser had been going at least that long
+		assertEquals(1, h.recorded.size());
+		assertTrue(h.recorded.get(0) >= 5 * MS);
+		assertEquals(1, h.censored.size());
+		assertTrue(h.censored.get(0) >= 5 * MS);
+	}
+
+	@Test(timeout = 10000)
+	public void fromABoundedExecutor() throws Exception {
+		// the only thread is busy with the caller, so the hedge never gets
+		// to run, and the first copy has to do
+		slow.delay = 300;
+		executor = Executors.newFixedThreadPool(1);
+		c.setExecutor(executor);
+		Future<String> body = executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				slow.slowThread = Thread.currentThread();
+				return c.get("/people.xml");
+			}
+		});
+		assertEquals("<people/>", body.get(5, TimeUnit.SECONDS));
+		assertEquals(1, slow.requests.get());
+		assertEquals(1, h.recorded.size());
+		assertEquals(0, c.getMetrics().getHedgeWins());
+	}
+
+	/**
+	 * remembers what it was told
+	 */
+	private static class RecordingPolicy extends HedgePolicy {
+		final List<Long> recorded = Collections
+				.synchronizedList(new ArrayList<Long>());
+		final List<Long> censored = Collections
+				.synchronizedList(new ArrayList<Long>());
+
+		@Override
+		public void record(long nanos) {
+			recorded.add(nanos);
+			super.record(nanos);
+		}
+
+		@Override
+		public void recordCensored(long nanos) {
+			censored.add(nanos);
+			super.recordCensored(nanos);
+		}
+	}
+
+	/**
+	 * takes delay milliseconds over requests sent from slowThread, unless
+	 * they are aborted, and answers right away when they are sent from
+	 * anywhere else
+	 */
+	private static class SlowResponder implements StubClientFactory.Responder {
+		final AtomicInteger requests = new AtomicInteger();
+		volatile long delay;
+		volatile Thread slowThread;
+		volatile boolean slowAborted;
+
+		public HttpResponse respond(HttpUriRequest request) throws Exception {
+			requests.incrementAndGet();
+			if (Thread.currentThread() == slowThread) {
+				long end = System.currentTimeMillis() + delay;
+				while (System.currentTimeMillis() < end) {
+					if (request.isAborted()) {
+						slowAborted = true;
+						throw new IOException("aborted");
+					}
+					Thread.sleep(5);
+				}
+			}
+			return StubClientFactory.response(200, "<people/>");
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.rails.FileWatermarkStore;
+import org.jactiveresource.rails.IncrementalSync;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the IncrementalSync class, with a factory which doesn't talk to a
+ * service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestIncrementalSync {
+
+	private File file;
+	private StubFactory pf;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("watermarks", ".properties");
+		file.delete();
+		pf = new StubFactory();
+		for (int i = 1; i <= 3; i++)
+			pf.people.add(person(Integer.toString(i)));
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void restartWithEmptyStore() throws Exception {
+		IncrementalSync<Person> sync = new IncrementalSync<Person>(pf,
+				"since_id");
+		sync.setWatermarkStore(new FileWatermarkStore(file));
+		sync.sync();
+		assertEquals("3", sync.getWatermark());
+
+		// a new process, with the watermark but without the local copy, has
+		// to fetch everything, not just what came after the watermark
+		pf.people.add(person("4"));
+		sync = new IncrementalSync<Person>(pf, "since_id");
+		sync.setWatermarkStore(new FileWatermarkStore(file));
+		pf.full = pf.incremental = 0;
+		assertEquals(4, sync.sync());
+		assertEquals(1, pf.full);
+		assertEquals(0, pf.incremental);
+		assertEquals(4, sync.getStore().size());
+		assertEquals("4", sync.getWatermark());
+	}
+
+	@Test
+	public void restartWithKeptStore() throws Exception {
+		ConcurrentMap<String, Person> kept = new ConcurrentHashMap<String, Person>();
+		IncrementalSync<Person> sync = new IncrementalSync<Person>(pf,
+				"since_id");
+		sync.setWatermarkStore(new FileWatermarkStore(file));
+		sync.setStore(kept);
+		sync.sync();
+
+		// the local copy survived, so picking up after the watermark is enough
+		pf.people.add(person("4"));
+		sync = new IncrementalSync<Person>(pf, "since_id");
+		sync.setWatermarkStore(new FileWatermarkStore(file));
+		sync.setStore(kept);
+		pf.full = pf.incremental = 0;
+		assertEquals(1, sync.sync());
+		assertEquals(0, pf.full);
+		assertEquals(1, pf.incremental);
+		assertEquals(4, sync.getStore().size());
+	}
+
+	private Person person(String id) throws Exception {
+		return pf.deserializeOne("<person><id type=\"integer\">" + id
+				+ "</id></person>");
+	}
+
+	/**
+	 * serves a list of people, and counts full and incremental fetches
+	 */
+	private static class StubFactory extends PersonFactory {
+		final List<Person> people = new ArrayList<Person>();
+		int full;
+		int incremental;
+
+		StubFactory() {
+			super(null, ResourceFormat.XML);
+		}
+
+		@Override
+		public ArrayList<Person> findAll() {
+			full++;
+			return new ArrayList<Person>(people);
+		}
+
+		@Override
+		public ArrayList<Person> findAll(Map<Object, Object> params) {
+			incremental++;
+			long since = Long.parseLong((String) params.get("since_id"));
+			ArrayList<Person> changed = new ArrayList<Person>();
+			for (Person p : people)
+				if (Long.parseLong(p.getId()) > since)
+					changed.add(p);
+			return changed;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.jactiveresource.rails.LazyList;
+import org.jactiveresource.rails.RailsResourceFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the LazyList class, with a factory which doesn't talk to a service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestLazyList {
+
+	private StubFactory cf;
+	private LazyList<Comment> comments;
+
+	@Before
+	public void setUp() {
+		cf = new StubFactory();
+		comments = new LazyList<Comment>(cf, "posts/1/comments");
+	}
+
+	@Test
+	public void loadsOnFirstUse() {
+		assertFalse(comments.isLoaded());
+		assertEquals("[not loaded: posts/1/comments]", comments.toString());
+		assertEquals(0, cf.loads);
+		assertEquals(2, comments.size());
+		assertTrue(comments.isLoaded());
+		assertEquals("7", comments.get(0).getId());
+		assertEquals(1, cf.loads);
+	}
+
+	@Test
+	public void equalsLoads() {
+		ArrayList<Comment> other = new ArrayList<Comment>();
+		assertFalse(comments.equals(other));
+		assertEquals(1, cf.loads);
+	}
+
+	@Test
+	public void newerMethodsLoad() {
+		final List<String> ids = new ArrayList<String>();
+		comments.forEach(new Consumer<Comment>() {
+			public void accept(Comment c) {
+				ids.add(c.getId());
+			}
+		});
+		assertEquals(Arrays.asList("7", "8"), ids);
+		assertEquals(1, cf.loads);
+
+		assertEquals(2, fresh().stream().count());
+		assertTrue(fresh().removeIf(new Predicate<Comment>() {
+			public boolean test(Comment c) {
+				return c.getId().equals("7");
+			}
+		}));
+		LazyList<Comment> sorted = fresh();
+		sorted.sort(new Comparator<Comment>() {
+			public int compare(Comment a, Comment b) {
+				return b.getId().compareTo(a.getId());
+			}
+		});
+		assertEquals("8", sorted.get(0).getId());
+		assertEquals(2, ((ArrayList<?>) fresh().clone()).size());
+		assertEquals(fresh(), fresh());
+		assertEquals(7, cf.loads);
+	}
+
+	@Test
+	public void serializesAPlainList() throws Exception {
+		cf.empty = true;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(comments);
+		out.close();
+		assertEquals(1, cf.loads);
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		Object copy = in.readObject();
+		assertEquals(ArrayList.class, copy.getClass());
+		assertTrue(((ArrayList<?>) copy).isEmpty());
+	}
+
+	private LazyList<Comment> fresh() {
+		return new LazyList<Comment>(cf, "posts/1/comments");
+	}
+
+	/**
+	 * counts how many times the comments are fetched
+	 */
+	private static class StubFactory extends RailsResourceFactory<Comment> {
+		final List<Comment> all = new ArrayList<Comment>();
+		int loads;
+		boolean empty;
+
+		StubFactory() {
+			super(null, Comment.class);
+			for (String id : new String[] { "7", "8" }) {
+				Comment c = new Comment();
+				c.setId(id);
+				all.add(c);
+			}
+		}
+
+		@Override
+		protected ArrayList<Comment> findAllEncoded(String path) {
+			loads++;
+			return empty ? new ArrayList<Comment>() : new ArrayList<Comment>(
+					all);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.jactiveresource.Endpoint;
+import org.jactiveresource.LoadBalancer;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ServerError;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * tests for the LoadBalancer class, with a client which makes up the answer
+ * of each site instead of sending requests
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestLoadBalancer {
+
+	private Sites answers = new Sites();
+	private LoadBalancer lb;
+	private ResourceConnection c;
+
+	private void connect(String... hosts) throws Exception {
+		String[] sites = new String[hosts.length];
+		for (int i = 0; i < hosts.length; i++)
+			sites[i] = "http://" + hosts[i] + ":3000";
+		lb = new LoadBalancer(sites);
+		c = new ResourceConnection(lb, new StubClientFactory(answers));
+	}
+
+	@After
+	public void tearDown() {
+		if (c != null)
+			c.close();
+	}
+
+	@Test
+	public void ejectsAfterFailuresInARow() throws Exception {
+		connect("a", "b");
+		lb.setFailureThreshold(3);
+		answers.failing("a");
+		// round robin, starting with a
+		get(4);
+		assertFalse(endpoint("a").isEjected());
+		get(1);
+		assertTrue(endpoint("a").isEjected());
+
+		get(10);
+		assertEquals(3, answers.count("a"));
+		assertEquals(12, answers.count("b"));
+	}
+
+	@Test
+	public void successStartsTheCountAgain() throws Exception {
+		connect("a", "b");
+		lb.setFailureThreshold(3);
+		answers.failing("a");
+		get(4);
+		answers.ok("a");
+		get(2);
+		answers.failing("a");
+		get(4);
+		assertFalse(endpoint("a").isEjected());
+		get(2);
+		assertTrue(endpoint("a").isEjected());
+	}
+
+	@Test
+	public void ioErrorsAreFailures() throws Exception {
+		connect("a", "b");
+		lb.setFailureThreshold(2);
+		answers.broken("a");
+		get(4);
+		assertTrue(endpoint("a").isEjected());
+		assertEquals(2, endpoint("a").getFailures());
+	}
+
+	@Test(timeout = 20000)
+	public void ejectsSlowEndpoints() throws Exception {
+		connect("a", "b", "c");
+		lb.setSlowRatio(5);
+		answers.slow("c", 10);
+		get(60);
+		assertTrue(endpoint("c").isEjected());
+		assertFalse(endpoint("a").isEjected());
+		assertFalse(endpoint("b").isEjected());
+	}
+
+	@Test(timeout = 20000)
+	public void ejectionTimeDoubles() throws Exception {
+		connect("a", "b");
+		lb.setFailureThreshold(1);
+		lb.setEjectionTime(200);
+		answers.failing("a");
+		ejectA();
+		Thread.sleep(300);
+		assertFalse(endpoint("a").isEjected());
+
+		// ejected again without a success in between, for 400ms
+		ejectA();
+		Thread.sleep(300);
+		assertTrue(endpoint("a").isEjected());
+		Thread.sleep(200);
+		assertFalse(endpoint("a").isEjected());
+
+		// a success starts it over at 200ms
+		answers.ok("a");
+		get(2);
+		answers.failing("a");
+		ejectA();
+		Thread.sleep(300);
+		assertFalse(endpoint("a").isEjected());
+	}
+
+	@Test(timeout = 20000)
+	public void ejectionTimeIsCapped() throws Exception {
+		connect("a", "b");
+		lb.setFailureThreshold(1);
+		lb.setEjectionTime(200);
+		lb.setMaxEjectionTime(300);
+		answers.failing("a");
+		ejectA();
+		Thread.sleep(300);
+		ejectA();
+		Thread.sleep(400);
+		assertFalse(endpoint("a").isEjected());
+	}
+
+	@Test
+	public void maxEjectedPercent() throws Exception {
+		connect("a", "b", "c", "d");
+		lb.setFailureThreshold(1);
+		answers.failing("a");
+		answers.failing("b");
+		answers.failing("c");
+		get(20);
+		int ejected = 0;
+		for (Endpoint e : lb.getEndpoints())
+			if (e.isEjected())
+				ejected++;
+		assertEquals(2, ejected);
+		assertFalse(endpoint("d").isEjected());
+	}
+
+	@Test
+	public void allEjectedStillSends() throws Exception {
+		connect("a", "b");
+		lb.setFailureThreshold(1);
+		lb.setMaxEjectedPercent(100);
+		answers.failing("a");
+		answers.failing("b");
+		get(2);
+		assertTrue(endpoint("a").isEjected());
+		assertTrue(endpoint("b").isEjected());
+
+		get(4);
+		assertEquals(3, answers.count("a"));
+		assertEquals(3, answers.count("b"));
+	}
+
+	/**
+	 * send requests until a is ejected
+	 */
+	private void ejectA() throws Exception {
+		while (!endpoint("a").isEjected())
+			get(1);
+	}
+
+	private Endpoint endpoint(String host) {
+		for (Endpoint e : lb.getEndpoints())
+			if (e.getSite().getHost().equals(host))
+				return e;
+		throw new IllegalArgumentException(host);
+	}
+
+	/**
+	 * send n requests, ignoring any which fail
+	 */
+	private void get(int n) throws Exception {
+		for (int i = 0; i < n; i++) {
+			try {
+				c.get("/people.xml");
+			} catch (ServerError e) {
+				// expected from a failing site
+			} catch (IOException e) {
+				// expected from a broken site
+			}
+		}
+	}
+
+	/**
+	 * answers for each host the way it is told to, and counts the requests
+	 * sent to each
+	 */
+	private static class Sites implements StubClientFactory.Responder {
+		private final Map<String, Integer> status = new ConcurrentHashMap<String, Integer>();
+		private final Map<String, Long> delay = new ConcurrentHashMap<String, Long>();
+		private final Map<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+
+		void ok(String host) {
+			status.remove(host);
+		}
+
+		void failing(String host) {
+			status.put(host, 503);
+		}
+
+		void broken(String host) {
+			status.put(host, -1);
+		}
+
+		void slow(String host, long millis) {
+			delay.put(host, millis);
+		}
+
+		int count(String host) {
+			Integer n = counts.get(host);
+			return n == null ? 0 : n;
+		}
+
+		public synchronized HttpResponse respond(HttpUriRequest request)
+				throws Exception {
+			String host = request.getURI().getHost();
+			counts.put(host, count(host) + 1);
+			Long millis = delay.get(host);
+			if (millis != null)
+				Thread.sleep(millis);
+			Integer code = status.get(host);
+			if (code != null && code < 0)
+				throw new IOException("connection refused");
+			return StubClientFactory.response(code == null ? 200 : code,
+					"<nil-classes/>");
+		}
+	}
+}
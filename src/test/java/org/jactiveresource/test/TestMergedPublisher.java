@@ -0,0 +1,275 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jactiveresource.MergedPublisher;
+import org.jactiveresource.Publisher;
+import org.jactiveresource.Subscriber;
+import org.jactiveresource.Subscription;
+import org.junit.Test;
+
+/**
+ * tests for the MergedPublisher class, merging publishers which hand out
+ * numbers from a list
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestMergedPublisher {
+
+	@Test
+	public void mergesEverything() {
+		ListPublisher a = new ListPublisher(1, 2, 3);
+		ListPublisher b = new ListPublisher();
+		ListPublisher c = new ListPublisher(10, 20);
+		Recorder r = new Recorder(Long.MAX_VALUE);
+		merge(2, a, b, c).subscribe(r);
+
+		assertTrue(r.completed);
+		List<Integer> got = new ArrayList<Integer>(r.items);
+		Collections.sort(got);
+		assertEquals(Arrays.asList(1, 2, 3, 10, 20), got);
+	}
+
+	@Test
+	public void noSources() {
+		Recorder r = new Recorder(1);
+		merge(2).subscribe(r);
+		assertTrue(r.completed);
+	}
+
+	@Test
+	public void followsDemand() {
+		ListPublisher a = new ListPublisher(1, 2, 3, 4, 5, 6);
+		ListPublisher b = new ListPublisher(7, 8, 9, 10, 11, 12);
+		Recorder r = new Recorder(3);
+		merge(2, a, b).subscribe(r);
+
+		assertEquals(3, r.items.size());
+		assertFalse(r.completed);
+		// each source is only asked for the prefetch plus what was handed on
+		assertTrue(a.requested + b.requested <= 2 * 2 + 3);
+
+		r.subscription.request(100);
+		assertEquals(12, r.items.size());
+		assertTrue(r.completed);
+	}
+
+	@Test
+	public void failureCancelsTheOthers() {
+		ListPublisher a = new ListPublisher(1, 2, 3);
+		a.error = new RuntimeException("a failed");
+		ListPublisher b = new ListPublisher(4, 5, 6);
+		b.pause = true;
+		Recorder r = new Recorder(Long.MAX_VALUE);
+		merge(2, b, a).subscribe(r);
+
+		assertSame(a.error, r.error);
+		assertTrue(b.cancelled);
+		assertFalse(r.completed);
+	}
+
+	@Test
+	public void failureStopsSubscribing() {
+		ListPublisher a = new ListPublisher(1);
+		a.error = new RuntimeException("a failed");
+		ListPublisher b = new ListPublisher(2);
+		Recorder r = new Recorder(Long.MAX_VALUE);
+		merge(2, a, b).subscribe(r);
+
+		assertSame(a.error, r.error);
+		assertFalse(b.subscribed);
+	}
+
+	@Test
+	public void lateSourceIsCancelled() {
+		// this source only calls onSubscribe once the other has failed
+		ListPublisher late = new ListPublisher(1, 2);
+		late.deferSubscribe = true;
+		ListPublisher a = new ListPublisher();
+		a.error = new RuntimeException("a failed");
+		Recorder r = new Recorder(Long.MAX_VALUE);
+		merge(2, late, a).subscribe(r);
+
+		assertSame(a.error, r.error);
+		late.finishSubscribe();
+		assertTrue(late.cancelled);
+		assertEquals(0, late.requested);
+	}
+
+	@Test
+	public void throwingSubscriber() {
+		final RuntimeException boom = new RuntimeException("boom");
+		ListPublisher a = new ListPublisher(1, 2, 3);
+		ListPublisher b = new ListPublisher(4, 5, 6);
+		b.pause = true;
+		Recorder r = new Recorder(Long.MAX_VALUE) {
+			@Override
+			public void onNext(Integer i) {
+				super.onNext(i);
+				throw boom;
+			}
+		};
+		merge(2, b, a).subscribe(r);
+
+		assertSame(boom, r.error);
+		assertEquals(1, r.items.size());
+		assertTrue(a.cancelled);
+		assertTrue(b.cancelled);
+	}
+
+	@Test
+	public void cancel() {
+		ListPublisher a = new ListPublisher(1, 2, 3);
+		Recorder r = new Recorder(1);
+		merge(2, a).subscribe(r);
+		r.subscription.cancel();
+		r.subscription.request(10);
+
+		assertTrue(a.cancelled);
+		assertEquals(1, r.items.size());
+		assertFalse(r.completed);
+		assertNull(r.error);
+	}
+
+	private MergedPublisher<Integer> merge(int prefetch,
+			ListPublisher... sources) {
+		return new MergedPublisher<Integer>(Arrays.asList(sources), prefetch);
+	}
+
+	/**
+	 * hands out numbers on the thread that asks for them
+	 */
+	private static class ListPublisher implements Publisher<Integer> {
+		final List<Integer> items;
+		RuntimeException error;
+		boolean pause;
+		boolean deferSubscribe;
+		boolean subscribed;
+		boolean cancelled;
+		long requested;
+		private Subscriber<? super Integer> subscriber;
+		private int next;
+		private long demand;
+		private boolean emitting;
+		private boolean finished;
+
+		ListPublisher(Integer... items) {
+			this.items = Arrays.asList(items);
+		}
+
+		public void subscribe(Subscriber<? super Integer> s) {
+			subscribed = true;
+			subscriber = s;
+			if (!deferSubscribe)
+				finishSubscribe();
+		}
+
+		void finishSubscribe() {
+			subscriber.onSubscribe(new Subscription() {
+				public void request(long n) {
+					requested += n;
+					demand += n;
+					emit();
+				}
+
+				public void cancel() {
+					cancelled = true;
+				}
+			});
+		}
+
+		private void emit() {
+			if (emitting || pause)
+				return;
+			emitting = true;
+			while (!cancelled && demand > 0 && next < items.size()) {
+				demand--;
+				subscriber.onNext(items.get(next++));
+			}
+			if (!cancelled && !finished && next == items.size()) {
+				finished = true;
+				if (error != null)
+					subscriber.onError(error);
+				else
+					subscriber.onComplete();
+			}
+			emitting = false;
+		}
+	}
+
+	/**
+	 * remembers what it was given
+	 */
+	private static class Recorder implements Subscriber<Integer> {
+		final List<Integer> items = new ArrayList<Integer>();
+		final long initial;
+		Subscription subscription;
+		boolean completed;
+		Throwable error;
+
+		Recorder(long initial) {
+			this.initial = initial;
+		}
+
+		public void onSubscribe(Subscription s) {
+			subscription = s;
+			s.request(initial);
+		}
+
+		public void onNext(Integer i) {
+			items.add(i);
+		}
+
+		public void onError(Throwable t) {
+			error = t;
+		}
+
+		public void onComplete() {
+			completed = true;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.ResponseReader;
+import org.jactiveresource.rails.Pager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the Pager class, with a connection which makes up its pages
+ * instead of talking to a service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestPager {
+
+	private StubConnection c;
+	private ExecutorService executor;
+	private PersonFactory pf;
+
+	@Before
+	public void setUp() throws Exception {
+		c = new StubConnection();
+		executor = Executors.newCachedThreadPool();
+		c.setExecutor(executor);
+		pf = new PersonFactory(c, ResourceFormat.XML);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		c.close();
+	}
+
+	@Test(timeout = 10000)
+	public void walksThePages() throws Exception {
+		c.pages = 3;
+		Pager<Person> pager = pf.findAllPaged(null, 2);
+		assertEquals("1", pager.nextPage().get(0).getId());
+		assertEquals("3", pager.nextPage().get(0).getId());
+		ArrayList<Person> last = pager.nextPage();
+		assertEquals(1, last.size());
+		assertEquals("5", last.get(0).getId());
+		assertNull(pager.nextPage());
+	}
+
+	@Test(timeout = 10000)
+	public void failureCancelsThePagesAhead() throws Exception {
+		c.pages = 10;
+		c.failOn = 2;
+		c.blockOn = 3;
+		Pager<Person> pager = pf.findAllPaged(null, 2);
+		pager.nextPage();
+		c.blocked.await();
+		try {
+			pager.nextPage();
+			fail("expected the page to fail");
+		} catch (IllegalStateException e) {
+			assertSame(c.failure, e);
+		}
+		// page 3 was still being read, and its connection is dropped
+		assertTrue(c.aborted.await(5, TimeUnit.SECONDS));
+		assertNull(pager.nextPage());
+	}
+
+	/**
+	 * makes up pages of people, and can be told to fail on a page, or to hang
+	 * part way through reading one until it is aborted
+	 */
+	private static class StubConnection extends ResourceConnection {
+		volatile int pages;
+		volatile int failOn;
+		volatile int blockOn;
+		final IllegalStateException failure = new IllegalStateException(
+				"can't read page");
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch aborted = new CountDownLatch(1);
+
+		StubConnection() throws Exception {
+			super("http://localhost:3000");
+		}
+
+		@Override
+		public ResponseReader getStream(Object url) {
+			Map<String, Integer> query = new HashMap<String, Integer>();
+			String s = url.toString();
+			for (String pair : s.substring(s.indexOf('?') + 1).split("&")) {
+				String[] kv = pair.split("=");
+				query.put(kv[0], Integer.valueOf(kv[1]));
+			}
+			int page = query.get("page");
+			int perPage = query.get("per_page");
+			if (page == failOn)
+				throw failure;
+
+			StringBuilder xml = new StringBuilder("<people type=\"array\">");
+			int first = (page - 1) * perPage + 1;
+			int last = Math.min(first + perPage - 1, pages * perPage - 1);
+			for (int id = first; id <= last; id++)
+				xml.append("<person><id type=\"integer\">").append(id)
+						.append("</id></person>");
+			xml.append("</people>");
+			HttpGet request = new HttpGet(getSite().toString() + url) {
+				@Override
+				public void abort() {
+					super.abort();
+					aborted.countDown();
+				}
+			};
+			Reader body = new StringReader(xml.toString());
+			if (page == blockOn)
+				body = new HangingReader();
+			return new ResponseReader(body, request);
+		}
+
+		/**
+		 * a response which stops arriving until the request is aborted
+		 */
+		private class HangingReader extends Reader {
+			@Override
+			public int read(char[] buf, int off, int len) throws IOException {
+				blocked.countDown();
+				long end = System.currentTimeMillis() + 10000;
+				while (System.currentTimeMillis() < end) {
+					try {
+						if (aborted.await(10, TimeUnit.MILLISECONDS))
+							throw new IOException("connection dropped");
+					} catch (InterruptedException e) {
+						// interrupting doesn't unblock a socket read either
+					}
+				}
+				throw new IOException("timed out");
+			}
+
+			@Override
+			public void close() {
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ResourceFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for deserializing XML collections in parallel
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestParallelDecoder {
+
+	// enough for a few dozen chunks
+	private static final int PEOPLE = 10000;
+
+	private ResourceConnection c;
+	private ExecutorService executor;
+	private PersonFactory pf;
+	private String xml;
+
+	@Before
+	public void setUp() throws Exception {
+		c = new ResourceConnection("http://localhost:3000");
+		pf = new PersonFactory(c, ResourceFormat.XML);
+		pf.setParallelism(4);
+
+		StringBuilder sb = new StringBuilder("<people type=\"array\">");
+		for (int i = 1; i <= PEOPLE; i++)
+			sb.append("<person><id type=\"integer\">").append(i).append(
+					"</id><name>Smith &amp; &lt;Sons&gt; &quot;").append(i)
+					.append("&quot;</name></person>");
+		sb.append("</people>");
+		xml = sb.toString();
+	}
+
+	@After
+	public void tearDown() {
+		if (executor != null)
+			executor.shutdownNow();
+		c.close();
+	}
+
+	@Test(timeout = 30000)
+	public void sameAsSerial() throws Exception {
+		ArrayList<Person> serial = pf.deserializeMany(reader());
+		pf.setParallelDecoding(true);
+		ArrayList<Person> parallel = pf.deserializeMany(reader());
+
+		assertEquals(PEOPLE, serial.size());
+		assertEquals(serial.size(), parallel.size());
+		for (int i = 0; i < serial.size(); i++) {
+			assertEquals(serial.get(i).getId(), parallel.get(i).getId());
+			assertEquals(serial.get(i).getName(), parallel.get(i).getName());
+		}
+		assertEquals("Smith & <Sons> \"7\"", parallel.get(6).getName());
+	}
+
+	@Test(timeout = 30000)
+	public void fromABoundedExecutor() throws Exception {
+		executor = Executors.newFixedThreadPool(1);
+		c.setExecutor(executor);
+		pf.setParallelDecoding(true);
+		Future<ArrayList<Person>> people = executor
+				.submit(new Callable<ArrayList<Person>>() {
+					public ArrayList<Person> call() throws Exception {
+						return pf.deserializeMany(reader());
+					}
+				});
+		ArrayList<Person> list = people.get(20, TimeUnit.SECONDS);
+		assertEquals(PEOPLE, list.size());
+		assertEquals("1", list.get(0).getId());
+		assertEquals(String.valueOf(PEOPLE), list.get(PEOPLE - 1).getId());
+	}
+
+	@Test(timeout = 30000)
+	public void rejectedChunks() throws Exception {
+		executor = Executors.newFixedThreadPool(1);
+		executor.shutdown();
+		c.setExecutor(executor);
+		pf.setParallelDecoding(true);
+		ArrayList<Person> list = pf.deserializeMany(reader());
+		assertEquals(PEOPLE, list.size());
+		assertTrue(executor.isTerminated());
+	}
+
+	private BufferedReader reader() {
+		return new BufferedReader(new StringReader(xml));
+	}
+}
@@ -38,12 +38,18 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Date;
 
+import org.jactiveresource.BatchResult;
+import org.jactiveresource.DefaultHttpClientFactory;
 import org.jactiveresource.ResourceConnection;
 import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.ResourceNotFound;
+import org.jactiveresource.ResponseReader;
+import org.jactiveresource.rails.FindDispatcher;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -88,22 +94,73 @@ public class TestPerson {
 		Date old = new Date(new Long("-99999999999999"));
 		p.setBirthdate(old);
 		p.save();
+		assertReleased();
 
 		String id = p.getId();
 		assertEquals(p.getName(), "King Tut");
 		assertNotNull("No id present", p.getId());
 
 		p = f.find(id);
+		assertReleased();
 		assertEquals(p.getName(), "King Tut");
 		p.setName("Alexander the Great");
 		p.update();
+		assertReleased();
 
 		p = f.find(id);
+		assertReleased();
 		assertEquals(p.getName(), "Alexander the Great");
 
 		assertTrue(f.exists(id));
+		assertReleased();
 		p.delete();
+		assertReleased();
 		assertFalse(f.exists(id));
+		assertReleased();
+	}
+
+	@Test
+	public void errorsReleaseConnections() throws Exception {
+		p = xf.instantiate();
+		p.setName("Walter Johnson");
+		p.setBirthdate(new Date());
+		p.save();
+		String id = p.getId();
+
+		// a failed update
+		p.setName("");
+		assertFalse(p.update());
+		assertReleased();
+
+		p.delete();
+		assertReleased();
+
+		// delete something that's already gone
+		try {
+			p.delete();
+			fail("deleted a missing person");
+		} catch (ResourceNotFound e) {
+			// expected
+		}
+		assertReleased();
+
+		try {
+			xf.find(id);
+			fail("found a missing person");
+		} catch (ResourceNotFound e) {
+			// expected
+		}
+		assertReleased();
+
+		try {
+			ResponseReader r = c.getStream("/people/" + id + ".xml");
+			if (r != null)
+				r.close();
+			fail("read a missing person");
+		} catch (ResourceNotFound e) {
+			// expected
+		}
+		assertReleased();
 	}
 
 	@Test
@@ -121,12 +178,15 @@ public class TestPerson {
 		p.setName("George Burns");
 		p.setBirthdate(new Date());
 		p.save();
+		assertReleased();
 
 		p.setName("Fred Flintstone");
 		p.reload();
+		assertReleased();
 		assertEquals("George Burns", p.getName());
 
 		p.delete();
+		assertReleased();
 	}
 
 	@Test
@@ -160,6 +220,7 @@ public class TestPerson {
 		pp.delete();
 
 		otherpeople = f.findAll();
+		assertReleased();
 		assertEquals(otherpeople.size(), people.size());
 	}
 
@@ -177,6 +238,7 @@ public class TestPerson {
 		p = f.instantiate();
 		p.setBirthdate(new Date());
 		assertFalse(p.save());
+		assertReleased();
 		assertNull(p.getId());
 		p.setName("Shoeless Joe");
 		assertTrue(p.save());
@@ -231,4 +293,71 @@ public class TestPerson {
 		assertEquals(false, f.exists(id));
 	}
 
+	@Test
+	public void findManyXML() throws Exception {
+		findMany(xf);
+	}
+
+	@Test
+	public void findManyByIdsParameterXML() throws Exception {
+		xf.setIdsParameter("ids[]");
+		findMany(xf);
+	}
+
+	private void findMany(PersonFactory f) throws Exception {
+		ArrayList<String> ids = new ArrayList<String>();
+		ArrayList<Person> created = new ArrayList<Person>();
+		for (String name : new String[] { "Cy Young", "Babe Ruth", "Lou Gehrig" }) {
+			p = f.instantiate();
+			p.setName(name);
+			p.setBirthdate(new Date());
+			p.save();
+			created.add(p);
+			ids.add(p.getId());
+		}
+		// add an id that doesn't exist in the middle
+		ids.add(1, "0");
+
+		BatchResult<Person> people = f.find(ids);
+		assertReleased();
+		assertEquals(4, people.size());
+		assertEquals("Cy Young", people.get(0).getName());
+		assertFalse(people.isSuccess(1));
+		assertTrue(people.getError(1) instanceof ResourceNotFound);
+		assertEquals("Babe Ruth", people.get(2).getName());
+		assertEquals("Lou Gehrig", people.get(3).getName());
+		assertEquals(3, people.getResources().size());
+
+		for (Person person : created)
+			person.delete();
+	}
+
+	@Test
+	public void findDispatcherXML() throws Exception {
+		xf.setIdsParameter("ids[]");
+		p = xf.instantiate();
+		p.setName("Honus Wagner");
+		p.setBirthdate(new Date());
+		p.save();
+
+		FindDispatcher<Person> d = new FindDispatcher<Person>(xf, 10, 100);
+		try {
+			assertEquals("Honus Wagner", d.submit(p.getId()).get().getName());
+			assertEquals("Honus Wagner", d.find(p.getId()).getName());
+		} finally {
+			d.close();
+		}
+		assertReleased();
+		p.delete();
+	}
+
+	/**
+	 * every request so far has given its connection back to the pool
+	 */
+	private void assertReleased() {
+		DefaultHttpClientFactory factory = (DefaultHttpClientFactory) c
+				.getHttpClientFactory();
+		assertEquals(0, factory.getPoolStats().getLeased());
+	}
+
 }
@@ -0,0 +1,126 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jactiveresource.URLBuilder;
+import org.jactiveresource.rails.LazyList;
+import org.jactiveresource.rails.RailsResourceFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the RailsResourceFactory class which don't need a service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestRailsResourceFactory {
+
+	private static final String POST = "<post><id type=\"integer\">1</id>"
+			+ "<comments type=\"array\"><comment>"
+			+ "<id type=\"integer\">7</id><body>first</body>"
+			+ "</comment></comments></post>";
+
+	private RailsResourceFactory<Post> pf;
+
+	@Before
+	public void setUp() {
+		pf = new RailsResourceFactory<Post>(null, Post.class);
+		pf.registerClass(Comment.class);
+	}
+
+	@Test
+	public void pathWithoutPrefix() {
+		RailsResourceFactory<Comment> cf = new RailsResourceFactory<Comment>(
+				null, Comment.class);
+		assertEquals("comments", cf.getCollectionPath());
+		assertEquals("posts/1/comments", cf.withPrefix("post_id", 1)
+				.getCollectionPath());
+	}
+
+	@Test
+	public void prefixIsEncoded() {
+		RailsResourceFactory<Comment> cf = new RailsResourceFactory<Comment>(
+				null, Comment.class).withPrefix("post_id", "a/b c");
+		String path = cf.getCollectionPath();
+		assertEquals("posts/a%2Fb+c/comments", path);
+		assertEquals("/posts/a%2Fb+c/comments.xml", new URLBuilder()
+				.addEncoded(path + ".xml").toString());
+	}
+
+	@Test
+	public void copyKeepsDeferrals() throws Exception {
+		pf.defer("comments");
+		RailsResourceFactory<Post> copy = pf.withPrefix("blog_id", 1);
+		assertTrue(copy.deserializeOne(POST).getComments() instanceof LazyList<?>);
+		assertTrue(pf.deserializeOne(POST).getComments() instanceof LazyList<?>);
+	}
+
+	@Test
+	public void noDeferralsAfterCopying() throws Exception {
+		RailsResourceFactory<Post> copy = pf.withPrefix("blog_id", 1);
+		try {
+			copy.defer("comments");
+			fail("a copy shares its XStream");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			pf.defer("comments");
+			fail("the original shares its XStream");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// neither of them skips the comments
+		List<RailsResourceFactory<Post>> factories = new ArrayList<RailsResourceFactory<Post>>();
+		factories.add(pf);
+		factories.add(copy);
+		for (RailsResourceFactory<Post> f : factories) {
+			Post p = f.deserializeOne(POST);
+			assertFalse(p.getComments() instanceof LazyList<?>);
+			assertEquals(1, p.getComments().size());
+			assertEquals("7", p.getComments().get(0).getId());
+		}
+	}
+}
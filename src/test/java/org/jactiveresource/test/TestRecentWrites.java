@@ -0,0 +1,166 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.jactiveresource.LoadBalancer;
+import org.jactiveresource.ResourceConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for reading your own writes with read replicas, with a client which
+ * notes which site each request went to instead of sending it
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestRecentWrites {
+
+	private Recorder recorder;
+	private ResourceConnection c;
+
+	@Before
+	public void setUp() throws Exception {
+		recorder = new Recorder();
+		c = new ResourceConnection("http://primary:3000",
+				new StubClientFactory(recorder));
+		c.setReadReplicas(new LoadBalancer("http://replica:3001"));
+	}
+
+	@After
+	public void tearDown() {
+		c.close();
+	}
+
+	@Test
+	public void readsGoToReplicas() throws Exception {
+		assertEquals("replica", read("/people/5.xml"));
+		assertEquals("replica", read("/people.xml"));
+	}
+
+	@Test
+	public void writeToAResource() throws Exception {
+		c.put("/people/5.xml", "<person/>", "application/xml");
+		assertEquals("primary", recorder.lastHost);
+
+		assertEquals("primary", read("/people/5.xml"));
+		assertEquals("primary", read("/people/5.json"));
+		// the collection it is in, and anything nested under it
+		assertEquals("primary", read("/people.xml"));
+		assertEquals("primary", read("/people.xml?page=2"));
+		assertEquals("primary", read("/people/5/comments.xml"));
+
+		assertEquals("replica", read("/people/6.xml"));
+		assertEquals("replica", read("/posts.xml"));
+		assertEquals("replica", read("/posts/5.xml"));
+	}
+
+	@Test
+	public void writeToACollection() throws Exception {
+		c.post("/people.xml", "<person/>", "application/xml");
+		assertEquals("primary", read("/people.xml"));
+		assertEquals("primary", read("/people/9.xml"));
+		assertEquals("replica", read("/posts.xml"));
+		assertEquals("replica", read("/posts/9.xml"));
+	}
+
+	@Test
+	public void windowRunsOut() throws Exception {
+		c.setReadYourWritesWindow(50);
+		c.delete("/people/5.xml");
+		assertEquals("primary", read("/people/5.xml"));
+		Thread.sleep(100);
+		assertEquals("replica", read("/people/5.xml"));
+	}
+
+	@Test(timeout = 10000)
+	public void windowStartsWhenTheWriteIsDone() throws Exception {
+		c.setReadYourWritesWindow(200);
+		recorder.writeTime = 400;
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					c.put("/people/5.xml", "<person/>", "application/xml");
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		writer.start();
+		assertTrue(recorder.writing.await(5, TimeUnit.SECONDS));
+		// while the write is in flight
+		assertEquals("primary", read("/people/5.xml"));
+		writer.join();
+		// the write took longer than the window
+		assertEquals("primary", read("/people/5.xml"));
+	}
+
+	/**
+	 * read a url, and return the host it was read from
+	 */
+	private String read(String url) throws Exception {
+		c.get(url);
+		return recorder.lastHost;
+	}
+
+	/**
+	 * answers every request with an empty document, taking writeTime
+	 * milliseconds over anything but a GET, and remembers the host the last
+	 * request went to
+	 */
+	private static class Recorder implements StubClientFactory.Responder {
+		final CountDownLatch writing = new CountDownLatch(1);
+		volatile long writeTime;
+		volatile String lastHost;
+
+		public HttpResponse respond(HttpUriRequest request) throws Exception {
+			if (!request.getMethod().equals("GET")) {
+				writing.countDown();
+				Thread.sleep(writeTime);
+			}
+			lastHost = request.getURI().getHost();
+			return StubClientFactory.response(200, "<nil-classes/>");
+		}
+	}
+}
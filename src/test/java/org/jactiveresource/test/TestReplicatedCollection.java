@@ -0,0 +1,144 @@
+/*
+
+Copyright (c) 2010, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.jactiveresource.ActiveResource;
+import org.jactiveresource.ReplicatedCollection;
+import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.annotation.Indexed;
+import org.jactiveresource.rails.RailsResourceFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the ReplicatedCollection class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestReplicatedCollection {
+
+	private PersonFactory pf;
+	private ReplicatedCollection<Person> people;
+	private Calendar cal;
+
+	@Before
+	public void setUp() throws Exception {
+		pf = new PersonFactory(null, ResourceFormat.XML);
+		people = new ReplicatedCollection<Person>(pf);
+		cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+	}
+
+	@Test
+	public void lookups() throws Exception {
+		ArrayList<Person> list = new ArrayList<Person>();
+		list.add(person("1", "Fred", "1955-04-01"));
+		list.add(person("2", "Wilma", "1960-08-12"));
+		list.add(person("3", "Fred", "1982-01-30"));
+		people.refresh(list);
+
+		assertEquals(3, people.size());
+		assertEquals("Wilma", people.get("2").getName());
+		assertNull(people.get("4"));
+
+		List<Person> freds = people.findBy("name", "Fred");
+		assertEquals(2, freds.size());
+		assertEquals(0, people.findBy("name", "Barney").size());
+
+		cal.clear();
+		cal.set(1958, Calendar.JANUARY, 1);
+		List<Person> young = people.findRange("birthdate", cal.getTime(), null);
+		assertEquals(2, young.size());
+		assertEquals("2", young.get(0).getId());
+		assertEquals("3", young.get(1).getId());
+		assertEquals(1, people.findRange("birthdate", null, cal.getTime())
+				.size());
+	}
+
+	@Test
+	public void refreshSwapsEverything() throws Exception {
+		ArrayList<Person> list = new ArrayList<Person>();
+		list.add(person("1", "Fred", "1955-04-01"));
+		people.refresh(list);
+		Person fred = people.get("1");
+
+		list = new ArrayList<Person>();
+		list.add(person("2", "Wilma", "1960-08-12"));
+		people.refresh(list);
+		assertNull(people.get("1"));
+		assertEquals(0, people.findBy("name", "Fred").size());
+		assertEquals(1, people.findBy("name", "Wilma").size());
+		// whoever held on to the old resource still has it
+		assertEquals("Fred", fred.getName());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notIndexed() {
+		people.findBy("createdAt", null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void sortedNeedsComparable() {
+		new ReplicatedCollection<Tagged>(new RailsResourceFactory<Tagged>(
+				null, Tagged.class, ResourceFormat.XML));
+	}
+
+	/**
+	 * a resource with a sorted index on something which can't be sorted
+	 */
+	public static class Tagged extends ActiveResource<Tagged> {
+		@Indexed(sorted = true)
+		private List<String> tags;
+
+		public List<String> getTags() {
+			return tags;
+		}
+	}
+
+	private Person person(String id, String name, String birthdate)
+			throws Exception {
+		return pf.deserializeOne("<person><id type=\"integer\">" + id
+				+ "</id><name>" + name + "</name><birthdate type=\"date\">"
+				+ birthdate + "</birthdate></person>");
+	}
+}
@@ -0,0 +1,88 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jactiveresource.ResourceConnection;
+import org.junit.Test;
+
+/**
+ * tests for the executor of the ResourceConnection class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestResourceConnection {
+
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {
+		}
+	};
+
+	@Test
+	public void closedExecutorRejects() throws Exception {
+		ResourceConnection c = new ResourceConnection("http://localhost:3000");
+		ExecutorService e = c.getExecutor();
+		c.close();
+		assertTrue(e.isShutdown());
+		// no new pool behind our back
+		assertSame(e, c.getExecutor());
+		try {
+			c.getExecutor().execute(NOTHING);
+			fail("expected the task to be rejected");
+		} catch (RejectedExecutionException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void closedBeforeAnyExecutor() throws Exception {
+		ResourceConnection c = new ResourceConnection("http://localhost:3000");
+		c.close();
+		try {
+			c.getExecutor();
+			fail("expected the connection to refuse");
+		} catch (RejectedExecutionException x) {
+			// expected
+		}
+	}
+}
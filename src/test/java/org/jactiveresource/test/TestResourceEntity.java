@@ -0,0 +1,135 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jactiveresource.ResourceEntity;
+import org.jactiveresource.ResourceFormat;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+
+/**
+ * tests for the ResourceEntity class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestResourceEntity {
+
+	private PersonFactory pf;
+	private CountingXStream xstream;
+	private Person p;
+
+	@Before
+	public void setUp() throws Exception {
+		pf = new PersonFactory(null, ResourceFormat.XML);
+		xstream = new CountingXStream();
+		pf.setXStream(xstream);
+		pf.registerClass(Person.class);
+		p = pf.deserializeOne("<person><id type=\"integer\">1</id></person>");
+		p.setName("Zo\u00eb Bj\u00f6rk \u2603");
+	}
+
+	@Test
+	public void writesUTF8() throws Exception {
+		ResourceEntity entity = pf.streamOne(p);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		String xml = pf.serializeOne(p);
+		assertArrayEquals(xml.getBytes("UTF-8"), out.toByteArray());
+		assertEquals("text/xml; charset=UTF-8", entity.getContentType()
+				.getValue());
+	}
+
+	@Test
+	public void countsBytesNotChars() throws Exception {
+		ResourceEntity entity = pf.streamOne(p);
+		assertFalse(entity.isChunked());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		assertEquals(out.size(), entity.getContentLength());
+		assertTrue(entity.getContentLength() > pf.serializeOne(p).length());
+	}
+
+	@Test
+	public void countsOnce() throws Exception {
+		ResourceEntity entity = pf.streamOne(p);
+		xstream.serialized = 0;
+		long length = entity.getContentLength();
+		assertEquals(length, entity.getContentLength());
+		assertEquals(length, entity.getContentLength());
+		assertEquals(1, xstream.serialized);
+	}
+
+	@Test
+	public void chunkedIsOptIn() throws Exception {
+		List<Person> people = new ArrayList<Person>();
+		people.add(p);
+		ResourceEntity entity = pf.streamMany(people);
+		entity.setChunked(true);
+		xstream.serialized = 0;
+		assertEquals(-1, entity.getContentLength());
+		assertEquals(0, xstream.serialized);
+	}
+
+	/**
+	 * counts how many times it has serialized something onto a writer
+	 */
+	private static class CountingXStream extends XStream {
+		int serialized;
+
+		CountingXStream() {
+			super(new XppDriver());
+		}
+
+		@Override
+		public void toXML(Object obj, Writer out) {
+			serialized++;
+			super.toXML(obj, out);
+		}
+	}
+}
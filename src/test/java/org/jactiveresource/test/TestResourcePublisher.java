@@ -0,0 +1,229 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.jactiveresource.Publisher;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.ResponseReader;
+import org.jactiveresource.Subscriber;
+import org.jactiveresource.Subscription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the ResourcePublisher class, with a connection which reads
+ * canned responses instead of talking to a service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestResourcePublisher {
+
+	private StubConnection c;
+	private PersonFactory pf;
+
+	@Before
+	public void setUp() throws Exception {
+		c = new StubConnection(5);
+		pf = new PersonFactory(c, ResourceFormat.XML);
+	}
+
+	@After
+	public void tearDown() {
+		c.close();
+	}
+
+	@Test(timeout = 10000)
+	public void onlyWhatIsAskedFor() throws Exception {
+		Recorder r = new Recorder(2);
+		pf.publishAll().subscribe(r);
+		r.waitFor(2);
+		Thread.sleep(200);
+		assertEquals(2, r.items.size());
+		assertFalse(r.finished.getCount() == 0);
+
+		r.subscription.request(10);
+		assertTrue(r.finished.await(5, TimeUnit.SECONDS));
+		assertEquals(5, r.items.size());
+		assertTrue(r.completed);
+		assertEquals("1", r.items.get(0).getId());
+		assertEquals("5", r.items.get(4).getId());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelDropsTheConnection() throws Exception {
+		Recorder r = new Recorder(1);
+		pf.publishAll().subscribe(r);
+		r.waitFor(1);
+		r.subscription.cancel();
+		assertTrue(c.request.isAborted());
+		r.subscription.request(10);
+		Thread.sleep(200);
+		assertEquals(1, r.items.size());
+		assertFalse(r.completed);
+	}
+
+	@Test(timeout = 10000)
+	public void throwingSubscriber() throws Exception {
+		final RuntimeException boom = new RuntimeException("boom");
+		Recorder r = new Recorder(10) {
+			@Override
+			public void onNext(Person p) {
+				super.onNext(p);
+				if (items.size() == 2)
+					throw boom;
+			}
+		};
+		pf.publishAll().subscribe(r);
+		assertTrue(r.finished.await(5, TimeUnit.SECONDS));
+		assertSame(boom, r.error);
+		assertEquals(2, r.items.size());
+		assertTrue(c.request.isAborted());
+	}
+
+	@Test(timeout = 10000)
+	public void badRequest() throws Exception {
+		Recorder r = new Recorder(0);
+		Publisher<Person> p = pf.publishAll();
+		p.subscribe(r);
+		r.subscription.request(0);
+		assertTrue(r.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(r.error instanceof IllegalArgumentException);
+		assertNull(c.request);
+	}
+
+	@Test(timeout = 10000)
+	public void rejectedByTheExecutor() throws Exception {
+		ExecutorService dead = Executors.newSingleThreadExecutor();
+		dead.shutdown();
+		c.setExecutor(dead);
+		Recorder r = new Recorder(2);
+		pf.publishAll().subscribe(r);
+		assertEquals(0, r.finished.getCount());
+		assertTrue(r.error instanceof RejectedExecutionException);
+
+		// asking again is rejected again, but quietly
+		r.error = null;
+		r.subscription.request(1);
+		assertNull(r.error);
+		assertNull(c.request);
+	}
+
+	/**
+	 * serves a collection of people from a string
+	 */
+	private static class StubConnection extends ResourceConnection {
+		private final int people;
+		volatile HttpGet request;
+
+		StubConnection(int people) throws Exception {
+			super("http://localhost:3000");
+			this.people = people;
+		}
+
+		@Override
+		public ResponseReader getStream(Object url) {
+			StringBuilder xml = new StringBuilder("<people type=\"array\">");
+			for (int i = 1; i <= people; i++)
+				xml.append("<person><id type=\"integer\">").append(i).append(
+						"</id></person>");
+			xml.append("</people>");
+			request = new HttpGet(getSite().toString() + url);
+			return new ResponseReader(new StringReader(xml.toString()),
+					request);
+		}
+	}
+
+	/**
+	 * remembers what it was given
+	 */
+	static class Recorder implements Subscriber<Person> {
+		final List<Person> items = Collections
+				.synchronizedList(new ArrayList<Person>());
+		final CountDownLatch finished = new CountDownLatch(1);
+		final long initial;
+		volatile Subscription subscription;
+		volatile boolean completed;
+		volatile Throwable error;
+
+		Recorder(long initial) {
+			this.initial = initial;
+		}
+
+		public void onSubscribe(Subscription s) {
+			subscription = s;
+			if (initial > 0)
+				s.request(initial);
+		}
+
+		public void onNext(Person p) {
+			items.add(p);
+		}
+
+		public void onError(Throwable t) {
+			error = t;
+			finished.countDown();
+		}
+
+		public void onComplete() {
+			completed = true;
+			finished.countDown();
+		}
+
+		void waitFor(int n) throws InterruptedException {
+			while (items.size() < n)
+				Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.RetryPolicy;
+import org.junit.Test;
+
+/**
+ * tests for the RetryPolicy class
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestRetryPolicy {
+
+	@Test
+	public void jitterStaysInBounds() {
+		RetryPolicy p = new RetryPolicy();
+		p.setBaseDelay(50);
+		p.setMaxDelay(300);
+		long[] ceilings = { 50, 100, 200, 300, 300 };
+		for (int retry = 1; retry <= ceilings.length; retry++) {
+			long most = 0;
+			for (int i = 0; i < 1000; i++) {
+				long d = p.delay(retry);
+				assertTrue(d >= 0);
+				assertTrue(d < ceilings[retry - 1]);
+				most = Math.max(most, d);
+			}
+			// spread out over the range, not stuck near zero
+			assertTrue(most >= ceilings[retry - 1] / 2);
+		}
+	}
+
+	@Test
+	public void jitterNeverOverflows() {
+		RetryPolicy p = new RetryPolicy();
+		for (int i = 0; i < 100; i++) {
+			long d = p.delay(100);
+			assertTrue(d >= 0);
+			assertTrue(d < p.getMaxDelay());
+		}
+	}
+
+	@Test
+	public void maxRetries() {
+		RetryPolicy p = new RetryPolicy();
+		p.setMaxRetries(2);
+		assertTrue(p.tryRetry(1));
+		assertTrue(p.tryRetry(2));
+		assertFalse(p.tryRetry(3));
+	}
+
+	@Test
+	public void budgetRunsOut() {
+		RetryPolicy p = new RetryPolicy();
+		for (int i = 0; i < p.getBudgetBurst(); i++)
+			assertTrue(p.tryRetry(1));
+		assertFalse(p.tryRetry(1));
+		// each request adds a tenth of a retry
+		for (int i = 0; i < 9; i++)
+			p.recordRequest();
+		assertFalse(p.tryRetry(1));
+		p.recordRequest();
+		assertTrue(p.tryRetry(1));
+		assertFalse(p.tryRetry(1));
+	}
+
+	@Test
+	public void budgetIsCapped() {
+		RetryPolicy p = new RetryPolicy();
+		for (int i = 0; i < 1000; i++)
+			p.recordRequest();
+		int retries = 0;
+		while (p.tryRetry(1))
+			retries++;
+		assertEquals(p.getBudgetBurst(), retries);
+	}
+
+	@Test
+	public void burstAppliesRightAway() {
+		RetryPolicy p = new RetryPolicy();
+		p.setBudgetBurst(2);
+		assertTrue(p.tryRetry(1));
+		assertTrue(p.tryRetry(1));
+		assertFalse(p.tryRetry(1));
+		p.setBudgetBurst(5);
+		for (int i = 0; i < 3; i++)
+			assertTrue(p.tryRetry(1));
+		assertFalse(p.tryRetry(1));
+	}
+
+	@Test
+	public void streamedBodyIsNotRetried() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		ResourceConnection c = new ResourceConnection("http://localhost:3000",
+				new StubClientFactory(new StubClientFactory.Responder() {
+					public HttpResponse respond(HttpUriRequest request)
+							throws Exception {
+						requests.incrementAndGet();
+						return StubClientFactory.response(503, null);
+					}
+				}));
+		RetryPolicy p = new RetryPolicy();
+		p.setMaxRetries(2);
+		p.setBaseDelay(1);
+		c.setRetryPolicy(p);
+		try {
+			c.put("/people/1.xml", new StringEntity("<person/>"));
+			assertEquals(3, requests.get());
+			requests.set(0);
+			c.put("/people/1.xml", new InputStreamEntity(
+					new ByteArrayInputStream(new byte[9]), 9));
+			assertEquals(1, requests.get());
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void interruptedDoesNotRetry() {
+		RetryPolicy p = new RetryPolicy();
+		Thread.currentThread().interrupt();
+		try {
+			assertFalse(p.tryRetry(1));
+		} finally {
+			Thread.interrupted();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jactiveresource.BatchResult;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ResourceFactory;
+import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.ResourceNotFound;
+import org.jactiveresource.ShardedResourceFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the ShardedResourceFactory class, with factories which don't talk
+ * to a service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestShardedResourceFactory {
+
+	private List<StubFactory> shards;
+	private ShardedResourceFactory<Person> sf;
+
+	@Before
+	public void setUp() throws Exception {
+		shards = new ArrayList<StubFactory>();
+		for (int i = 1; i <= 3; i++)
+			shards.add(new StubFactory(new ResourceConnection("http://shard"
+					+ i + ":3000")));
+		sf = new ShardedResourceFactory<Person>(shards);
+	}
+
+	@After
+	public void tearDown() {
+		for (StubFactory f : shards)
+			f.getConnection().close();
+	}
+
+	@Test
+	public void findGoesToTheOwner() throws Exception {
+		for (int i = 1; i <= 50; i++) {
+			String id = Integer.toString(i);
+			assertEquals(id, sf.find(id).getId());
+			ResourceFactory<Person> owner = sf.shardFor(id);
+			for (StubFactory f : shards)
+				assertEquals(f == owner, f.found.contains(id));
+		}
+	}
+
+	@Test
+	public void findManyAsksEachShardOnce() throws Exception {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 1; i <= 100; i++)
+			ids.add(Integer.toString(i));
+		ids.add(50, "404");
+
+		BatchResult<Person> people = sf.find(ids);
+		assertEquals(101, people.size());
+		for (int i = 0; i < ids.size(); i++) {
+			if (ids.get(i).equals("404")) {
+				assertTrue(people.getError(i) instanceof ResourceNotFound);
+				assertNull(people.get(i));
+			} else {
+				assertEquals(ids.get(i), people.get(i).getId());
+			}
+		}
+
+		Set<String> asked = new HashSet<String>();
+		for (StubFactory f : shards) {
+			assertEquals(1, f.batches.size());
+			for (String id : f.batches.get(0)) {
+				assertSame(f, sf.shardFor(id));
+				asked.add(id);
+			}
+			// single finds aren't used
+			assertTrue(f.found.isEmpty());
+		}
+		assertEquals(new HashSet<String>(ids), asked);
+	}
+
+	@Test
+	public void findManyNeedsIds() throws Exception {
+		BatchResult<Person> people = sf.find(Arrays.asList("1", null));
+		assertEquals("1", people.get(0).getId());
+		assertTrue(people.getError(1) instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void createGoesToTheOwner() throws Exception {
+		Person p = shards.get(0).person("7");
+		sf.create(p);
+		for (StubFactory f : shards)
+			assertEquals(f == sf.shardFor("7"), f.created.contains("7"));
+	}
+
+	/**
+	 * finds every id except 404, and remembers what it was asked for
+	 */
+	private static class StubFactory extends PersonFactory {
+		final List<String> found = Collections
+				.synchronizedList(new ArrayList<String>());
+		final List<List<String>> batches = Collections
+				.synchronizedList(new ArrayList<List<String>>());
+		final List<String> created = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		StubFactory(ResourceConnection c) {
+			super(c, ResourceFormat.XML);
+		}
+
+		@Override
+		public Person find(String id) throws ResourceNotFound,
+				IOException {
+			found.add(id);
+			if (id.equals("404"))
+				throw new ResourceNotFound();
+			return person(id);
+		}
+
+		@Override
+		public BatchResult<Person> find(Collection<String> ids) {
+			List<String> list = new ArrayList<String>(ids);
+			batches.add(list);
+			BatchResult<Person> result = new BatchResult<Person>(list);
+			for (int i = 0; i < list.size(); i++) {
+				try {
+					if (list.get(i).equals("404"))
+						throw new ResourceNotFound();
+					result.set(i, person(list.get(i)));
+				} catch (Exception e) {
+					result.setError(i, e);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public boolean create(Person p) {
+			created.add(p.getId());
+			return true;
+		}
+
+		Person person(String id) throws IOException {
+			return deserializeOne("<person><id type=\"integer\">" + id
+					+ "</id></person>");
+		}
+	}
+}
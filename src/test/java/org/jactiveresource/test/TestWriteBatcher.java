@@ -0,0 +1,213 @@
+/*
+
+Copyright (c) 2011, Jared Crapo All rights reserved. 
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met: 
+
+- Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer. 
+
+- Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution. 
+
+- Neither the name of jactiveresource.org nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+
+ */
+
+package org.jactiveresource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jactiveresource.BatchResult;
+import org.jactiveresource.ResourceConnection;
+import org.jactiveresource.ResourceFormat;
+import org.jactiveresource.ResourceInvalid;
+import org.jactiveresource.WriteBatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * tests for the WriteBatcher class, with a factory which doesn't talk to a
+ * service
+ * 
+ * @version $LastChangedRevision$ <br>
+ *          $LastChangedDate$
+ * @author $LastChangedBy$
+ */
+public class TestWriteBatcher {
+
+	private ResourceConnection c;
+	private ExecutorService executor;
+	private StubFactory pf;
+
+	@Before
+	public void setUp() throws Exception {
+		c = new ResourceConnection("http://localhost:3000");
+		executor = Executors.newCachedThreadPool();
+		c.setExecutor(executor);
+		pf = new StubFactory(c);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		c.close();
+	}
+
+	@Test(timeout = 10000)
+	public void keepsOrderAndLimit() throws Exception {
+		WriteBatcher<Person> wb = new WriteBatcher<Person>(pf, 3);
+		for (int i = 0; i < 30; i++)
+			wb.update(person(Integer.toString(i % 5)));
+		BatchResult<Person> r = wb.finish();
+		assertEquals(30, r.size());
+		assertFalse(r.hasErrors());
+		assertTrue("max in flight " + pf.max, pf.max.get() <= 3);
+
+		// the writes to each resource happened in the order they were added
+		List<String> order = new ArrayList<String>(pf.order);
+		for (int i = 0; i < order.size(); i++)
+			for (int j = i + 1; j < order.size(); j++)
+				if (order.get(i).equals(order.get(j)))
+					assertTrue(pf.sequence.get(i) < pf.sequence.get(j));
+	}
+
+	@Test(timeout = 10000)
+	public void sameResourceTakesAPermit() throws Exception {
+		final WriteBatcher<Person> wb = new WriteBatcher<Person>(pf, 1);
+		pf.gate = new CountDownLatch(1);
+		wb.update(person("1"));
+
+		// the one permit is taken, so a second write to the same resource
+		// has to wait for it
+		final Person p = person("1");
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					wb.update(p);
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+		producer.start();
+		producer.join(300);
+		assertTrue(producer.isAlive());
+
+		pf.gate.countDown();
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		assertEquals(2, wb.finish().size());
+	}
+
+	@Test(timeout = 10000)
+	public void rejectedWritesFinish() throws Exception {
+		executor.shutdown();
+		WriteBatcher<Person> wb = new WriteBatcher<Person>(pf, 2);
+		wb.update(person("1"));
+		wb.update(person("1"));
+		wb.update(person("2"));
+		wb.update(person("3"));
+		BatchResult<Person> r = wb.finish();
+		assertEquals(4, r.size());
+		for (int i = 0; i < r.size(); i++)
+			assertTrue(r.getError(i) instanceof RejectedExecutionException);
+	}
+
+	@Test(timeout = 10000)
+	public void recordsInvalid() throws Exception {
+		pf.valid = false;
+		WriteBatcher<Person> wb = new WriteBatcher<Person>(pf, 2);
+		wb.update(person("1"));
+		wb.delete(person("2"));
+		BatchResult<Person> r = wb.finish();
+		assertTrue(r.getError(0) instanceof ResourceInvalid);
+		assertTrue(r.isSuccess(1));
+	}
+
+	private Person person(String id) throws Exception {
+		return pf.deserializeOne("<person><id type=\"integer\">" + id
+				+ "</id></person>");
+	}
+
+	/**
+	 * pretends to write, and keeps track of what it was asked to do
+	 */
+	private static class StubFactory extends PersonFactory {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger max = new AtomicInteger();
+		final AtomicInteger count = new AtomicInteger();
+		final List<String> order = Collections
+				.synchronizedList(new ArrayList<String>());
+		final List<Integer> sequence = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		volatile CountDownLatch gate;
+		volatile boolean valid = true;
+
+		StubFactory(ResourceConnection c) {
+			super(c, ResourceFormat.XML);
+		}
+
+		@Override
+		public boolean update(Person p) {
+			write(p);
+			return valid;
+		}
+
+		@Override
+		public void delete(Person p) {
+			write(p);
+		}
+
+		private void write(Person p) {
+			int n = running.incrementAndGet();
+			synchronized (max) {
+				if (n > max.get())
+					max.set(n);
+			}
+			try {
+				CountDownLatch g = gate;
+				if (g != null)
+					g.await();
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (order) {
+				order.add(p.getId());
+				sequence.add(count.incrementAndGet());
+			}
+			running.decrementAndGet();
+		}
+	}
+}
@@ -6,7 +6,11 @@ class CommentsController < ApplicationController
   # GET /comments
   # GET /comments.xml
   def index
-    @comments = Comment.all
+    if params[:post_id]
+      @comments = Comment.where(:post_id => params[:post_id])
+    else
+      @comments = Comment.all
+    end
 
     respond_to do |format|
       format.html # index.html.erb
@@ -2,7 +2,11 @@ class PeopleController < ApplicationController
   # GET /people
   # GET /people.xml
   def index
-    @people = Person.all
+    if params[:ids]
+      @people = Person.where(:id => params[:ids])
+    else
+      @people = Person.all
+    end
 
     respond_to do |format|
       format.html # index.html.erb
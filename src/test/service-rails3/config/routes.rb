@@ -1,3 +1,6 @@
 ServiceRails3::Application.routes.draw do
   resources :posts, :comments, :people
+  resources :posts do
+    resources :comments
+  end
 end